@@ -15,21 +15,23 @@
  */
 package fr.xebia.cloud.amazon.aws.iam;
 
+import java.io.File;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.URL;
-import java.security.KeyPairGenerator;
-import java.security.SecureRandom;
 import java.security.Security;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
@@ -51,6 +53,7 @@ import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.CreateKeyPairRequest;
+import com.amazonaws.services.ec2.model.DeleteKeyPairRequest;
 import com.amazonaws.services.ec2.model.DescribeKeyPairsRequest;
 import com.amazonaws.services.ec2.model.KeyPair;
 import com.amazonaws.services.ec2.model.KeyPairInfo;
@@ -62,6 +65,8 @@ import com.amazonaws.services.identitymanagement.model.AddUserToGroupRequest;
 import com.amazonaws.services.identitymanagement.model.CreateAccessKeyRequest;
 import com.amazonaws.services.identitymanagement.model.CreateLoginProfileRequest;
 import com.amazonaws.services.identitymanagement.model.CreateUserRequest;
+import com.amazonaws.services.identitymanagement.model.DeleteAccessKeyRequest;
+import com.amazonaws.services.identitymanagement.model.DeleteSigningCertificateRequest;
 import com.amazonaws.services.identitymanagement.model.GetGroupRequest;
 import com.amazonaws.services.identitymanagement.model.GetGroupResult;
 import com.amazonaws.services.identitymanagement.model.GetLoginProfileRequest;
@@ -77,6 +82,7 @@ import com.amazonaws.services.identitymanagement.model.UploadSigningCertificateR
 import com.amazonaws.services.identitymanagement.model.UploadSigningCertificateResult;
 import com.amazonaws.services.identitymanagement.model.User;
 import com.amazonaws.services.identitymanagement.model.StatusType;
+import com.amazonaws.services.identitymanagement.model.UpdateLoginProfileRequest;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailService;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
 import com.amazonaws.services.simpleemail.model.Body;
@@ -85,6 +91,7 @@ import com.amazonaws.services.simpleemail.model.Destination;
 import com.amazonaws.services.simpleemail.model.Message;
 import com.amazonaws.services.simpleemail.model.SendEmailRequest;
 import com.amazonaws.services.simpleemail.model.SendEmailResult;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -92,10 +99,28 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Resources;
 
+import fr.xebia.cloud.amazon.aws.iam.IamAccountCreationJournal.Resource;
+import fr.xebia.cloud.amazon.aws.iam.IamAccountCreationJournal.Step;
+import fr.xebia.cloud.amazon.aws.tools.ThrottlingRetryInvocationHandler;
 import fr.xebia.cloud.cloudinit.FreemarkerUtils;
+import fr.xebia.cloud.mail.SmtpMailDispatcher;
 
 /**
+ * <p>
  * Create Amazon IAM accounts.
+ * </p>
+ * <p>
+ * The accounts of a class are created concurrently (see
+ * {@link #withMaxThreads(int)}): the IAM and EC2 clients are rate limited by
+ * {@link ThrottlingRetryInvocationHandler}, the emails are sent one at a
+ * time through a pool of SMTP connections (see {@link SmtpMailDispatcher}). The progress is recorded in a
+ * {@link IamAccountCreationJournal} to resume an interrupted creation.
+ * </p>
+ * <p>
+ * The RSA keys of the x509 certificates are generated ahead of demand on the
+ * spare cores by a {@link RsaKeyPairPool}, creating an account only signs a
+ * certificate.
+ * </p>
  *
  * @author <a href="mailto:cyrille@cyrilleleclerc.com">Cyrille Le Clerc</a>
  */
@@ -141,60 +166,107 @@ public class AmazonAwsIamAccountCreator {
 
     protected AmazonIdentityManagement iam;
 
-    protected final KeyPairGenerator keyPairGenerator;
+    /**
+     * RSA key pairs of the x509 certificates, generated in background. Created
+     * on first use by {@link #getKeyPairPool()} so that no generator thread is
+     * started before the accounts are created.
+     */
+    protected RsaKeyPairPool keyPairPool;
 
-    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    protected int keyPairPoolKeySize = 1024;
 
-    protected Session mailSession;
+    protected int keyPairPoolDepth = 20;
 
-    protected Transport mailTransport;
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
 
-    protected InternetAddress mailFrom;
+    protected SmtpMailDispatcher mailDispatcher;
 
     protected AmazonSimpleEmailService ses;
 
     protected final Random random = new Random();
 
+    protected final IamAccountCreationJournal journal;
+
+    protected int maxThreads = 5;
+
+    @VisibleForTesting
+    protected AmazonAwsIamAccountCreator(Environment environment, AmazonIdentityManagement iam, AmazonEC2 ec2,
+                                         SmtpMailDispatcher mailDispatcher, IamAccountCreationJournal journal) {
+        this.environment = Preconditions.checkNotNull(environment);
+        this.iam = iam;
+        this.ec2 = ec2;
+        this.mailDispatcher = mailDispatcher;
+        this.journal = journal;
+    }
+
     public AmazonAwsIamAccountCreator(Environment environment) {
         this.environment = Preconditions.checkNotNull(environment);
         try {
-            keyPairGenerator = KeyPairGenerator.getInstance("RSA", BOUNCY_CASTLE_PROVIDER_NAME);
-            keyPairGenerator.initialize(1024, new SecureRandom());
-
             String credentialsFileName = "AwsCredentials-" + environment.getIdentifier() + ".properties";
             InputStream credentialsAsStream = Thread.currentThread().getContextClassLoader()
                     .getResourceAsStream(credentialsFileName);
             Preconditions.checkNotNull(credentialsAsStream, "File '/" + credentialsFileName + "' NOT found in the classpath");
             AWSCredentials awsCredentials = new PropertiesCredentials(credentialsAsStream);
-            iam = new AmazonIdentityManagementClient(awsCredentials);
+            iam = ThrottlingRetryInvocationHandler.decorate(new AmazonIdentityManagementClient(awsCredentials),
+                    AmazonIdentityManagement.class);
 
             ses = new AmazonSimpleEmailServiceClient(awsCredentials);
 
-            ec2 = new AmazonEC2Client(awsCredentials);
-            ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
+            AmazonEC2 ec2Client = new AmazonEC2Client(awsCredentials);
+            ec2Client.setEndpoint("ec2.eu-west-1.amazonaws.com");
+            ec2 = ThrottlingRetryInvocationHandler.decorate(ec2Client, AmazonEC2.class);
 
-            InputStream smtpPropertiesAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("smtp.properties");
-            Preconditions.checkNotNull(smtpPropertiesAsStream, "File '/smtp.properties' NOT found in the classpath");
-
-            final Properties smtpProperties = new Properties();
-            smtpProperties.load(smtpPropertiesAsStream);
-
-            mailSession = Session.getInstance(smtpProperties, null);
-            mailTransport = mailSession.getTransport();
-            if (smtpProperties.containsKey("mail.username")) {
-                mailTransport.connect(smtpProperties.getProperty("mail.username"), smtpProperties.getProperty("mail.password"));
-            } else {
-                mailTransport.connect();
-            }
-            try {
-                mailFrom = new InternetAddress(smtpProperties.getProperty("mail.from"));
-            } catch (Exception e) {
-                throw new MessagingException("Exception parsing 'mail.from' from 'smtp.properties'", e);
-            }
+            mailDispatcher = SmtpMailDispatcher.fromClasspath("smtp.properties");
 
         } catch (Exception e) {
             throw Throwables.propagate(e);
         }
+        journal = new IamAccountCreationJournal(new File("amazon-aws-iam-accounts-" + environment.getIdentifier() + ".journal"));
+    }
+
+    /**
+     * Max number of accounts created concurrently.
+     */
+    @Nonnull
+    public AmazonAwsIamAccountCreator withMaxThreads(int maxThreads) {
+        Preconditions.checkArgument(maxThreads > 0, "maxThreads must be positive");
+        this.maxThreads = maxThreads;
+        return this;
+    }
+
+    /**
+     * Size in bits of the RSA keys of the x509 certificates and max number of
+     * key pairs generated in advance, defaults to 1024 bits and 20 key pairs.
+     */
+    @Nonnull
+    public AmazonAwsIamAccountCreator withKeyPairPool(int keySize, int poolDepth) {
+        shutdownKeyPairPool();
+        this.keyPairPoolKeySize = keySize;
+        this.keyPairPoolDepth = poolDepth;
+        return this;
+    }
+
+    /**
+     * @return the pool of RSA key pairs, started on first call
+     */
+    @Nonnull
+    protected synchronized RsaKeyPairPool getKeyPairPool() {
+        if (keyPairPool == null) {
+            keyPairPool = new RsaKeyPairPool(keyPairPoolKeySize, keyPairPoolDepth);
+        }
+        return keyPairPool;
+    }
+
+    /**
+     * Stop the generation of RSA key pairs, the pool is started again by the
+     * next {@link #getKeyPairPool()}.
+     */
+    protected synchronized void shutdownKeyPairPool() {
+        if (keyPairPool != null) {
+            logger.debug("X509 key pairs: {}", keyPairPool);
+            keyPairPool.shutdown();
+            keyPairPool = null;
+        }
     }
 
     /**
@@ -209,6 +281,14 @@ public class AmazonAwsIamAccountCreator {
      * <li>accesskey if none is active,</li>
      * <li></li>
      * </ul>
+     * <p>
+     * If the journal shows that a previous creation of the account was
+     * interrupted before the email was sent, the secrets created by that
+     * previous creation, which could not be sent, are regenerated: the
+     * password is reset, the access key, the personal ssh key pair and the
+     * x509 certificate are deleted and created again. The credentials that
+     * existed before the interrupted creation are left untouched.
+     * </p>
      *
      * @param userName valid email used as userName of the created account.
      */
@@ -216,6 +296,13 @@ public class AmazonAwsIamAccountCreator {
         Preconditions.checkNotNull(userName, "Given userName can NOT be null");
         logger.info("Process user {}", userName);
 
+        // the secrets created by an interrupted creation have never been sent, they can't be recovered
+        Step lastStep = journal.getLastStep(userName);
+        boolean resuming = lastStep != null && !Step.EMAIL_SENT.equals(lastStep);
+        if (resuming) {
+            logger.info("Resume user {} interrupted after step {}, regenerate the unsent secrets", userName, lastStep);
+        }
+
         List<String> userAccountChanges = Lists.newArrayList();
 
         Map<String, String> templatesParams = Maps.newHashMap();
@@ -230,6 +317,7 @@ public class AmazonAwsIamAccountCreator {
             user = iam.createUser(new CreateUserRequest(userName)).getUser();
             userAccountChanges.add("Create user");
         }
+        journal.markDone(userName, Step.USER);
 
         List<BodyPart> attachments = Lists.newArrayList();
 
@@ -237,56 +325,76 @@ public class AmazonAwsIamAccountCreator {
         try {
             LoginProfile loginProfile = iam.getLoginProfile(new GetLoginProfileRequest(user.getUserName())).getLoginProfile();
             templatesParams.put("loginUserName", loginProfile.getUserName());
-            templatesParams.put("loginPassword", "#your password has already been generated and sent to you#");
-
-            logger.info("Login profile already exists {}", loginProfile);
+            if (resuming && journal.getCreatedResourceId(userName, Resource.LOGIN_PROFILE) != null) {
+                String password = generatePassword();
+                iam.updateLoginProfile(new UpdateLoginProfileRequest().withUserName(user.getUserName()).withPassword(password));
+                userAccountChanges.add("Reset user.login password");
+                templatesParams.put("loginPassword", password);
+            } else {
+                templatesParams.put("loginPassword", "#your password has already been generated and sent to you#");
+                logger.info("Login profile already exists {}", loginProfile);
+            }
         } catch (NoSuchEntityException e) {
-            // manually add a number to ensure amazon policy is respected
-            String password = RandomStringUtils.randomAlphanumeric(10) + random.nextInt(10);
+            String password = generatePassword();
             LoginProfile loginProfile = iam.createLoginProfile(new CreateLoginProfileRequest(user.getUserName(), password))
                     .getLoginProfile();
+            journal.markCreated(userName, Resource.LOGIN_PROFILE, loginProfile.getUserName());
             userAccountChanges.add("Create user.login");
             templatesParams.put("loginUserName", loginProfile.getUserName());
             templatesParams.put("loginPassword", password);
         }
+        journal.markDone(userName, Step.LOGIN_PROFILE);
 
         // ADD USER TO GROUP
         Group group = groupDescriptor.getGroup();
         List<User> groupMembers = groupDescriptor.getUsers();
 
-        boolean isUserInGroup = Iterables.any(groupMembers, new Predicate<User>() {
-            public boolean apply(User groupMember) {
-                return userName.equals(groupMember.getUserName());
-            }
+        boolean isUserInGroup;
+        // group members are shared by the users created concurrently
+        synchronized (groupMembers) {
+            isUserInGroup = Iterables.any(groupMembers, new Predicate<User>() {
+                public boolean apply(User groupMember) {
+                    return userName.equals(groupMember.getUserName());
+                }
 
-            ;
-        });
+                ;
+            });
+        }
 
         if (!isUserInGroup) {
             logger.debug("Add user {} to group {}", user, group);
             iam.addUserToGroup(new AddUserToGroupRequest(group.getGroupName(), user.getUserName()));
-            groupMembers.add(user);
+            synchronized (groupMembers) {
+                groupMembers.add(user);
+            }
             userAccountChanges.add("Add user to group");
         }
+        journal.markDone(userName, Step.GROUP_MEMBERSHIP);
 
         // ACCESS KEY
+        String unsentAccessKeyId = resuming ? journal.getCreatedResourceId(userName, Resource.ACCESS_KEY) : null;
         boolean activeAccessKeyExists = false;
         ListAccessKeysResult listAccessKeysResult = iam.listAccessKeys(new ListAccessKeysRequest().withUserName(user.getUserName()));
         for (AccessKeyMetadata accessKeyMetadata : listAccessKeysResult.getAccessKeyMetadata()) {
             StatusType status = StatusType.fromValue(accessKeyMetadata.getStatus());
-            if (StatusType.Active.equals(status)) {
+            if (accessKeyMetadata.getAccessKeyId().equals(unsentAccessKeyId)) {
+                logger.info("Delete unsent access key {}", accessKeyMetadata.getAccessKeyId());
+                iam.deleteAccessKey(new DeleteAccessKeyRequest().withUserName(user.getUserName()).withAccessKeyId(
+                        accessKeyMetadata.getAccessKeyId()));
+                userAccountChanges.add("Delete user.accessKey");
+            } else if (StatusType.Active.equals(status) && !activeAccessKeyExists) {
+                // don't break, the unsent access key may come next
                 logger.info("Access key {} ({}) is already active, don't create another one.", accessKeyMetadata.getAccessKeyId(),
                         accessKeyMetadata.getCreateDate());
                 activeAccessKeyExists = true;
                 templatesParams.put("accessKeyId", accessKeyMetadata.getAccessKeyId());
                 templatesParams.put("accessKeySecretId", "#accessKey has already been generated and the secretId has been sent to you#");
-
-                break;
             }
         }
 
         if (!activeAccessKeyExists) {
             AccessKey accessKey = iam.createAccessKey(new CreateAccessKeyRequest().withUserName(user.getUserName())).getAccessKey();
+            journal.markCreated(userName, Resource.ACCESS_KEY, accessKey.getAccessKeyId());
             userAccountChanges.add("Create user.accessKey");
             logger.debug("Created access key {}", accessKey);
             templatesParams.put("accessKeyId", accessKey.getAccessKeyId());
@@ -303,8 +411,11 @@ public class AmazonAwsIamAccountCreator {
             }
 
         }
+        journal.markDone(userName, Step.ACCESS_KEY);
 
         // SSH KEY PAIR
+        // only a personal key pair can be regenerated, a shared one is sent from its pem file
+        boolean personalKeyPair = keyPairName == null;
         if (keyPairName == null) { // If keyPairName is null, generate it from the username
             if (userName.endsWith("@xebia.fr") || userName.endsWith("@xebia.com")) {
                 keyPairName = userName.substring(0, userName.indexOf("@xebia."));
@@ -313,46 +424,49 @@ public class AmazonAwsIamAccountCreator {
             }
         }
 
-        try {
-            List<KeyPairInfo> keyPairInfos = ec2.describeKeyPairs(new DescribeKeyPairsRequest().withKeyNames(keyPairName)).getKeyPairs();
-            KeyPairInfo keyPairInfo = Iterables.getOnlyElement(keyPairInfos);
-            logger.info("SSH key {} already exists. Don't overwrite it.", keyPairInfo.getKeyName());
-            templatesParams.put("sshKeyName", keyPairInfo.getKeyName());
-            templatesParams.put("sshKeyFingerprint", keyPairInfo.getKeyFingerprint());
-
-            String sshKeyFileName = keyPairName + ".pem";
-            URL sshKeyFileURL = Thread.currentThread().getContextClassLoader().getResource(sshKeyFileName);
-            if (sshKeyFileURL != null) {
-                logger.info("SSH Key file {} found.", sshKeyFileName);
-
-                BodyPart keyPairBodyPart = new MimeBodyPart();
-                keyPairBodyPart.setFileName(sshKeyFileName);
-                templatesParams.put("attachedSshKeyFileName", keyPairBodyPart.getFileName());
-                keyPairBodyPart.setContent(Resources.toString(sshKeyFileURL, Charsets.ISO_8859_1), "application/x-x509-ca-cert");
-                attachments.add(keyPairBodyPart);
-            } else {
-                logger.info("SSH Key file {} NOT found.", sshKeyFileName);
-            }
-
-        } catch (AmazonServiceException e) {
-            if ("InvalidKeyPair.NotFound".equals(e.getErrorCode())) {
-                // ssh key does not exist, create it
-                KeyPair keyPair = ec2.createKeyPair(new CreateKeyPairRequest(keyPairName)).getKeyPair();
-                userAccountChanges.add("Create ssh key");
-
-                logger.info("Created ssh key {}", keyPair);
-                templatesParams.put("sshKeyName", keyPair.getKeyName());
-                templatesParams.put("sshKeyFingerprint", keyPair.getKeyFingerprint());
-
-                BodyPart keyPairBodyPart = new MimeBodyPart();
-                keyPairBodyPart.setFileName(keyPair.getKeyName() + ".pem");
-                templatesParams.put("attachedSshKeyFileName", keyPairBodyPart.getFileName());
-                keyPairBodyPart.setContent(keyPair.getKeyMaterial(), "application/x-x509-ca-cert");
-                attachments.add(keyPairBodyPart);
-            } else {
-                throw e;
+        if (resuming && personalKeyPair && keyPairName.equals(journal.getCreatedResourceId(userName, Resource.KEY_PAIR))) {
+            logger.info("Delete unsent ssh key {}", keyPairName);
+            // no error if the key pair does not exist
+            ec2.deleteKeyPair(new DeleteKeyPairRequest(keyPairName));
+            createKeyPair(keyPairName, templatesParams, attachments);
+            journal.markCreated(userName, Resource.KEY_PAIR, keyPairName);
+            userAccountChanges.add("Recreate ssh key");
+        } else {
+            try {
+                List<KeyPairInfo> keyPairInfos = ec2.describeKeyPairs(new DescribeKeyPairsRequest().withKeyNames(keyPairName)).getKeyPairs();
+                KeyPairInfo keyPairInfo = Iterables.getOnlyElement(keyPairInfos);
+                logger.info("SSH key {} already exists. Don't overwrite it.", keyPairInfo.getKeyName());
+                templatesParams.put("sshKeyName", keyPairInfo.getKeyName());
+                templatesParams.put("sshKeyFingerprint", keyPairInfo.getKeyFingerprint());
+
+                String sshKeyFileName = keyPairName + ".pem";
+                URL sshKeyFileURL = Thread.currentThread().getContextClassLoader().getResource(sshKeyFileName);
+                if (sshKeyFileURL != null) {
+                    logger.info("SSH Key file {} found.", sshKeyFileName);
+
+                    BodyPart keyPairBodyPart = new MimeBodyPart();
+                    keyPairBodyPart.setFileName(sshKeyFileName);
+                    templatesParams.put("attachedSshKeyFileName", keyPairBodyPart.getFileName());
+                    keyPairBodyPart.setContent(Resources.toString(sshKeyFileURL, Charsets.ISO_8859_1), "application/x-x509-ca-cert");
+                    attachments.add(keyPairBodyPart);
+                } else {
+                    logger.info("SSH Key file {} NOT found.", sshKeyFileName);
+                }
+
+            } catch (AmazonServiceException e) {
+                if ("InvalidKeyPair.NotFound".equals(e.getErrorCode())) {
+                    // ssh key does not exist, create it
+                    createKeyPair(keyPairName, templatesParams, attachments);
+                    if (personalKeyPair) {
+                        journal.markCreated(userName, Resource.KEY_PAIR, keyPairName);
+                    }
+                    userAccountChanges.add("Create ssh key");
+                } else {
+                    throw e;
+                }
             }
         }
+        journal.markDone(userName, Step.SSH_KEY);
 
         // X509 SELF SIGNED CERTIFICATE
         Collection<SigningCertificate> certificates = iam.listSigningCertificates(
@@ -364,15 +478,33 @@ public class AmazonAwsIamAccountCreator {
                 return StatusType.Active.equals(StatusType.fromValue(signingCertificate.getStatus()));
             }
         });
+        final String unsentCertificateId = resuming ? journal.getCreatedResourceId(userName, Resource.SIGNING_CERTIFICATE) : null;
+        if (unsentCertificateId != null) {
+            for (SigningCertificate signingCertificate : Lists.newArrayList(certificates)) {
+                if (unsentCertificateId.equals(signingCertificate.getCertificateId())) {
+                    logger.info("Delete unsent x509 certificate {}", signingCertificate.getCertificateId());
+                    iam.deleteSigningCertificate(new DeleteSigningCertificateRequest().withUserName(user.getUserName())
+                            .withCertificateId(signingCertificate.getCertificateId()));
+                    userAccountChanges.add("Delete x509 certificate");
+                }
+            }
+            certificates = Collections2.filter(certificates, new Predicate<SigningCertificate>() {
+                @Override
+                public boolean apply(SigningCertificate signingCertificate) {
+                    return !unsentCertificateId.equals(signingCertificate.getCertificateId());
+                }
+            });
+        }
 
         if (certificates.isEmpty()) {
-            java.security.KeyPair x509KeyPair = keyPairGenerator.generateKeyPair();
+            java.security.KeyPair x509KeyPair = getKeyPairPool().take();
             X509Certificate x509Certificate = generateSelfSignedX509Certificate(userName, x509KeyPair);
             String x509CertificatePem = Pems.pem(x509Certificate);
 
             UploadSigningCertificateResult uploadSigningCertificateResult = iam.uploadSigningCertificate( //
                     new UploadSigningCertificateRequest(x509CertificatePem).withUserName(user.getUserName()));
             SigningCertificate signingCertificate = uploadSigningCertificateResult.getCertificate();
+            journal.markCreated(userName, Resource.SIGNING_CERTIFICATE, signingCertificate.getCertificateId());
             templatesParams.put("x509CertificateId", signingCertificate.getCertificateId());
             userAccountChanges.add("Create x509 certificate");
 
@@ -401,17 +533,20 @@ public class AmazonAwsIamAccountCreator {
             logger.info("X509 certificate {} already exists", signingCertificate.getCertificateId());
             templatesParams.put("x509CertificateId", signingCertificate.getCertificateId());
         }
+        journal.markDone(userName, Step.X509_CERTIFICATE);
 
         sendEmail(templatesParams, attachments, userName);
+        journal.markDone(userName, Step.EMAIL_SENT);
+        logger.info("Created account {}: {}", userName, userAccountChanges);
     }
 
     public void createUsers(String groupName) {
         createUsers(groupName, null);
     }
 
-    public void createUsers(String groupName, String keyPairName) {
+    public void createUsers(String groupName, final String keyPairName) {
 
-        GetGroupResult groupDescriptor = iam.getGroup(new GetGroupRequest(groupName));
+        final GetGroupResult groupDescriptor = iam.getGroup(new GetGroupRequest(groupName));
 
         URL emailsToVerifyURL = Thread.currentThread().getContextClassLoader().getResource("accounts-to-create.txt");
         Preconditions.checkNotNull(emailsToVerifyURL, "File 'accounts-to-create.txt' NOT found in the classpath");
@@ -427,22 +562,83 @@ public class AmazonAwsIamAccountCreator {
                 return !Strings.isNullOrEmpty(s);
             }
         });
-        for (String userName : userNames) {
-            try {
-                createUser(userName, groupDescriptor, keyPairName);
-            } catch (Exception e) {
-                logger.error("Failure to create user '{}'", userName, e);
-            }
 
-            // sleep 10 seconds to prevent "Throttling exception"
-            try {
-                Thread.sleep(10 * 1000);
-            } catch (InterruptedException e) {
-                throw Throwables.propagate(e);
+        final List<String> failedUserNames = Collections.synchronizedList(Lists.<String>newArrayList());
+        Map<String, Future<?>> futuresByUserName = Maps.newLinkedHashMap();
+        List<String> unfinishedUserNames = Lists.newArrayList();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(maxThreads);
+        try {
+            for (final String userName : userNames) {
+                if (journal.isCompleted(userName)) {
+                    logger.info("Skip user {}, credentials already sent according to {}", userName, journal);
+                    continue;
+                }
+                Future<?> future = executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            createUser(userName, groupDescriptor, keyPairName);
+                        } catch (Exception e) {
+                            logger.error("Failure to create user '" + userName + "' after step " + journal.getLastStep(userName), e);
+                            failedUserNames.add(userName);
+                        }
+                    }
+                });
+                futuresByUserName.put(userName, future);
+            }
+            executorService.shutdown();
+            if (!executorService.awaitTermination(1, TimeUnit.HOURS)) {
+                for (Map.Entry<String, Future<?>> entry : futuresByUserName.entrySet()) {
+                    if (!entry.getValue().isDone()) {
+                        entry.getValue().cancel(true);
+                        unfinishedUserNames.add(entry.getKey());
+                    }
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            executorService.shutdownNow();
+            shutdownKeyPairPool();
+            // stop the worker threads and close the SMTP connections
+            mailDispatcher.close();
+        }
+
+        logger.debug("Emails: {}", mailDispatcher);
+        if (failedUserNames.isEmpty() && unfinishedUserNames.isEmpty()) {
+            logger.info("Processed {} users", futuresByUserName.size());
+        } else {
+            logger.warn("Processed {} users, failed users {} and users {} unfinished after 1 hour can be resumed by running again",
+                    new Object[]{futuresByUserName.size(), failedUserNames, unfinishedUserNames});
         }
     }
 
+    /**
+     * Create the given ssh key pair and attach its private key to the email.
+     */
+    private void createKeyPair(@Nonnull String keyPairName, @Nonnull Map<String, String> templatesParams,
+                               @Nonnull List<BodyPart> attachments) throws MessagingException {
+        KeyPair keyPair = ec2.createKeyPair(new CreateKeyPairRequest(keyPairName)).getKeyPair();
+
+        logger.info("Created ssh key {}", keyPair);
+        templatesParams.put("sshKeyName", keyPair.getKeyName());
+        templatesParams.put("sshKeyFingerprint", keyPair.getKeyFingerprint());
+
+        BodyPart keyPairBodyPart = new MimeBodyPart();
+        keyPairBodyPart.setFileName(keyPair.getKeyName() + ".pem");
+        templatesParams.put("attachedSshKeyFileName", keyPairBodyPart.getFileName());
+        keyPairBodyPart.setContent(keyPair.getKeyMaterial(), "application/x-x509-ca-cert");
+        attachments.add(keyPairBodyPart);
+    }
+
+    @Nonnull
+    private String generatePassword() {
+        // manually add a number to ensure amazon policy is respected
+        return RandomStringUtils.randomAlphanumeric(10) + random.nextInt(10);
+    }
+
     /**
      * Generates a self signed x509 certificate identified by the given
      * <code>userName</code> and the given <code>keyPair</code>.
@@ -505,8 +701,9 @@ public class AmazonAwsIamAccountCreator {
             content.addBodyPart(bodyPart);
         }
 
-        MimeMessage msg = new MimeMessage(mailSession);
+        MimeMessage msg = new MimeMessage(mailDispatcher.getSession());
 
+        InternetAddress mailFrom = mailDispatcher.getMailFrom();
         msg.setFrom(mailFrom);
         msg.addRecipient(javax.mail.Message.RecipientType.TO, new InternetAddress(toAddress));
         msg.addRecipient(javax.mail.Message.RecipientType.CC, mailFrom);
@@ -516,7 +713,16 @@ public class AmazonAwsIamAccountCreator {
         msg.setSubject(subject);
         msg.setContent(content);
 
-        mailTransport.sendMessage(msg, msg.getAllRecipients());
+        // wait for the email to be sent before recording it in the journal
+        try {
+            mailDispatcher.send(msg).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), MessagingException.class);
+            throw Throwables.propagate(e.getCause());
+        }
     }
 
     /**
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.iam;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
+import com.google.common.io.Files;
+
+/**
+ * <p>
+ * Local progress journal of the creation of IAM accounts: the last step
+ * completed for each user is appended to a text file ("{userName}\t{step}"
+ * lines) so that an interrupted creation of a whole class can be resumed
+ * where it stopped.
+ * </p>
+ * <p>
+ * The secrets created for a user are also journaled
+ * ("{userName}\t{resource}_CREATED\t{resourceId}" lines): when a creation is
+ * resumed, only these secrets, which have never been sent, are regenerated,
+ * the credentials that existed before are left untouched.
+ * </p>
+ * <p>
+ * The steps themselves are idempotent (existing IAM resources are reused),
+ * the journal prevents to process again the users whose credentials email
+ * has already been sent. Delete the file to process all the users again.
+ * </p>
+ */
+public class IamAccountCreationJournal {
+
+    /**
+     * Steps of the creation of an account, in execution order.
+     */
+    public enum Step {
+        USER, LOGIN_PROFILE, GROUP_MEMBERSHIP, ACCESS_KEY, SSH_KEY, X509_CERTIFICATE, EMAIL_SENT
+    }
+
+    /**
+     * Secrets created for a user, they can only be sent once.
+     */
+    public enum Resource {
+        LOGIN_PROFILE, ACCESS_KEY, KEY_PAIR, SIGNING_CERTIFICATE;
+
+        private static final String CREATED_SUFFIX = "_CREATED";
+
+        public String toJournalStep() {
+            return name() + CREATED_SUFFIX;
+        }
+
+        @Nullable
+        public static Resource fromJournalStep(@Nonnull String journalStep) {
+            if (!journalStep.endsWith(CREATED_SUFFIX)) {
+                return null;
+            }
+            return valueOf(journalStep.substring(0, journalStep.length() - CREATED_SUFFIX.length()));
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(IamAccountCreationJournal.class);
+
+    private final File file;
+
+    private final Map<String, Step> lastStepByUserName = Maps.newHashMap();
+
+    private final Table<String, Resource, String> createdResourceIdByUserName = HashBasedTable.create();
+
+    /**
+     * Load the given journal file if it exists.
+     */
+    public IamAccountCreationJournal(@Nonnull File file) {
+        this.file = Preconditions.checkNotNull(file);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            for (String line : Files.readLines(file, Charsets.UTF_8)) {
+                List<String> fields = Lists.newArrayList(Splitter.on('\t').split(line));
+                try {
+                    if (fields.size() == 2) {
+                        lastStepByUserName.put(fields.get(0), Step.valueOf(fields.get(1)));
+                    } else if (fields.size() == 3 && Resource.fromJournalStep(fields.get(1)) != null) {
+                        createdResourceIdByUserName.put(fields.get(0), Resource.fromJournalStep(fields.get(1)), fields.get(2));
+                    } else {
+                        logger.warn("Ignore invalid line '{}' of journal {}", line, file);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // typically a line truncated by a crash
+                    logger.warn("Ignore invalid line '{}' of journal {}", line, file);
+                }
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        logger.info("Loaded journal {} with {} users", file, lastStepByUserName.size());
+    }
+
+    /**
+     * Record the completion of the given step and flush it to the file.
+     */
+    public synchronized void markDone(@Nonnull String userName, @Nonnull Step step) {
+        Preconditions.checkNotNull(userName, "userName can NOT be null");
+        Preconditions.checkNotNull(step, "step can NOT be null");
+        try {
+            Files.append(userName + "\t" + step + "\n", file, Charsets.UTF_8);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        lastStepByUserName.put(userName, step);
+    }
+
+    /**
+     * Record the creation of the given secret and flush it to the file,
+     * before it is sent.
+     */
+    public synchronized void markCreated(@Nonnull String userName, @Nonnull Resource resource, @Nonnull String resourceId) {
+        Preconditions.checkNotNull(userName, "userName can NOT be null");
+        Preconditions.checkNotNull(resource, "resource can NOT be null");
+        Preconditions.checkNotNull(resourceId, "resourceId can NOT be null");
+        try {
+            Files.append(userName + "\t" + resource.toJournalStep() + "\t" + resourceId + "\n", file, Charsets.UTF_8);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        createdResourceIdByUserName.put(userName, resource, resourceId);
+    }
+
+    /**
+     * @return the id of the given secret last created for the given user or
+     *         <code>null</code> if none has been created by a previous run
+     */
+    @Nullable
+    public synchronized String getCreatedResourceId(@Nonnull String userName, @Nonnull Resource resource) {
+        return createdResourceIdByUserName.get(userName, resource);
+    }
+
+    /**
+     * @return the last step completed for the given user or <code>null</code>
+     *         if the user has never been processed
+     */
+    @Nullable
+    public synchronized Step getLastStep(@Nonnull String userName) {
+        return lastStepByUserName.get(userName);
+    }
+
+    /**
+     * @return <code>true</code> if the credentials of the given user have
+     *         already been sent
+     */
+    public synchronized boolean isCompleted(@Nonnull String userName) {
+        return Step.EMAIL_SENT.equals(lastStepByUserName.get(userName));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "{file=" + file + ", users=" + lastStepByUserName.size() + "}";
+    }
+}
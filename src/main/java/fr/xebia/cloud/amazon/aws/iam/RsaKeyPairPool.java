@@ -0,0 +1,195 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.iam;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Pool of RSA key pairs generated ahead of demand by low priority background
+ * threads: RSA key generation is CPU intensive, callers only take a ready key
+ * pair and wait only if the pool is empty.
+ * </p>
+ * <ul>
+ * <li>Up to <code>poolDepth</code> key pairs are generated in advance.</li>
+ * <li>Each generator thread has its own {@link KeyPairGenerator} of the
+ * BouncyCastle provider, the provider used to sign the x509 certificates.</li>
+ * <li>Generator threads are daemon threads, call {@link #shutdown()} to stop
+ * them earlier.</li>
+ * <li>Once all the generator threads died on an error, {@link #take()} fails
+ * with the first error instead of waiting forever.</li>
+ * </ul>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * RsaKeyPairPool keyPairPool = new RsaKeyPairPool(1024, 10);
+ * ...
+ * KeyPair keyPair = keyPairPool.take();
+ * </pre></code>
+ */
+public class RsaKeyPairPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(RsaKeyPairPool.class);
+
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    private final int keySize;
+
+    private final BlockingQueue<KeyPair> keyPairs;
+
+    private final ExecutorService executorService;
+
+    private final AtomicInteger generatedKeyPairsCount = new AtomicInteger();
+
+    private final AtomicInteger awaitedKeyPairsCount = new AtomicInteger();
+
+    private final AtomicInteger liveGeneratorsCount;
+
+    private final AtomicReference<RuntimeException> generatorFailure = new AtomicReference<RuntimeException>();
+
+    /**
+     * Generate the key pairs with one thread per spare core (all the cores but
+     * one).
+     */
+    public RsaKeyPairPool(int keySize, int poolDepth) {
+        this(keySize, poolDepth, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param keySize          RSA key size in bits (e.g. 1024)
+     * @param poolDepth        max number of key pairs generated in advance
+     * @param generatorThreads number of threads generating the key pairs
+     */
+    public RsaKeyPairPool(int keySize, int poolDepth, int generatorThreads) {
+        Preconditions.checkArgument(poolDepth > 0, "poolDepth must be positive");
+        Preconditions.checkArgument(generatorThreads > 0, "generatorThreads must be positive");
+        this.keySize = keySize;
+        this.keyPairs = new ArrayBlockingQueue<KeyPair>(poolDepth);
+        this.liveGeneratorsCount = new AtomicInteger(generatorThreads);
+        this.executorService = Executors.newFixedThreadPool(generatorThreads, new ThreadFactoryBuilder() //
+                .setNameFormat("rsa-key-pair-generator-%d") //
+                .setDaemon(true) //
+                .setPriority(Thread.MIN_PRIORITY) //
+                .build());
+
+        for (int i = 0; i < generatorThreads; i++) {
+            final KeyPairGenerator keyPairGenerator;
+            try {
+                keyPairGenerator = KeyPairGenerator.getInstance("RSA", BouncyCastleProvider.PROVIDER_NAME);
+                keyPairGenerator.initialize(keySize, new SecureRandom());
+            } catch (Exception e) {
+                executorService.shutdownNow();
+                throw Throwables.propagate(e);
+            }
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            keyPairs.put(generateKeyPair(keyPairGenerator));
+                            generatedKeyPairsCount.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        // shutdown
+                    } catch (RuntimeException e) {
+                        logger.error("Failure generating RSA key pair, stop generator thread", e);
+                        generatorFailure.compareAndSet(null, e);
+                    } finally {
+                        liveGeneratorsCount.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    @VisibleForTesting
+    protected KeyPair generateKeyPair(@Nonnull KeyPairGenerator keyPairGenerator) {
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    /**
+     * Take a ready key pair, waiting for one to be generated if the pool is
+     * empty.
+     *
+     * @throws IllegalStateException the pool is shutdown or all the generator
+     *                               threads died
+     */
+    @Nonnull
+    public KeyPair take() throws IllegalStateException {
+        Preconditions.checkState(!executorService.isShutdown(), "Pool is shutdown");
+        KeyPair keyPair = keyPairs.poll();
+        if (keyPair == null) {
+            awaitedKeyPairsCount.incrementAndGet();
+            logger.debug("No RSA key pair ready, wait for the generation of one");
+            try {
+                while (keyPair == null) {
+                    keyPair = keyPairs.poll(1, TimeUnit.SECONDS);
+                    if (keyPair == null && liveGeneratorsCount.get() == 0) {
+                        // a key pair may have been queued just before the last generator died
+                        keyPair = keyPairs.poll();
+                        if (keyPair == null) {
+                            throw new IllegalStateException("All the RSA key pair generator threads died", generatorFailure.get());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+        }
+        return keyPair;
+    }
+
+    /**
+     * Stop the generation of key pairs.
+     */
+    public void shutdown() {
+        executorService.shutdownNow();
+        keyPairs.clear();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{keySize=" + keySize + ", ready=" + keyPairs.size() + ", generated="
+                + generatedKeyPairsCount + ", awaited=" + awaitedKeyPairsCount + ", liveGenerators=" + liveGeneratorsCount + "}";
+    }
+}
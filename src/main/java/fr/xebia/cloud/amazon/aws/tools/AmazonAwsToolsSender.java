@@ -20,13 +20,12 @@ import java.net.URL;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
@@ -56,6 +55,7 @@ import com.google.common.collect.Maps;
 import com.google.common.io.Resources;
 
 import fr.xebia.cloud.cloudinit.FreemarkerUtils;
+import fr.xebia.cloud.mail.SmtpMailDispatcher;
 
 /**
  * Send Amazon AWS tools / command lines links and install instructions by email
@@ -79,10 +79,7 @@ public class AmazonAwsToolsSender {
 
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
-    protected Session mailSession;
-
-    protected Transport mailTransport;
-    protected InternetAddress mailFrom;
+    protected SmtpMailDispatcher mailDispatcher;
 
     protected AmazonSimpleEmailService ses;
 
@@ -92,31 +89,15 @@ public class AmazonAwsToolsSender {
             InputStream credentialsAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("AwsCredentials.properties");
             Preconditions.checkNotNull(credentialsAsStream, "File '/AwsCredentials.properties' NOT found in the classpath");
             AWSCredentials awsCredentials = new PropertiesCredentials(credentialsAsStream);
-            iam = new AmazonIdentityManagementClient(awsCredentials);
-
-            ses = new AmazonSimpleEmailServiceClient(awsCredentials);
+            iam = ThrottlingRetryInvocationHandler.decorate(new AmazonIdentityManagementClient(awsCredentials), AmazonIdentityManagement.class);
 
-            ec2 = new AmazonEC2Client(awsCredentials);
-            ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
+            ses = ThrottlingRetryInvocationHandler.decorate(new AmazonSimpleEmailServiceClient(awsCredentials), AmazonSimpleEmailService.class);
 
-            InputStream smtpPropertiesAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("smtp.properties");
-            Preconditions.checkNotNull(smtpPropertiesAsStream, "File '/smtp.properties' NOT found in the classpath");
+            AmazonEC2 ec2Client = new AmazonEC2Client(awsCredentials);
+            ec2Client.setEndpoint("ec2.eu-west-1.amazonaws.com");
+            ec2 = AmazonAwsUtils.decorateWithThrottlingRetry(ec2Client);
 
-            final Properties smtpProperties = new Properties();
-            smtpProperties.load(smtpPropertiesAsStream);
-
-            mailSession = Session.getInstance(smtpProperties, null);
-            mailTransport = mailSession.getTransport();
-            if (smtpProperties.containsKey("mail.username")) {
-                mailTransport.connect(smtpProperties.getProperty("mail.username"), smtpProperties.getProperty("mail.password"));
-            } else {
-                mailTransport.connect();
-            }
-            try {
-                mailFrom = new InternetAddress(smtpProperties.getProperty("mail.from"));
-            } catch (Exception e) {
-                throw new MessagingException("Exception parsing 'mail.from' from 'smtp.properties'", e);
-            }
+            mailDispatcher = SmtpMailDispatcher.fromClasspath("smtp.properties");
 
         } catch (Exception e) {
             throw Throwables.propagate(e);
@@ -130,8 +111,10 @@ public class AmazonAwsToolsSender {
      * 
      * @param userName
      *            valid email used as userName.
+     * @return the future result of the sending of the email
      */
-    public void sendEmail(@Nonnull final String userName) throws Exception {
+    @Nonnull
+    public Future<Void> sendEmail(@Nonnull final String userName) throws Exception {
         Preconditions.checkNotNull(userName, "Given userName can NOT be null");
         logger.debug("Process user {}", userName);
 
@@ -169,7 +152,7 @@ public class AmazonAwsToolsSender {
         templatesParams.put("X509CertificateFileName", "cert-" + signingCertificate.getCertificateId() + ".pem");
         templatesParams.put("X509PrivateKeyFileName", "pk-" + signingCertificate.getCertificateId() + ".pem");
 
-        sendEmail(templatesParams, attachments, userName);
+        return sendEmail(templatesParams, attachments, userName);
     }
 
     public void sendEmails() {
@@ -181,28 +164,49 @@ public class AmazonAwsToolsSender {
         } catch (Exception e) {
             throw Throwables.propagate(e);
         }
+        List<String> failedUserNames = Lists.newArrayList();
+        Map<String, Future<Void>> sendingsByUserName = Maps.newLinkedHashMap();
         for (String userName : userNames) {
             try {
-                sendEmail(userName);
+                sendingsByUserName.put(userName, sendEmail(userName));
             } catch (Exception e) {
-                logger.error("Failure to send email to user '{}'", userName, e);
+                logger.error("Failure to send email to user '" + userName + "'", e);
+                failedUserNames.add(userName);
             }
-
-            // sleep 10 seconds to prevent "Throttling exception"
-            try {
-                Thread.sleep(10 * 1000);
-            } catch (InterruptedException e) {
-                throw Throwables.propagate(e);
+        }
+        // wait for the queued emails
+        try {
+            for (Map.Entry<String, Future<Void>> entry : sendingsByUserName.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    logger.error("Failure to send email to user '" + entry.getKey() + "'", e.getCause());
+                    failedUserNames.add(entry.getKey());
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            mailDispatcher.close();
+        }
+        if (failedUserNames.isEmpty()) {
+            logger.info("Emails sent, IAM calls: {}, emails: {}", iam, mailDispatcher);
+        } else {
+            logger.warn("Emails NOT sent to users {}, IAM calls: {}, emails: {}", new Object[]{failedUserNames, iam, mailDispatcher});
         }
     }
 
     /**
+     * Enqueue the email, it is sent asynchronously by the
+     * {@link SmtpMailDispatcher}.
      *
      * @param toAddress
+     * @return the future result of the sending of the email
      * @throws MessagingException
      */
-    public void sendEmail(Map<String, String> templatesParams, List<BodyPart> attachments, String toAddress) throws MessagingException {
+    @Nonnull
+    public Future<Void> sendEmail(Map<String, String> templatesParams, List<BodyPart> attachments, String toAddress) throws MessagingException {
 
         MimeBodyPart htmlAndPlainTextAlternativeBody = new MimeBodyPart();
 
@@ -228,8 +232,9 @@ public class AmazonAwsToolsSender {
             content.addBodyPart(bodyPart);
         }
 
-        MimeMessage msg = new MimeMessage(mailSession);
+        MimeMessage msg = new MimeMessage(mailDispatcher.getSession());
 
+        InternetAddress mailFrom = mailDispatcher.getMailFrom();
         msg.setFrom(mailFrom);
         msg.addRecipient(javax.mail.Message.RecipientType.TO, new InternetAddress(toAddress));
         msg.addRecipient(javax.mail.Message.RecipientType.CC, mailFrom);
@@ -237,7 +242,7 @@ public class AmazonAwsToolsSender {
         msg.setSubject("[Xebia Amazon AWS Workshop] Tools installation procedure");
         msg.setContent(content);
 
-        mailTransport.sendMessage(msg, msg.getAllRecipients());
+        return mailDispatcher.send(msg);
     }
 
 }
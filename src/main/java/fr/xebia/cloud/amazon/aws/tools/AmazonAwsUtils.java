@@ -15,12 +15,13 @@
  */
 package fr.xebia.cloud.amazon.aws.tools;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Proxy;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -50,9 +51,6 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 
 public class AmazonAwsUtils {
 
@@ -78,6 +76,13 @@ public class AmazonAwsUtils {
      * terminated and another one is launched.
      * </p>
      * <p>
+     * Instances that are not reachable by SSH are terminated and replaced as
+     * well. SSH availability is checked concurrently, see
+     * {@link #awaitForSshAvailability(Collection, AmazonEC2)}. A local SSH
+     * configuration error (e.g. missing private key file) is raised at once
+     * and doesn't terminate the instances.
+     * </p>
+     * <p>
      * Max retry count: 3.
      * </p>
      *
@@ -85,6 +90,9 @@ public class AmazonAwsUtils {
      * @param ec2
      * @return list of "Running" created instances. List size is greater or
      *         equals to given {@link RunInstancesRequest#getMinCount()}
+     * @throws SshAvailabilityProber.SshConfigurationException if the SSH availability can't be tested
+     * @see PipelinedEc2InstancesLauncher pipelined mode that replaces dead
+     *      instances while the other instances are still probed
      */
     @Nonnull
     public static List<Instance> reliableEc2RunInstances(@Nonnull RunInstancesRequest runInstancesRequest, @Nonnull AmazonEC2 ec2) {
@@ -95,35 +103,20 @@ public class AmazonAwsUtils {
             int tryCount = 1;
             List<Instance> result = ec2.runInstances(runInstancesRequest).getReservation().getInstances();
             result = AmazonAwsUtils.awaitForEc2Instances(result, ec2);
+            result = AmazonAwsUtils.awaitForSshAvailability(result, ec2);
 
-            //Check for instances state
+            //Check for instances state and SSH availability
             while (result.size() < initialInstanceMinCount && tryCount < 3) {
                 runInstancesRequest.setMinCount(initialInstanceMinCount - result.size());
                 runInstancesRequest.setMaxCount(initialInstanceMinCount - result.size());
 
                 List<Instance> instances = ec2.runInstances(runInstancesRequest).getReservation().getInstances();
                 instances = AmazonAwsUtils.awaitForEc2Instances(instances, ec2);
+                instances = AmazonAwsUtils.awaitForSshAvailability(instances, ec2);
                 result.addAll(instances);
                 tryCount++;
             }
 
-            //Check for SSH availability
-            for (Iterator<Instance> itInstance = result.iterator(); itInstance.hasNext(); ) {
-                Instance instance = itInstance.next();
-                try {
-                    if (instance.getImageId().equals(InfrastructureCreationStep.GRAPHITE_IMAGE_ID)) {
-                        awaitForSshAvailability(instance, "root");
-                    } else {
-                        awaitForSshAvailability(instance, "ec2-user");
-                    }
-                } catch (IllegalStateException e) {
-                    //Not available => terminate instance
-                    ec2.terminateInstances(new TerminateInstancesRequest(Lists.newArrayList(instance.getInstanceId())));
-                    itInstance.remove();
-                }
-            }
-
-
             if (result.size() < initialInstanceMinCount) {
                 throw new IllegalStateException("Failure to create " + initialInstanceMinCount + " instances, only " + result.size()
                         + " instances ("
@@ -184,21 +177,19 @@ public class AmazonAwsUtils {
      * {@link AmazonEC2#describeInstances(DescribeInstancesRequest)} as long as
      * the instance is not "running" (e.g. {@link Instance#getPublicDnsName()}).
      * </p>
+     * <p>
+     * All the instances are polled together with one
+     * {@link AmazonEC2#describeInstances(DescribeInstancesRequest)} call per
+     * tick, see {@link Ec2InstancesStartupAwaiter}.
+     * </p>
      *
      * @param instances
-     * @return up to date instances
+     * @return up to date instances, instances that crashed at startup are
+     *         excluded
      */
     @Nonnull
     public static List<Instance> awaitForEc2Instances(@Nonnull Iterable<Instance> instances, @Nonnull AmazonEC2 ec2) {
-
-        List<Instance> result = Lists.newArrayList();
-        for (Instance instance : instances) {
-            instance = awaitForEc2Instance(instance, ec2);
-            if (instance != null) {
-                result.add(instance);
-            }
-        }
-        return result;
+        return new Ec2InstancesStartupAwaiter(ec2).await(instances);
     }
 
     /**
@@ -274,7 +265,9 @@ public class AmazonAwsUtils {
      * @param healthCheckUrl
      * @throws IllegalStateException if the healthCheckUrl did not return 200/OK within 240
      *                               seconds.
+     * @deprecated blocks a thread per url, use {@link HttpAvailabilityChecker}
      */
+    @Deprecated
     public static void awaitForHttpAvailability(@Nonnull String healthCheckUrl) throws IllegalStateException {
 
         RuntimeException cause = null;
@@ -431,6 +424,21 @@ public class AmazonAwsUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(AmazonAwsUtils.class);
 
+    /**
+     * Max number of concurrent SSH availability probes.
+     */
+    public static final int SSH_PROBE_MAX_THREADS = 10;
+
+    /**
+     * Overall deadline of the SSH availability probes of a batch of instances.
+     */
+    public static final int SSH_AVAILABILITY_TIMEOUT_IN_SECONDS = 6 * 60;
+
+    /**
+     * Shared prober to load each private key only once.
+     */
+    private static final SshAvailabilityProber sshAvailabilityProber = new SshAvailabilityProber();
+
     /**
      * <p>
      * Wait for the database creation and returns a {@link DBInstance} with up
@@ -479,63 +487,54 @@ public class AmazonAwsUtils {
      * Test for SSH availability on <i>instance</i>.
      * If after 5 minutes the instance is not available, and {@link IllegalStateException} is thrown
      * </p>
+     *
+     * @param instance The ec2 instance to test
+     * @param username
+     * @see SshAvailabilityProber
+     */
+    public static void awaitForSshAvailability(Instance instance, String username) {
+        sshAvailabilityProber.awaitForSshAvailability(instance, username);
+    }
+
+    /**
+     * SSH user name of the given instance according to its AMI.
+     */
+    @Nonnull
+    public static String getSshUserName(@Nonnull Instance instance) {
+        return InfrastructureCreationStep.GRAPHITE_IMAGE_ID.equals(instance.getImageId()) ? "root" : "ec2-user";
+    }
+
+    /**
      * <p>
-     * See <a href=
-     * "http://sthen.blogspot.com/2008/03/sftp-i-java-with-jsch-using-private-key.html"
-     * >SFTP in Java with JSch Using Private Key Authentication </a>
+     * Test concurrently for SSH availability on the given <code>instances</code>
+     * and terminate, in one single call, the instances that are not available
+     * within {@link #SSH_AVAILABILITY_TIMEOUT_IN_SECONDS}.
      * </p>
      * <p>
-     * See {@link JSch#addIdentity(String, byte[], byte[], byte[])} with the
-     * priv key as bytes.
+     * The probes run on a bounded thread pool ({@link #SSH_PROBE_MAX_THREADS})
+     * with one overall deadline: the duration is roughly the one of the
+     * slowest instance rather than the sum of all of them.
      * </p>
      *
-     * @param instance The ec2 instance to test
-     * @param username
-     * @see JSch#addIdentity(String, byte[], byte[], byte[])
+     * @param instances instances to test
+     * @param ec2
+     * @return the instances available through SSH, in the order of the given
+     *         <code>instances</code>
+     * @throws SshAvailabilityProber.SshConfigurationException if the SSH availability can't be tested,
+     *         no instance is terminated
      */
-    public static void awaitForSshAvailability(Instance instance, String username) {
-        try {
-            final String ip = instance.getPublicIpAddress();
-            final String host = instance.getPublicDnsName();
-
-            //Read key file
-            InputStream keyFile = Thread.currentThread().getContextClassLoader().getResourceAsStream(instance.getKeyName() + ".pem");
-            byte[] keyAsByte = new byte[keyFile.available()];
-            keyFile.read(keyAsByte);
-
-            JSch jSch = new JSch();
-            java.util.Properties config = new java.util.Properties();
-            //Dont check host name
-            config.put("StrictHostKeyChecking", "no");
-            //Use ip instead of host to prevent dns replication latency
-            Session session = jSch.getSession(username, ip);
-            session.setConfig(config);
-
-            jSch.addIdentity(username, keyAsByte, null, new byte[0]);
-            for (int i = 0; i < 60; i++) {
-                try {
-                    session.connect(5000);
-                    session.disconnect();
-                    logger.info("Instance " + host + " is valid: 'ssh -i " + instance.getKeyName() + ".pem" + " ec2-user@" + instance.getPublicIpAddress() + "' SUCCESSFUL");
-                    return;
-                } catch (JSchException jsche) {
-                    logger.debug("SSH Test - Instance not (yet) ready (" + host + ") : " + jsche.getMessage());
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            logger.error("Instance " + host + " is not valid !");
-            throw new IllegalStateException("Instance is read after 5 minutes");
-        } catch (FileNotFoundException e) {
-            Throwables.propagate(e);
-        } catch (IOException e) {
-            Throwables.propagate(e);
-        } catch (JSchException e) {
-            Throwables.propagate(e);
+    @Nonnull
+    public static List<Instance> awaitForSshAvailability(@Nonnull Collection<Instance> instances, @Nonnull AmazonEC2 ec2) {
+        List<Instance> availableInstances = sshAvailabilityProber.awaitForSshAvailability(instances, SSH_AVAILABILITY_TIMEOUT_IN_SECONDS,
+                TimeUnit.SECONDS);
+
+        List<String> unavailableInstanceIds = Lists.newArrayList(Collections2.transform(instances, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID));
+        unavailableInstanceIds.removeAll(Collections2.transform(availableInstances, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID));
+        if (!unavailableInstanceIds.isEmpty()) {
+            //Not available => terminate instances
+            ec2.terminateInstances(new TerminateInstancesRequest(unavailableInstanceIds));
         }
+        return availableInstances;
     }
 
     /**
@@ -612,75 +611,109 @@ public class AmazonAwsUtils {
         }
     }
 
+    /**
+     * Create the given tags once the given instance is visible. The given
+     * client is expected to be decorated once, where it is built, with
+     * {@link #decorateWithThrottlingRetry(AmazonEC2)} to retry the throttling
+     * and eventual consistency errors.
+     */
     public static void createTags(Instance instance, CreateTagsRequest createTagsRequest, AmazonEC2 ec2) {
-        // "AWS Error Code: InvalidInstanceID.NotFound, AWS Error Message: The instance ID 'i-d1638198' does not exist"
-        AmazonAwsUtils.awaitForEc2Instance(instance, ec2);
-
-        try {
-            ec2.createTags(createTagsRequest);
-        } catch (AmazonServiceException e) {
-            // retries 5s later
-            try {
-                Thread.sleep(5 * 1000);
-            } catch (InterruptedException e1) {
-                e1.printStackTrace();
-            }
-            ec2.createTags(createTagsRequest);
-        }
-    }
-
-    public static void deleteCnameIfExist(Iterable<String> cnames, HostedZone hostedZone, AmazonRoute53 route53) {
-        // List all
-        ListResourceRecordSetsRequest listResourceRecordSetsRequest = new ListResourceRecordSetsRequest()
-                // .withStartRecordType(RRType.CNAME)
-                .withHostedZoneId(hostedZone.getId());
-        ListResourceRecordSetsResult listResourceRecordSetsResult = route53.listResourceRecordSets(listResourceRecordSetsRequest);
-
-        if (listResourceRecordSetsResult.isTruncated()) {
-            logger.warn("truncated result");
+        if (!isRunning(instance)) {
+            // "AWS Error Code: InvalidInstanceID.NotFound, AWS Error Message: The instance ID 'i-d1638198' does not exist"
+            AmazonAwsUtils.awaitForEc2Instance(instance, ec2);
         }
 
-        Function<ResourceRecordSet, String> cnameExtractor = new Function<ResourceRecordSet, String>() {
-            @Override
-            public String apply(@Nullable ResourceRecordSet resourceRecordSet) {
-                if (resourceRecordSet == null) {
-                    return null;
-                }
-                if (!RRType.CNAME.equals(RRType.fromValue(resourceRecordSet.getType()))) {
-                    return null;
-                }
-                return resourceRecordSet.getName();
-            }
-        };
+        ec2.createTags(createTagsRequest);
+    }
 
-        Iterable<ResourceRecordSet> existingCnamesAsResourceRecordSet = Iterables.filter(listResourceRecordSetsResult.getResourceRecordSets(), new Predicate<ResourceRecordSet>() {
-            @Override
-            public boolean apply(@Nullable ResourceRecordSet resourceRecordSet) {
-                return RRType.CNAME.equals(RRType.fromValue(resourceRecordSet.getType()));
+    /**
+     * <p>
+     * Bulk tagging: instances with the same set of tags are tagged with one
+     * multi resources <code>CreateTags</code> call.
+     * </p>
+     * <p>
+     * Instances don't need to be running. Instead of waiting for each instance
+     * to be visible, the "InvalidInstanceID.NotFound" eventual consistency
+     * errors are expected to be retried with a backoff, once for the whole
+     * batch, by the given client, see
+     * {@link #decorateWithThrottlingRetry(AmazonEC2)}.
+     * </p>
+     *
+     * @param tagsByInstance tags to create on each instance
+     * @return the number of <code>CreateTags</code> calls
+     */
+    public static int createTags(@Nonnull Map<Instance, ? extends Collection<Tag>> tagsByInstance, @Nonnull AmazonEC2 ec2) {
+        // group the instances by identical set of tags
+        Map<Set<Tag>, List<String>> instanceIdsByTags = Maps.newLinkedHashMap();
+        for (Map.Entry<Instance, ? extends Collection<Tag>> entry : tagsByInstance.entrySet()) {
+            Set<Tag> tags = ImmutableSet.copyOf(entry.getValue());
+            List<String> instanceIds = instanceIdsByTags.get(tags);
+            if (instanceIds == null) {
+                instanceIds = Lists.newArrayList();
+                instanceIdsByTags.put(tags, instanceIds);
             }
-        });
-
-        final ImmutableMap<String, ResourceRecordSet> existingCnames = Maps.uniqueIndex(existingCnamesAsResourceRecordSet, cnameExtractor);
+            instanceIds.add(entry.getKey().getInstanceId());
+        }
 
+        for (Map.Entry<Set<Tag>, List<String>> entry : instanceIdsByTags.entrySet()) {
+            logger.debug("Tag {} with {}", entry.getValue(), entry.getKey());
+            ec2.createTags(new CreateTagsRequest(entry.getValue(), Lists.newArrayList(entry.getKey())));
+        }
+        logger.info("Tagged {} instances with {} CreateTags calls", tagsByInstance.size(), instanceIdsByTags.size());
+        return instanceIdsByTags.size();
+    }
 
-        Sets.SetView<String> cnamesToDelete = Sets.intersection(Sets.newHashSet(cnames), existingCnames.keySet());
+    private static boolean isRunning(@Nonnull Instance instance) {
+        return instance.getState() != null && InstanceStateName.Running.toString().equals(instance.getState().getName())
+                && instance.getPublicIpAddress() != null && instance.getPublicDnsName() != null;
+    }
 
-        Function<String, Change> cnameToDeleteCnameChange = new Function<String, Change>() {
-            @Override
-            public Change apply(@Nullable String cname) {
-                ResourceRecordSet existingResourceRecordSet = existingCnames.get(cname);
+    /**
+     * Decorate the given client with a rate limiter per API family and retries
+     * of the throttling errors. The "InvalidInstanceID.NotFound" eventual
+     * consistency errors are only retried on the CreateTags and Describe*
+     * calls that follow a launch, an unknown instance id given to any other
+     * call is reported at once. If the given client is already decorated, it
+     * is returned as is.
+     *
+     * @see ThrottlingRetryInvocationHandler
+     */
+    @Nonnull
+    public static AmazonEC2 decorateWithThrottlingRetry(@Nonnull AmazonEC2 ec2) {
+        if (Proxy.isProxyClass(ec2.getClass()) && Proxy.getInvocationHandler(ec2) instanceof ThrottlingRetryInvocationHandler) {
+            return ec2;
+        }
+        ThrottlingRetryInvocationHandler handler = new ThrottlingRetryInvocationHandler(ec2, "AmazonEC2")
+                .withRetryableErrorCode("InvalidInstanceID.NotFound", "createTags", "describe");
+        return ThrottlingRetryInvocationHandler.decorate(ec2, AmazonEC2.class, handler);
+    }
 
-                return new Change()
-                        .withAction(ChangeAction.DELETE)
-                        .withResourceRecordSet(new ResourceRecordSet()
-                                .withType(RRType.CNAME)
-                                .withName(cname)
-                                .withTTL(existingResourceRecordSet.getTTL())
-                                .withResourceRecords(existingResourceRecordSet.getResourceRecords()));
+    /**
+     * Delete the given CNAMEs if they exist in the given hosted zone. The
+     * record sets of the zone are streamed page by page (see
+     * {@link ResourceRecordSetIterator}) until all the given CNAMEs are
+     * found.
+     */
+    public static void deleteCnameIfExist(Iterable<String> cnames, HostedZone hostedZone, AmazonRoute53 route53) {
+        Set<String> cnamesToFind = Sets.newHashSet(cnames);
+
+        List<Change> changes = Lists.newArrayList();
+        ResourceRecordSetIterator existingCnames = new ResourceRecordSetIterator(hostedZone.getId(), route53).withType(RRType.CNAME);
+        while (!cnamesToFind.isEmpty() && existingCnames.hasNext()) {
+            ResourceRecordSet existingCname = existingCnames.next();
+            if (!cnamesToFind.remove(existingCname.getName())) {
+                continue;
             }
-        };
+            changes.add(new Change()
+                    .withAction(ChangeAction.DELETE)
+                    .withResourceRecordSet(new ResourceRecordSet()
+                            .withType(RRType.CNAME)
+                            .withName(existingCname.getName())
+                            .withTTL(existingCname.getTTL())
+                            .withResourceRecords(existingCname.getResourceRecords())));
+        }
+        logger.debug("Listed {} pages of hosted zone {}", existingCnames.getPageCount(), hostedZone.getName());
 
-        List<Change> changes = Lists.newArrayList(Iterables.transform(cnamesToDelete, cnameToDeleteCnameChange));
         if (changes.isEmpty()) {
             logger.debug("No CNAME to delete");
             return;
@@ -693,6 +726,11 @@ public class AmazonAwsUtils {
         route53.changeResourceRecordSets(changeResourceRecordSetsRequest);
     }
 
+    /**
+     * Create the given CNAMEs in one batch, fails if a CNAME already exists.
+     *
+     * @see Route53CnamesWriter to create or update CNAMEs
+     */
     public static void createCnamesForInstances(Map<String, Instance> cnameToInstances, HostedZone hostedZone, AmazonRoute53 route53) {
         Function<Map.Entry<String, Instance>, Change> cnameAndInstanceToChange = new Function<Map.Entry<String, Instance>, Change>() {
             @Override
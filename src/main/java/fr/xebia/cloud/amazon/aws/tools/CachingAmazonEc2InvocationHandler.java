@@ -0,0 +1,566 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeTagsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagDescription;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * <p>
+ * In process write-through cache of the EC2 instances state and tags behind
+ * an {@link AmazonEC2} decorator, shared by the waiters, the topology
+ * scanners and the terminators that use the same client.
+ * </p>
+ * <ul>
+ * <li>{@link AmazonEC2#describeInstances(DescribeInstancesRequest)} by
+ * instance ids and {@link AmazonEC2#describeTags(DescribeTagsRequest)} by
+ * "resource-id" are served from the cache when all the requested instances
+ * are fresh. Instances in a transitional state (pending, stopping,
+ * shutting-down) are never considered fresh.</li>
+ * <li>The results of <code>RunInstances</code>, <code>DescribeInstances</code>
+ * , <code>CreateTags</code> and <code>TerminateInstances</code> update the
+ * cache.</li>
+ * <li>Concurrent identical <code>describeInstances</code> and
+ * <code>describeTags</code> calls are merged into one single call. The
+ * requests are identified by a snapshot of their fields taken when the call
+ * starts, a caller modifying its request afterwards doesn't alter the
+ * cache.</li>
+ * <li>The cached instances are immutable copies: each caller receives its own
+ * copy of the results and the cache updates replace the cached copy.</li>
+ * </ul>
+ * <p>
+ * All the other methods are delegated untouched.
+ * </p>
+ */
+public class CachingAmazonEc2InvocationHandler implements InvocationHandler {
+
+    private static class CachedInstance {
+        /**
+         * Never modified once cached, see
+         * {@link CachingAmazonEc2InvocationHandler#copy(Instance)}.
+         */
+        final Instance instance;
+
+        final Reservation reservation;
+
+        final long timestampInMillis;
+
+        CachedInstance(Instance instance, Reservation reservation, long timestampInMillis) {
+            this.instance = instance;
+            this.reservation = reservation;
+            this.timestampInMillis = timestampInMillis;
+        }
+
+        /**
+         * @return a copy of this entry with the given instance
+         */
+        CachedInstance with(Instance instance) {
+            return new CachedInstance(instance, reservation, timestampInMillis);
+        }
+    }
+
+    private static class CachedValue {
+        final Object value;
+
+        final long timestampInMillis;
+
+        CachedValue(Object value, long timestampInMillis) {
+            this.value = value;
+            this.timestampInMillis = timestampInMillis;
+        }
+    }
+
+    private static final Set<String> TRANSITIONAL_STATES = ImmutableSet.of(InstanceStateName.Pending.toString(),
+            InstanceStateName.ShuttingDown.toString(), InstanceStateName.Stopping.toString());
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingAmazonEc2InvocationHandler.class);
+
+    /**
+     * Setters of the {@link Instance} properties indexed by getter, used to
+     * copy the instances without depending on the list of properties of the
+     * SDK version.
+     */
+    private static final Map<Method, Method> INSTANCE_SETTERS_BY_GETTER = findSettersByGetter(Instance.class);
+
+    /**
+     * Decorate the given <code>ec2</code> client with an instance state and
+     * tags cache.
+     *
+     * @param ec2       the client to decorate
+     * @param freshness max age of the cached state
+     * @param timeUnit
+     */
+    @Nonnull
+    public static AmazonEC2 decorate(@Nonnull AmazonEC2 ec2, long freshness, @Nonnull TimeUnit timeUnit) {
+        return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(), new Class<?>[]{AmazonEC2.class},
+                new CachingAmazonEc2InvocationHandler(ec2, timeUnit.toMillis(freshness)));
+    }
+
+    /**
+     * Decorate the given <code>ec2</code> client with an instance state and
+     * tags cache with a freshness of 5 seconds.
+     */
+    @Nonnull
+    public static AmazonEC2 decorate(@Nonnull AmazonEC2 ec2) {
+        return decorate(ec2, 5, TimeUnit.SECONDS);
+    }
+
+    private final AmazonEC2 delegate;
+
+    private final long freshnessInMillis;
+
+    private final ConcurrentMap<String, CachedInstance> instancesById = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<List<Object>, CachedValue> tagDescriptionsByRequest = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<List<Object>, FutureTask<Object>> inFlightCalls = Maps.newConcurrentMap();
+
+    private final AtomicInteger cacheHitCount = new AtomicInteger();
+
+    private final AtomicInteger mergedCallCount = new AtomicInteger();
+
+    private final AtomicInteger delegatedCallCount = new AtomicInteger();
+
+    public CachingAmazonEc2InvocationHandler(@Nonnull AmazonEC2 delegate, long freshnessInMillis) {
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.freshnessInMillis = freshnessInMillis;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String methodName = method.getName();
+        if ("toString".equals(methodName) && method.getParameterTypes().length == 0) {
+            return toString();
+        }
+
+        if ("describeInstances".equals(methodName)) {
+            DescribeInstancesRequest describeInstancesRequest = args == null ? null : (DescribeInstancesRequest) args[0];
+            List<Object> key = toKey(describeInstancesRequest);
+            DescribeInstancesResult cachedResult = getCachedDescribeInstancesResult(describeInstancesRequest);
+            if (cachedResult != null) {
+                cacheHitCount.incrementAndGet();
+                return cachedResult;
+            }
+            DescribeInstancesResult result = (DescribeInstancesResult) invokeMerged(key, method, args);
+            cacheReservations(result.getReservations());
+            return copy(result);
+        } else if ("describeTags".equals(methodName)) {
+            DescribeTagsRequest describeTagsRequest = args == null ? null : (DescribeTagsRequest) args[0];
+            List<Object> key = toKey(describeTagsRequest);
+            DescribeTagsResult cachedResult = getCachedDescribeTagsResult(key, describeTagsRequest);
+            if (cachedResult != null) {
+                cacheHitCount.incrementAndGet();
+                return cachedResult;
+            }
+            DescribeTagsResult result = (DescribeTagsResult) invokeMerged(key, method, args);
+            tagDescriptionsByRequest.put(key, new CachedValue(copy(result), System.currentTimeMillis()));
+            return copy(result);
+        }
+
+        Object result = invokeDelegate(method, args);
+
+        if ("runInstances".equals(methodName)) {
+            cacheReservations(Arrays.asList(((RunInstancesResult) result).getReservation()));
+        } else if ("createTags".equals(methodName)) {
+            CreateTagsRequest createTagsRequest = (CreateTagsRequest) args[0];
+            tagDescriptionsByRequest.clear();
+            for (String resourceId : createTagsRequest.getResources()) {
+                mergeTags(resourceId, createTagsRequest.getTags());
+            }
+        } else if ("deleteTags".equals(methodName)) {
+            tagDescriptionsByRequest.clear();
+            instancesById.keySet().removeAll(((DeleteTagsRequest) args[0]).getResources());
+        } else if ("terminateInstances".equals(methodName)) {
+            tagDescriptionsByRequest.clear();
+            for (InstanceStateChange instanceStateChange : ((TerminateInstancesResult) result).getTerminatingInstances()) {
+                updateState(instanceStateChange.getInstanceId(), instanceStateChange.getCurrentState());
+            }
+        } else if ("stopInstances".equals(methodName)) {
+            instancesById.keySet().removeAll(((StopInstancesRequest) args[0]).getInstanceIds());
+        } else if ("startInstances".equals(methodName)) {
+            instancesById.keySet().removeAll(((StartInstancesRequest) args[0]).getInstanceIds());
+        }
+        return result;
+    }
+
+    /**
+     * @return <code>null</code> if the request is not by instance ids or if
+     *         one of the requested instances is not fresh.
+     */
+    @Nullable
+    private DescribeInstancesResult getCachedDescribeInstancesResult(@Nullable DescribeInstancesRequest describeInstancesRequest) {
+        if (describeInstancesRequest == null || !describeInstancesRequest.getFilters().isEmpty()
+                || describeInstancesRequest.getInstanceIds().isEmpty()) {
+            return null;
+        }
+        // group instances by reservation to mimic the EC2 response
+        Map<String, Reservation> reservationsById = Maps.newLinkedHashMap();
+        for (String instanceId : describeInstancesRequest.getInstanceIds()) {
+            CachedInstance cachedInstance = getFreshInstance(instanceId);
+            if (cachedInstance == null) {
+                return null;
+            }
+            String reservationId = cachedInstance.reservation.getReservationId();
+            Reservation reservation = reservationsById.get(reservationId);
+            if (reservation == null) {
+                reservation = new Reservation() //
+                        .withReservationId(reservationId) //
+                        .withOwnerId(cachedInstance.reservation.getOwnerId()) //
+                        .withRequesterId(cachedInstance.reservation.getRequesterId());
+                reservationsById.put(reservationId, reservation);
+            }
+            reservation.getInstances().add(copy(cachedInstance.instance));
+        }
+        return new DescribeInstancesResult().withReservations(reservationsById.values());
+    }
+
+    /**
+     * @param key snapshot of the request, see {@link #toKey(DescribeTagsRequest)}
+     * @return <code>null</code> if the request is neither a previously cached
+     *         request nor a "resource-id" request of fresh instances.
+     */
+    @Nullable
+    private DescribeTagsResult getCachedDescribeTagsResult(@Nonnull List<Object> key, @Nullable DescribeTagsRequest describeTagsRequest) {
+        CachedValue cachedValue = tagDescriptionsByRequest.get(key);
+        if (cachedValue != null && System.currentTimeMillis() - cachedValue.timestampInMillis < freshnessInMillis) {
+            return copy((DescribeTagsResult) cachedValue.value);
+        }
+        if (describeTagsRequest == null) {
+            return null;
+        }
+
+        List<Filter> filters = describeTagsRequest.getFilters();
+        if (filters.size() != 1 || !"resource-id".equals(filters.get(0).getName())) {
+            return null;
+        }
+        List<TagDescription> tagDescriptions = Lists.newArrayList();
+        for (String instanceId : filters.get(0).getValues()) {
+            CachedInstance cachedInstance = getFreshInstance(instanceId);
+            if (cachedInstance == null) {
+                return null;
+            }
+            for (Tag tag : cachedInstance.instance.getTags()) {
+                tagDescriptions.add(new TagDescription() //
+                        .withResourceId(instanceId) //
+                        .withResourceType("instance") //
+                        .withKey(tag.getKey()) //
+                        .withValue(tag.getValue()));
+            }
+        }
+        return new DescribeTagsResult().withTags(tagDescriptions);
+    }
+
+    @Nullable
+    private CachedInstance getFreshInstance(@Nonnull String instanceId) {
+        CachedInstance cachedInstance = instancesById.get(instanceId);
+        if (cachedInstance == null || System.currentTimeMillis() - cachedInstance.timestampInMillis >= freshnessInMillis) {
+            return null;
+        }
+        if (cachedInstance.instance.getState() == null || TRANSITIONAL_STATES.contains(cachedInstance.instance.getState().getName())) {
+            return null;
+        }
+        return cachedInstance;
+    }
+
+    private void cacheReservations(@Nonnull Iterable<Reservation> reservations) {
+        long now = System.currentTimeMillis();
+        for (Reservation reservation : reservations) {
+            for (Instance instance : reservation.getInstances()) {
+                instancesById.put(instance.getInstanceId(), new CachedInstance(copy(instance), reservation, now));
+            }
+        }
+    }
+
+    /**
+     * Replace the cached instance, if any, by a copy with the given tags
+     * merged. Concurrent updates of the same instance are retried.
+     */
+    private void mergeTags(@Nonnull String instanceId, @Nonnull List<Tag> tags) {
+        while (true) {
+            CachedInstance cachedInstance = instancesById.get(instanceId);
+            if (cachedInstance == null) {
+                return;
+            }
+            List<Tag> mergedTags = Lists.newArrayList(cachedInstance.instance.getTags());
+            for (Tag tag : tags) {
+                for (Iterator<Tag> itMergedTag = mergedTags.iterator(); itMergedTag.hasNext(); ) {
+                    if (itMergedTag.next().getKey().equals(tag.getKey())) {
+                        itMergedTag.remove();
+                    }
+                }
+                mergedTags.add(tag);
+            }
+            Instance instance = copy(cachedInstance.instance);
+            instance.setTags(copy(mergedTags));
+            if (instancesById.replace(instanceId, cachedInstance, cachedInstance.with(instance))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replace the cached instance, if any, by a copy with the given state.
+     * Concurrent updates of the same instance are retried.
+     */
+    private void updateState(@Nonnull String instanceId, @Nonnull InstanceState state) {
+        while (true) {
+            CachedInstance cachedInstance = instancesById.get(instanceId);
+            if (cachedInstance == null) {
+                return;
+            }
+            Instance instance = copy(cachedInstance.instance);
+            instance.setState(new InstanceState().withCode(state.getCode()).withName(state.getName()));
+            if (instancesById.replace(instanceId, cachedInstance, cachedInstance.with(instance))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copy of the given instance: the properties are copied by their setters,
+     * the collections are copied, and the state and the tags, that are updated
+     * by this cache, are deep-copied.
+     */
+    @Nonnull
+    static Instance copy(@Nonnull Instance instance) {
+        Instance copy = new Instance();
+        try {
+            for (Map.Entry<Method, Method> entry : INSTANCE_SETTERS_BY_GETTER.entrySet()) {
+                Object value = entry.getKey().invoke(instance);
+                if (value instanceof Collection) {
+                    value = Lists.newArrayList((Collection<?>) value);
+                }
+                entry.getValue().invoke(copy, value);
+            }
+        } catch (IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        } catch (InvocationTargetException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        InstanceState state = instance.getState();
+        copy.setState(state == null ? null : new InstanceState().withCode(state.getCode()).withName(state.getName()));
+        copy.setTags(copy(instance.getTags()));
+        return copy;
+    }
+
+    @Nonnull
+    private static List<Tag> copy(@Nonnull List<Tag> tags) {
+        List<Tag> copy = Lists.newArrayList();
+        for (Tag tag : tags) {
+            copy.add(new Tag(tag.getKey(), tag.getValue()));
+        }
+        return copy;
+    }
+
+    @Nonnull
+    private static DescribeInstancesResult copy(@Nonnull DescribeInstancesResult result) {
+        List<Reservation> reservations = Lists.newArrayList();
+        for (Reservation reservation : result.getReservations()) {
+            List<Instance> instances = Lists.newArrayList();
+            for (Instance instance : reservation.getInstances()) {
+                instances.add(copy(instance));
+            }
+            reservations.add(new Reservation() //
+                    .withReservationId(reservation.getReservationId()) //
+                    .withOwnerId(reservation.getOwnerId()) //
+                    .withRequesterId(reservation.getRequesterId()) //
+                    .withGroupNames(Lists.newArrayList(reservation.getGroupNames())) //
+                    .withGroups(Lists.newArrayList(reservation.getGroups())) //
+                    .withInstances(instances));
+        }
+        return new DescribeInstancesResult().withReservations(reservations);
+    }
+
+    @Nonnull
+    private static DescribeTagsResult copy(@Nonnull DescribeTagsResult result) {
+        List<TagDescription> tagDescriptions = Lists.newArrayList();
+        for (TagDescription tagDescription : result.getTags()) {
+            tagDescriptions.add(new TagDescription() //
+                    .withResourceId(tagDescription.getResourceId()) //
+                    .withResourceType(tagDescription.getResourceType()) //
+                    .withKey(tagDescription.getKey()) //
+                    .withValue(tagDescription.getValue()));
+        }
+        return new DescribeTagsResult().withTags(tagDescriptions);
+    }
+
+    /**
+     * @return the <code>setXxx(...)</code> method of each public
+     *         <code>getXxx()</code> method of the given bean class that has a
+     *         setter accepting the getter type.
+     */
+    @Nonnull
+    private static Map<Method, Method> findSettersByGetter(@Nonnull Class<?> beanClass) {
+        Map<Method, Method> settersByGetter = Maps.newHashMap();
+        for (Method getter : beanClass.getMethods()) {
+            if (!getter.getName().startsWith("get") || getter.getParameterTypes().length != 0
+                    || getter.getDeclaringClass() == Object.class) {
+                continue;
+            }
+            String setterName = "set" + getter.getName().substring("get".length());
+            for (Method setter : beanClass.getMethods()) {
+                if (setter.getName().equals(setterName) && setter.getParameterTypes().length == 1
+                        && setter.getParameterTypes()[0].isAssignableFrom(getter.getReturnType())) {
+                    settersByGetter.put(getter, setter);
+                    break;
+                }
+            }
+        }
+        return settersByGetter;
+    }
+
+    /**
+     * Merge concurrent identical calls into one single call to the delegate.
+     *
+     * @param key snapshot of the request identifying identical calls
+     */
+    private Object invokeMerged(@Nonnull List<Object> key, @Nonnull final Method method, @Nullable final Object[] args) throws Exception {
+        FutureTask<Object> call = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return invokeDelegate(method, args);
+            }
+        });
+        FutureTask<Object> inFlightCall = inFlightCalls.putIfAbsent(key, call);
+        if (inFlightCall == null) {
+            try {
+                call.run();
+            } finally {
+                inFlightCalls.remove(key, call);
+            }
+            inFlightCall = call;
+        } else {
+            mergedCallCount.incrementAndGet();
+            logger.trace("Merge concurrent call {}", key);
+        }
+        try {
+            return inFlightCall.get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private Object invokeDelegate(@Nonnull Method method, @Nullable Object[] args) throws Exception {
+        delegatedCallCount.incrementAndGet();
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * @return a snapshot of the fields of the given request, not affected by
+     *         later modifications of the request
+     */
+    @Nonnull
+    private static List<Object> toKey(@Nullable DescribeInstancesRequest describeInstancesRequest) {
+        if (describeInstancesRequest == null) {
+            return ImmutableList.<Object>of("describeInstances");
+        }
+        return ImmutableList.<Object>of("describeInstances", ImmutableList.copyOf(describeInstancesRequest.getInstanceIds()),
+                toKey(describeInstancesRequest.getFilters()));
+    }
+
+    /**
+     * @return a snapshot of the fields of the given request, not affected by
+     *         later modifications of the request
+     */
+    @Nonnull
+    private static List<Object> toKey(@Nullable DescribeTagsRequest describeTagsRequest) {
+        if (describeTagsRequest == null) {
+            return ImmutableList.<Object>of("describeTags");
+        }
+        return ImmutableList.<Object>of("describeTags", toKey(describeTagsRequest.getFilters()));
+    }
+
+    @Nonnull
+    private static List<Object> toKey(@Nonnull List<Filter> filters) {
+        ImmutableList.Builder<Object> key = ImmutableList.builder();
+        for (Filter filter : filters) {
+            key.add(ImmutableList.of(Strings.nullToEmpty(filter.getName()), ImmutableList.copyOf(filter.getValues())));
+        }
+        return key.build();
+    }
+
+    public int getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    public int getMergedCallCount() {
+        return mergedCallCount.get();
+    }
+
+    public int getDelegatedCallCount() {
+        return delegatedCallCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{delegate=" + delegate + ", freshnessInMillis=" + freshnessInMillis + ", cachedInstances="
+                + instancesById.size() + ", cacheHitCount=" + cacheHitCount + ", mergedCallCount=" + mergedCallCount
+                + ", delegatedCallCount=" + delegatedCallCount + "}";
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * <p>
+ * Wait for the startup of a batch of EC2 instances with a single
+ * {@link AmazonEC2#describeInstances(DescribeInstancesRequest)} call per poll
+ * tick for all the still pending instances.
+ * </p>
+ * <p>
+ * An instance is considered started as soon as it is
+ * {@link InstanceStateName#Running} and its public ip address and public dns
+ * name are known. Instances that die at startup (typically a
+ * "Server.InternalError: Internal error on launch") are terminated in a single
+ * {@link AmazonEC2#terminateInstances(TerminateInstancesRequest)} call and
+ * skipped.
+ * </p>
+ * <p>
+ * Instances still pending when the batch timeout expires are returned with
+ * their last known state, consistently with
+ * {@link AmazonAwsUtils#awaitForEc2Instance(Instance, AmazonEC2)}.
+ * </p>
+ */
+public class Ec2InstancesStartupAwaiter {
+
+    /**
+     * Notified as soon as each instance of the batch is started or dead.
+     */
+    public interface Listener {
+
+        void instanceStarted(@Nonnull Instance instance);
+
+        void instanceDied(@Nonnull Instance instance);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(Ec2InstancesStartupAwaiter.class);
+
+    private final AmazonEC2 ec2;
+
+    private long pollingIntervalInMillis = TimeUnit.SECONDS.toMillis(3);
+
+    private long timeoutInMillis = TimeUnit.MINUTES.toMillis(2);
+
+    private final AtomicInteger describeInstancesCallCount = new AtomicInteger();
+
+    private final AtomicInteger terminateInstancesCallCount = new AtomicInteger();
+
+    public Ec2InstancesStartupAwaiter(@Nonnull AmazonEC2 ec2) {
+        this.ec2 = Preconditions.checkNotNull(ec2);
+    }
+
+    @Nonnull
+    public Ec2InstancesStartupAwaiter withPollingInterval(long pollingInterval, @Nonnull TimeUnit timeUnit) {
+        this.pollingIntervalInMillis = timeUnit.toMillis(pollingInterval);
+        return this;
+    }
+
+    @Nonnull
+    public Ec2InstancesStartupAwaiter withTimeout(long timeout, @Nonnull TimeUnit timeUnit) {
+        this.timeoutInMillis = timeUnit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * @see #await(Iterable, Listener)
+     */
+    @Nonnull
+    public List<Instance> await(@Nonnull Iterable<Instance> instances) {
+        return await(instances, null);
+    }
+
+    /**
+     * Wait for the startup of the given instances.
+     *
+     * @param instances instances to wait for
+     * @param listener  optional listener notified as soon as each instance is
+     *                  started or dead
+     * @return up to date started instances (and timed out instances), in the
+     *         order of the given <code>instances</code>, dead instances are
+     *         excluded
+     */
+    @Nonnull
+    public List<Instance> await(@Nonnull Iterable<Instance> instances, @Nullable Listener listener) {
+        long startTimeInMillis = System.currentTimeMillis();
+        long deadlineInMillis = startTimeInMillis + timeoutInMillis;
+        int initialDescribeInstancesCallCount = describeInstancesCallCount.get();
+
+        // preserve the order of the given instances
+        Map<String, Instance> instancesById = Maps.newLinkedHashMap();
+        for (Instance instance : instances) {
+            instancesById.put(instance.getInstanceId(), instance);
+        }
+        Map<String, Instance> pendingInstancesById = Maps.newLinkedHashMap(instancesById);
+        List<String> deadInstanceIds = Lists.newArrayList();
+
+        while (!pendingInstancesById.isEmpty()) {
+            if (System.currentTimeMillis() > deadlineInMillis) {
+                logger.warn("Timeout waiting for startup of {}", pendingInstancesById.keySet());
+                break;
+            }
+            try {
+                // initially wait to prevent "InvalidInstanceID.NotFound, AWS Error Message: The instance ID 'i-2f79c967' does not exist"
+                Thread.sleep(pollingIntervalInMillis);
+            } catch (InterruptedException e) {
+                throw Throwables.propagate(e);
+            }
+
+            Iterable<Instance> describedInstances;
+            try {
+                describeInstancesCallCount.incrementAndGet();
+                DescribeInstancesRequest describeInstancesRequest = new DescribeInstancesRequest().withInstanceIds(pendingInstancesById.keySet());
+                describedInstances = AmazonAwsUtils.toEc2Instances(ec2.describeInstances(describeInstancesRequest).getReservations());
+            } catch (AmazonServiceException e) {
+                if ("InvalidInstanceID.NotFound".equals(e.getErrorCode())) {
+                    logger.trace("Instances not yet visible, retry: {}", e.getMessage());
+                    continue;
+                }
+                throw e;
+            }
+
+            List<String> dyingInstanceIds = Lists.newArrayList();
+            for (Instance instance : describedInstances) {
+                String instanceId = instance.getInstanceId();
+                instancesById.put(instanceId, instance);
+                String stateName = instance.getState() == null ? null : instance.getState().getName();
+
+                if (InstanceStateName.ShuttingDown.toString().equals(stateName) || InstanceStateName.Terminated.toString().equals(stateName)) {
+                    // typically a "Server.InternalError: Internal error on launch"
+                    logger.warn("Terminate and skip dying instance {} (stateReason={}, stateTransitionReason={}): {}",
+                            new Object[]{instanceId, instance.getStateReason(), instance.getStateTransitionReason(), instance});
+                    pendingInstancesById.remove(instanceId);
+                    dyingInstanceIds.add(instanceId);
+                    if (listener != null) {
+                        listener.instanceDied(instance);
+                    }
+                } else if (InstanceStateName.Running.toString().equals(stateName) && instance.getPublicIpAddress() != null
+                        && instance.getPublicDnsName() != null) {
+                    logger.debug("Instance {} is started: {}", instanceId, instance);
+                    pendingInstancesById.remove(instanceId);
+                    if (listener != null) {
+                        listener.instanceStarted(instance);
+                    }
+                } else {
+                    logger.trace("Wait for startup of {}: {}", instanceId, instance);
+                }
+            }
+
+            if (!dyingInstanceIds.isEmpty()) {
+                deadInstanceIds.addAll(dyingInstanceIds);
+                try {
+                    terminateInstancesCallCount.incrementAndGet();
+                    ec2.terminateInstances(new TerminateInstancesRequest(dyingInstanceIds));
+                } catch (Exception e) {
+                    logger.warn("Silently ignore exception terminating dying instances {}", dyingInstanceIds, e);
+                }
+            }
+        }
+
+        for (String deadInstanceId : deadInstanceIds) {
+            instancesById.remove(deadInstanceId);
+        }
+
+        logger.info("Waited {}ms for the startup of {} instances ({} dead, {} timed out) with {} DescribeInstances calls",
+                new Object[]{System.currentTimeMillis() - startTimeInMillis, instancesById.size() + deadInstanceIds.size(),
+                        deadInstanceIds.size(), pendingInstancesById.size(),
+                        describeInstancesCallCount.get() - initialDescribeInstancesCallCount});
+
+        return Lists.newArrayList(instancesById.values());
+    }
+
+    /**
+     * Total number of {@link AmazonEC2#describeInstances(DescribeInstancesRequest)}
+     * calls issued by this awaiter.
+     */
+    public int getDescribeInstancesCallCount() {
+        return describeInstancesCallCount.get();
+    }
+
+    /**
+     * Total number of {@link AmazonEC2#terminateInstances(TerminateInstancesRequest)}
+     * calls issued by this awaiter.
+     */
+    public int getTerminateInstancesCallCount() {
+        return terminateInstancesCallCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{pollingIntervalInMillis=" + pollingIntervalInMillis + ", timeoutInMillis=" + timeoutInMillis
+                + ", describeInstancesCallCount=" + describeInstancesCallCount + ", terminateInstancesCallCount="
+                + terminateInstancesCallCount + "}";
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * <p>
+ * Awaits for many healthcheck urls to return 200/OK at once.
+ * </p>
+ * <p>
+ * Each url is polled by a task scheduled on a small shared thread pool, with
+ * an exponential backoff between two polls, through a shared pooled http
+ * client: no thread is blocked while waiting between two polls and the
+ * connections are reused. The caller gets one {@link ListenableFuture} per
+ * url.
+ * </p>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * HttpAvailabilityChecker checker = new HttpAvailabilityChecker();
+ * try {
+ *     Map&lt;String, ListenableFuture&lt;String&gt;&gt; availabilities = checker.awaitForHttpAvailability(urls);
+ *     Futures.successfulAsList(availabilities.values()).get();
+ * } finally {
+ *     checker.close();
+ * }
+ * </pre></code>
+ */
+public class HttpAvailabilityChecker {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpAvailabilityChecker.class);
+
+    private final PoolingClientConnectionManager connectionManager;
+
+    private final DefaultHttpClient httpClient;
+
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * Futures returned to the callers and not yet completed, cancelled by
+     * {@link #close()}.
+     */
+    private final Set<SettableFuture<String>> pendingFutures = Sets.newSetFromMap(Maps
+            .<SettableFuture<String>, Boolean>newConcurrentMap());
+
+    private long initialDelayInMillis = TimeUnit.SECONDS.toMillis(1);
+
+    private long maxDelayInMillis = TimeUnit.SECONDS.toMillis(10);
+
+    private long timeoutInMillis = TimeUnit.MINUTES.toMillis(6);
+
+    public HttpAvailabilityChecker() {
+        this(4);
+    }
+
+    /**
+     * @param threadCount number of threads polling the urls, polls are short
+     *                    (1 sec connect and read timeouts), a few threads are
+     *                    enough for tens of urls.
+     */
+    public HttpAvailabilityChecker(int threadCount) {
+        connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setMaxTotal(Math.max(20, threadCount));
+        connectionManager.setDefaultMaxPerRoute(2);
+
+        httpClient = new DefaultHttpClient(connectionManager);
+        HttpParams httpParams = httpClient.getParams();
+        HttpConnectionParams.setConnectionTimeout(httpParams, 1000);
+        HttpConnectionParams.setSoTimeout(httpParams, 1000);
+
+        scheduledExecutorService = Executors.newScheduledThreadPool(threadCount);
+    }
+
+    /**
+     * Delay before the first poll, then doubled after each failed poll up to
+     * {@link #withMaxDelay(long, TimeUnit)}.
+     */
+    @Nonnull
+    public HttpAvailabilityChecker withInitialDelay(long initialDelay, @Nonnull TimeUnit timeUnit) {
+        this.initialDelayInMillis = timeUnit.toMillis(initialDelay);
+        return this;
+    }
+
+    @Nonnull
+    public HttpAvailabilityChecker withMaxDelay(long maxDelay, @Nonnull TimeUnit timeUnit) {
+        this.maxDelayInMillis = timeUnit.toMillis(maxDelay);
+        return this;
+    }
+
+    /**
+     * Timeout of each url.
+     */
+    @Nonnull
+    public HttpAvailabilityChecker withTimeout(long timeout, @Nonnull TimeUnit timeUnit) {
+        this.timeoutInMillis = timeUnit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * @param healthCheckUrls
+     * @return the future availability of each url, see
+     *         {@link #awaitForHttpAvailability(String)}
+     */
+    @Nonnull
+    public Map<String, ListenableFuture<String>> awaitForHttpAvailability(@Nonnull Iterable<String> healthCheckUrls) {
+        Map<String, ListenableFuture<String>> result = Maps.newLinkedHashMap();
+        for (String healthCheckUrl : healthCheckUrls) {
+            result.put(healthCheckUrl, awaitForHttpAvailability(healthCheckUrl));
+        }
+        return result;
+    }
+
+    /**
+     * @param healthCheckUrl
+     * @return a future that returns the given url as soon as it returns
+     *         200/OK or that fails with an {@link IllegalStateException} if
+     *         the url did not return 200/OK within the timeout. The future is
+     *         cancelled if this checker is closed before.
+     */
+    @Nonnull
+    public ListenableFuture<String> awaitForHttpAvailability(@Nonnull String healthCheckUrl) {
+        final SettableFuture<String> future = SettableFuture.create();
+        pendingFutures.add(future);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                pendingFutures.remove(future);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        HealthCheck healthCheck = new HealthCheck(healthCheckUrl, future, System.currentTimeMillis() + timeoutInMillis);
+        scheduledExecutorService.schedule(healthCheck, initialDelayInMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * Cancel pending health checks and their futures and release the http
+     * connections.
+     */
+    public void close() {
+        scheduledExecutorService.shutdownNow();
+        // the dropped tasks would never complete their futures
+        for (SettableFuture<String> pendingFuture : Lists.newArrayList(pendingFutures)) {
+            pendingFuture.cancel(false);
+        }
+        connectionManager.shutdown();
+    }
+
+    private class HealthCheck implements Runnable {
+        private final String healthCheckUrl;
+
+        private final SettableFuture<String> future;
+
+        private final long deadlineInMillis;
+
+        private long delayInMillis = initialDelayInMillis;
+
+        private HealthCheck(String healthCheckUrl, SettableFuture<String> future, long deadlineInMillis) {
+            this.healthCheckUrl = healthCheckUrl;
+            this.future = future;
+            this.deadlineInMillis = deadlineInMillis;
+        }
+
+        @Override
+        public void run() {
+            if (future.isCancelled()) {
+                return;
+            }
+            RuntimeException cause;
+            HttpGet httpGet = new HttpGet(healthCheckUrl);
+            try {
+                HttpResponse response = httpClient.execute(httpGet);
+                int responseCode = response.getStatusLine().getStatusCode();
+                // release the connection to the pool
+                EntityUtils.consume(response.getEntity());
+                if (HttpStatus.SC_OK == responseCode) {
+                    logger.info("URL {} is available", healthCheckUrl);
+                    future.set(healthCheckUrl);
+                    return;
+                }
+                logger.trace("URL {} is not yet available, responseCode={}", healthCheckUrl, responseCode);
+                cause = new IllegalStateException("'" + healthCheckUrl + "' returned response code " + responseCode);
+            } catch (IOException e) {
+                httpGet.abort();
+                logger.trace("Exception invoking healthcheck URL {}", healthCheckUrl, e);
+                cause = new IllegalStateException("Exception invoking '" + healthCheckUrl + "'", e);
+            } catch (RuntimeException e) {
+                httpGet.abort();
+                future.setException(e);
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= deadlineInMillis) {
+                future.setException(cause);
+                return;
+            }
+            delayInMillis = Math.min(delayInMillis * 2, maxDelayInMillis);
+            scheduledExecutorService.schedule(this, Math.min(delayInMillis, deadlineInMillis - now), TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import fr.xebia.cloud.amazon.aws.tools.SshAvailabilityProber.SshConfigurationException;
+
+/**
+ * <p>
+ * Pipelined alternative to
+ * {@link AmazonAwsUtils#reliableEc2RunInstances(RunInstancesRequest, AmazonEC2)}
+ * : instances are checked for SSH availability as soon as they are running
+ * and, as soon as an instance is known dead (terminated at startup, startup
+ * timeout or SSH timeout), it is terminated and a replacement instance is
+ * launched while the probes of the other instances keep going.
+ * </p>
+ * <p>
+ * Big launches converge in one pass rather than retrying the whole batch.
+ * </p>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * List&lt;Instance&gt; instances = new PipelinedEc2InstancesLauncher(ec2)
+ *    .withMaxReplacementCount(5)
+ *    .withTimeout(15, TimeUnit.MINUTES)
+ *    .launch(runInstancesRequest);
+ * </pre></code>
+ */
+public class PipelinedEc2InstancesLauncher {
+
+    /**
+     * Notified, from the thread calling
+     * {@link PipelinedEc2InstancesLauncher#launch(RunInstancesRequest, Listener)}
+     * , as soon as an instance is running and available through SSH, without
+     * waiting for the other instances of the request.
+     */
+    public interface Listener {
+        void instanceReady(@Nonnull Instance instance);
+    }
+
+    /**
+     * Outcome of the startup and of the SSH probe of an instance.
+     */
+    private static class InstanceOutcome {
+        final Instance instance;
+        final boolean healthy;
+        /**
+         * Local error preventing to probe the instance, not a failure of the
+         * instance.
+         */
+        final SshConfigurationException configurationError;
+
+        InstanceOutcome(Instance instance, boolean healthy) {
+            this(instance, healthy, null);
+        }
+
+        InstanceOutcome(Instance instance, boolean healthy, SshConfigurationException configurationError) {
+            this.instance = instance;
+            this.healthy = healthy;
+            this.configurationError = configurationError;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelinedEc2InstancesLauncher.class);
+
+    private final AmazonEC2 ec2;
+
+    private int maxReplacementCount = 3;
+
+    private int maxSshProbeThreads = AmazonAwsUtils.SSH_PROBE_MAX_THREADS;
+
+    private long startupTimeoutInMillis = TimeUnit.MINUTES.toMillis(2);
+
+    private long timeoutInMillis = TimeUnit.MINUTES.toMillis(15);
+
+    public PipelinedEc2InstancesLauncher(@Nonnull AmazonEC2 ec2) {
+        this.ec2 = Preconditions.checkNotNull(ec2);
+    }
+
+    /**
+     * Max number of replacement instances launched for the whole request.
+     */
+    @Nonnull
+    public PipelinedEc2InstancesLauncher withMaxReplacementCount(int maxReplacementCount) {
+        this.maxReplacementCount = maxReplacementCount;
+        return this;
+    }
+
+    @Nonnull
+    public PipelinedEc2InstancesLauncher withMaxSshProbeThreads(int maxSshProbeThreads) {
+        this.maxSshProbeThreads = maxSshProbeThreads;
+        return this;
+    }
+
+    /**
+     * Timeout for each launched batch of instances to reach the "running"
+     * state.
+     */
+    @Nonnull
+    public PipelinedEc2InstancesLauncher withStartupTimeout(long startupTimeout, @Nonnull TimeUnit timeUnit) {
+        this.startupTimeoutInMillis = timeUnit.toMillis(startupTimeout);
+        return this;
+    }
+
+    /**
+     * Overall deadline of the launch, replacements included.
+     */
+    @Nonnull
+    public PipelinedEc2InstancesLauncher withTimeout(long timeout, @Nonnull TimeUnit timeUnit) {
+        this.timeoutInMillis = timeUnit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Launch the instances of the given request and ensure they are running
+     * and available through SSH.
+     *
+     * @param runInstancesRequest not modified once the method returns
+     * @return list of "Running" and SSH available instances. List size is
+     *         greater or equals to given
+     *         {@link RunInstancesRequest#getMinCount()}
+     * @throws IllegalStateException if less than
+     *                               {@link RunInstancesRequest#getMinCount()}
+     *                               instances could be started within the
+     *                               replacement budget and the deadline
+     * @throws SshConfigurationException if the SSH availability can't be
+     *                               tested, no replacement is launched
+     */
+    @Nonnull
+    public List<Instance> launch(@Nonnull RunInstancesRequest runInstancesRequest) throws IllegalStateException {
+        return launch(runInstancesRequest, null);
+    }
+
+    /**
+     * Same as {@link #launch(RunInstancesRequest)} but notify the given
+     * <code>listener</code> of each ready instance.
+     */
+    @Nonnull
+    public List<Instance> launch(@Nonnull RunInstancesRequest runInstancesRequest, @Nullable Listener listener)
+            throws IllegalStateException {
+        int initialInstanceMinCount = runInstancesRequest.getMinCount();
+        int initialInstanceMaxCount = runInstancesRequest.getMaxCount();
+        long startTimeInMillis = System.currentTimeMillis();
+        long deadlineInMillis = startTimeInMillis + timeoutInMillis;
+
+        BlockingQueue<InstanceOutcome> outcomes = new LinkedBlockingQueue<InstanceOutcome>();
+        ExecutorService startupAwaiterExecutor = Executors.newCachedThreadPool();
+        ExecutorService sshProbeExecutor = Executors.newFixedThreadPool(maxSshProbeThreads);
+
+        Set<String> launchedInstanceIds = Sets.newHashSet();
+        Set<String> terminatedInstanceIds = Sets.newHashSet();
+        List<Instance> result = Lists.newArrayList();
+        SshConfigurationException configurationError = null;
+        try {
+            int pendingCount = launch(runInstancesRequest, outcomes, startupAwaiterExecutor, sshProbeExecutor, launchedInstanceIds);
+            int replacementCount = 0;
+
+            while (pendingCount > 0) {
+                long remainingTimeInMillis = deadlineInMillis - System.currentTimeMillis();
+                InstanceOutcome outcome = outcomes.poll(Math.max(0, remainingTimeInMillis), TimeUnit.MILLISECONDS);
+                if (outcome == null) {
+                    logger.warn("Timeout launching instances, {} instances still pending", pendingCount);
+                    break;
+                }
+                pendingCount--;
+
+                if (outcome.configurationError != null) {
+                    // replacing the instance would fail the same way, the
+                    // launch is aborted and all the instances are terminated
+                    configurationError = outcome.configurationError;
+                    result.clear();
+                    break;
+                }
+                if (outcome.healthy) {
+                    result.add(outcome.instance);
+                    if (listener != null) {
+                        listener.instanceReady(outcome.instance);
+                    }
+                    continue;
+                }
+
+                String deadInstanceId = outcome.instance.getInstanceId();
+                terminateQuietly(deadInstanceId);
+                terminatedInstanceIds.add(deadInstanceId);
+
+                int missingCount = initialInstanceMinCount - result.size() - pendingCount;
+                if (missingCount <= 0) {
+                    continue;
+                }
+                if (replacementCount >= maxReplacementCount) {
+                    logger.warn("Don't replace dead instance {}, max replacement count {} reached", deadInstanceId, maxReplacementCount);
+                    continue;
+                }
+                replacementCount++;
+                logger.info("Launch replacement {}/{} of dead instance {}", new Object[]{replacementCount, maxReplacementCount, deadInstanceId});
+                runInstancesRequest.setMinCount(1);
+                runInstancesRequest.setMaxCount(1);
+                try {
+                    pendingCount += launch(runInstancesRequest, outcomes, startupAwaiterExecutor, sshProbeExecutor, launchedInstanceIds);
+                } catch (AmazonClientException e) {
+                    logger.warn("Exception launching replacement of instance " + deadInstanceId, e);
+                }
+            }
+
+            // don't leak instances whose startup or SSH availability is not known
+            Set<String> unknownInstanceIds = Sets.newHashSet(launchedInstanceIds);
+            unknownInstanceIds.removeAll(terminatedInstanceIds);
+            unknownInstanceIds.removeAll(Collections2.transform(result, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID));
+            if (!unknownInstanceIds.isEmpty()) {
+                logger.warn("Terminate instances still pending at deadline {}", unknownInstanceIds);
+                ec2.terminateInstances(new TerminateInstancesRequest(Lists.newArrayList(unknownInstanceIds)));
+            }
+
+            if (configurationError != null) {
+                throw configurationError;
+            }
+
+            logger.info("Launched {} instances in {}ms with {} replacements", new Object[]{result.size(),
+                    System.currentTimeMillis() - startTimeInMillis, replacementCount});
+
+            if (result.size() < initialInstanceMinCount) {
+                throw new IllegalStateException("Failure to create " + initialInstanceMinCount + " instances, only " + result.size()
+                        + " instances ("
+                        + Joiner.on(",").join(Collections2.transform(result, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID))
+                        + ") were started on request " + runInstancesRequest);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            startupAwaiterExecutor.shutdownNow();
+            sshProbeExecutor.shutdownNow();
+            // restore runInstancesRequest state
+            runInstancesRequest.setMinCount(initialInstanceMinCount);
+            runInstancesRequest.setMaxCount(initialInstanceMaxCount);
+        }
+    }
+
+    /**
+     * Run the given request and asynchronously wait for the startup and the
+     * SSH availability of the instances.
+     *
+     * @return the number of launched instances
+     */
+    private int launch(@Nonnull RunInstancesRequest runInstancesRequest, @Nonnull final BlockingQueue<InstanceOutcome> outcomes,
+                       @Nonnull ExecutorService startupAwaiterExecutor, @Nonnull final ExecutorService sshProbeExecutor,
+                       @Nonnull Set<String> launchedInstanceIds) {
+        final List<Instance> instances = ec2.runInstances(runInstancesRequest).getReservation().getInstances();
+        launchedInstanceIds.addAll(Collections2.transform(instances, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID));
+        logger.debug("Launched {}", Collections2.transform(instances, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID));
+
+        final Ec2InstancesStartupAwaiter.Listener listener = new Ec2InstancesStartupAwaiter.Listener() {
+            @Override
+            public void instanceStarted(@Nonnull final Instance instance) {
+                sshProbeExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean healthy;
+                        try {
+                            AmazonAwsUtils.awaitForSshAvailability(instance, AmazonAwsUtils.getSshUserName(instance));
+                            healthy = true;
+                        } catch (SshConfigurationException e) {
+                            outcomes.add(new InstanceOutcome(instance, false, e));
+                            return;
+                        } catch (RuntimeException e) {
+                            logger.warn("Instance {} is not available through SSH: {}", instance.getInstanceId(), e.toString());
+                            healthy = false;
+                        }
+                        outcomes.add(new InstanceOutcome(instance, healthy));
+                    }
+                });
+            }
+
+            @Override
+            public void instanceDied(@Nonnull Instance instance) {
+                outcomes.add(new InstanceOutcome(instance, false));
+            }
+        };
+
+        startupAwaiterExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Set<String> notifiedInstanceIds = Sets.newHashSet();
+                Ec2InstancesStartupAwaiter.Listener notifyingListener = new Ec2InstancesStartupAwaiter.Listener() {
+                    @Override
+                    public void instanceStarted(@Nonnull Instance instance) {
+                        notifiedInstanceIds.add(instance.getInstanceId());
+                        listener.instanceStarted(instance);
+                    }
+
+                    @Override
+                    public void instanceDied(@Nonnull Instance instance) {
+                        notifiedInstanceIds.add(instance.getInstanceId());
+                        listener.instanceDied(instance);
+                    }
+                };
+                List<Instance> awaitedInstances;
+                try {
+                    awaitedInstances = new Ec2InstancesStartupAwaiter(ec2)
+                            .withTimeout(startupTimeoutInMillis, TimeUnit.MILLISECONDS)
+                            .await(instances, notifyingListener);
+                } catch (RuntimeException e) {
+                    logger.warn("Exception waiting for startup of instances", e);
+                    awaitedInstances = instances;
+                }
+                // timed out instances are considered dead
+                for (Instance instance : awaitedInstances) {
+                    if (!notifiedInstanceIds.contains(instance.getInstanceId())) {
+                        listener.instanceDied(instance);
+                    }
+                }
+            }
+        });
+        return instances.size();
+    }
+
+    private void terminateQuietly(@Nonnull String instanceId) {
+        try {
+            ec2.terminateInstances(new TerminateInstancesRequest(Lists.newArrayList(instanceId)));
+        } catch (AmazonClientException e) {
+            logger.warn("Silently ignore exception terminating dead instance " + instanceId, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{maxReplacementCount=" + maxReplacementCount + ", maxSshProbeThreads=" + maxSshProbeThreads
+                + ", startupTimeoutInMillis=" + startupTimeoutInMillis + ", timeoutInMillis=" + timeoutInMillis + "}";
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.RRType;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * Lazy iterator on the resource record sets of a Route53 hosted zone: pages
+ * are fetched one at a time following the
+ * <code>NextRecordName</code>/<code>NextRecordType</code> markers of
+ * {@link AmazonRoute53#listResourceRecordSets(ListResourceRecordSetsRequest)}
+ * , only one page is held in memory.
+ * </p>
+ * <p>
+ * Records are returned in the Route53 order: names sorted with their labels
+ * reversed ("com.example.www"), the records of a sub domain are contiguous.
+ * Thanks to this order, a scan bounded by a name prefix (see
+ * {@link #withRecordNamePrefix(String, String)}) starts at the first matching
+ * name and stops at the first name sorting past the prefix instead of
+ * listing the whole hosted zone.
+ * </p>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * Iterator&lt;ResourceRecordSet&gt; cnames = new ResourceRecordSetIterator(hostedZoneId, route53)
+ *    .withRecordNamePrefix("www-nginx-", "aws.xebiatechevent.info.")
+ *    .withType(RRType.CNAME);
+ * </pre></code>
+ */
+public class ResourceRecordSetIterator extends AbstractIterator<ResourceRecordSet> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceRecordSetIterator.class);
+
+    private final String hostedZoneId;
+
+    private final AmazonRoute53 route53;
+
+    private RRType type;
+
+    /**
+     * Reversed lower case labels of the domain followed by the label prefix,
+     * <code>null</code> if the scan is not bounded.
+     */
+    private List<String> recordNamePrefixLabels;
+
+    private String nextRecordName;
+
+    private String nextRecordType;
+
+    private String nextRecordIdentifier;
+
+    private Iterator<ResourceRecordSet> currentPage;
+
+    private boolean lastPage;
+
+    private int pageCount;
+
+    public ResourceRecordSetIterator(@Nonnull String hostedZoneId, @Nonnull AmazonRoute53 route53) {
+        this.hostedZoneId = Preconditions.checkNotNull(hostedZoneId);
+        this.route53 = Preconditions.checkNotNull(route53);
+    }
+
+    /**
+     * Start the listing at the given name rather than at the beginning of the
+     * hosted zone. Must be called before iterating.
+     */
+    @Nonnull
+    public ResourceRecordSetIterator withStartRecordName(@Nullable String startRecordName) {
+        Preconditions.checkState(pageCount == 0, "Iteration already started");
+        this.nextRecordName = startRecordName;
+        return this;
+    }
+
+    /**
+     * Only return the records named "<code>&lt;labelPrefix&gt;*.&lt;domainName&gt;</code>"
+     * and their sub domains (e.g. "www-nginx-1.aws.xebiatechevent.info." for
+     * "www-nginx-" and "aws.xebiatechevent.info."). Must be called before
+     * iterating.
+     */
+    @Nonnull
+    public ResourceRecordSetIterator withRecordNamePrefix(@Nonnull String labelPrefix, @Nonnull String domainName) {
+        Preconditions.checkState(pageCount == 0, "Iteration already started");
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(labelPrefix), "labelPrefix can NOT be empty");
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(domainName), "domainName can NOT be empty");
+        List<String> labels = toReversedLabels(domainName);
+        labels.add(labelPrefix.toLowerCase());
+        this.recordNamePrefixLabels = labels;
+        this.nextRecordName = labelPrefix + "." + (domainName.endsWith(".") ? domainName : domainName + ".");
+        return this;
+    }
+
+    /**
+     * Only return the records of the given type. Filtering is done while
+     * streaming, Route53 doesn't support type filtering.
+     */
+    @Nonnull
+    public ResourceRecordSetIterator withType(@Nullable RRType type) {
+        Preconditions.checkState(pageCount == 0, "Iteration already started");
+        this.type = type;
+        return this;
+    }
+
+    @Override
+    protected ResourceRecordSet computeNext() {
+        while (true) {
+            if (currentPage != null && currentPage.hasNext()) {
+                ResourceRecordSet resourceRecordSet = currentPage.next();
+                if (recordNamePrefixLabels != null) {
+                    int comparison = compareToRecordNamePrefix(resourceRecordSet.getName());
+                    if (comparison > 0) {
+                        logger.trace("Stop listing hosted zone {} at {}, past prefix {}", new Object[]{hostedZoneId,
+                                resourceRecordSet.getName(), recordNamePrefixLabels});
+                        return endOfData();
+                    } else if (comparison < 0) {
+                        continue;
+                    }
+                }
+                if (type == null || type.toString().equals(resourceRecordSet.getType())) {
+                    return resourceRecordSet;
+                }
+                continue;
+            }
+            if (lastPage) {
+                return endOfData();
+            }
+            fetchNextPage();
+        }
+    }
+
+    private void fetchNextPage() {
+        ListResourceRecordSetsRequest listResourceRecordSetsRequest = new ListResourceRecordSetsRequest() //
+                .withHostedZoneId(hostedZoneId) //
+                .withStartRecordName(nextRecordName) //
+                .withStartRecordType(nextRecordType) //
+                .withStartRecordIdentifier(nextRecordIdentifier);
+        ListResourceRecordSetsResult result = route53.listResourceRecordSets(listResourceRecordSetsRequest);
+        pageCount++;
+
+        currentPage = result.getResourceRecordSets().iterator();
+        lastPage = !Boolean.TRUE.equals(result.isTruncated());
+        nextRecordName = result.getNextRecordName();
+        nextRecordType = result.getNextRecordType();
+        nextRecordIdentifier = result.getNextRecordIdentifier();
+        logger.trace("Fetched page {} of hosted zone {}, next record: {} {}", new Object[]{pageCount, hostedZoneId, nextRecordName,
+                nextRecordType});
+    }
+
+    /**
+     * Compare the given record name to the record name prefix in the Route53
+     * order (label by label, from the top level domain, case insensitive).
+     *
+     * @return a negative integer if the name sorts before the prefix, zero if
+     *         it matches the prefix, a positive integer if it sorts past the
+     *         prefix
+     */
+    private int compareToRecordNamePrefix(@Nonnull String recordName) {
+        List<String> labels = toReversedLabels(recordName);
+        int lastIndex = recordNamePrefixLabels.size() - 1;
+        for (int i = 0; i < lastIndex; i++) {
+            if (i >= labels.size()) {
+                return -1;
+            }
+            int comparison = labels.get(i).compareTo(recordNamePrefixLabels.get(i));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        if (labels.size() <= lastIndex) {
+            return -1;
+        }
+        String label = labels.get(lastIndex);
+        String labelPrefix = recordNamePrefixLabels.get(lastIndex);
+        return label.startsWith(labelPrefix) ? 0 : label.compareTo(labelPrefix);
+    }
+
+    @Nonnull
+    private static List<String> toReversedLabels(@Nonnull String name) {
+        List<String> labels = Lists.newArrayList(Splitter.on('.').omitEmptyStrings().split(name.toLowerCase()));
+        Collections.reverse(labels);
+        return labels;
+    }
+
+    /**
+     * Number of pages fetched so far.
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{hostedZoneId=" + hostedZoneId + ", type=" + type + ", recordNamePrefix="
+                + recordNamePrefixLabels + ", pageCount=" + pageCount
+                + ", nextRecordName=" + nextRecordName + "}";
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.ChangeBatch;
+import com.amazonaws.services.route53.model.ChangeInfo;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ChangeStatus;
+import com.amazonaws.services.route53.model.GetChangeRequest;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.RRType;
+import com.amazonaws.services.route53.model.ResourceRecord;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * <p>
+ * Bind CNAMEs of a Route53 hosted zone with "UPSERT" semantic.
+ * </p>
+ * <ul>
+ * <li>The existing CNAMEs are streamed (see {@link ResourceRecordSetIterator}
+ * ) and compared with the requested ones: unchanged CNAMEs are skipped,
+ * modified CNAMEs are replaced by a DELETE + CREATE pair in the same batch,
+ * missing CNAMEs are created.</li>
+ * <li>Changes are split in batches of at most {@link #MAX_CHANGES_PER_BATCH}
+ * changes, a DELETE + CREATE pair is never split.</li>
+ * <li>All the batches are sent and then polled with <code>GetChange</code>
+ * until they are <code>INSYNC</code>. The changes are polled in the order
+ * they were sent and a tick stops at the first change still pending: the
+ * changes sent later are not expected to be propagated earlier.</li>
+ * </ul>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * new Route53CnamesWriter(hostedZone, route53).bindCnamesToInstances(instancesByCname);
+ * </pre></code>
+ */
+public class Route53CnamesWriter {
+
+    /**
+     * Max number of changes of a <code>ChangeResourceRecordSets</code>
+     * request accepted by Route53.
+     */
+    public static final int MAX_CHANGES_PER_BATCH = 100;
+
+    private static final Logger logger = LoggerFactory.getLogger(Route53CnamesWriter.class);
+
+    private final HostedZone hostedZone;
+
+    private final AmazonRoute53 route53;
+
+    private long ttlInSeconds = 300;
+
+    private int maxChangesPerBatch = MAX_CHANGES_PER_BATCH;
+
+    private long pollingIntervalInMillis = TimeUnit.SECONDS.toMillis(5);
+
+    private long timeoutInMillis = TimeUnit.MINUTES.toMillis(5);
+
+    public Route53CnamesWriter(@Nonnull HostedZone hostedZone, @Nonnull AmazonRoute53 route53) {
+        this.hostedZone = Preconditions.checkNotNull(hostedZone);
+        this.route53 = Preconditions.checkNotNull(route53);
+    }
+
+    @Nonnull
+    public Route53CnamesWriter withTtl(long ttl, @Nonnull TimeUnit timeUnit) {
+        this.ttlInSeconds = timeUnit.toSeconds(ttl);
+        return this;
+    }
+
+    @Nonnull
+    public Route53CnamesWriter withMaxChangesPerBatch(int maxChangesPerBatch) {
+        Preconditions.checkArgument(maxChangesPerBatch >= 2, "maxChangesPerBatch must hold a DELETE + CREATE pair");
+        this.maxChangesPerBatch = maxChangesPerBatch;
+        return this;
+    }
+
+    /**
+     * Interval between two polls of the pending changes.
+     */
+    @Nonnull
+    public Route53CnamesWriter withPollingInterval(long pollingInterval, @Nonnull TimeUnit timeUnit) {
+        this.pollingIntervalInMillis = timeUnit.toMillis(pollingInterval);
+        return this;
+    }
+
+    /**
+     * Timeout waiting for the changes to be <code>INSYNC</code>.
+     */
+    @Nonnull
+    public Route53CnamesWriter withTimeout(long timeout, @Nonnull TimeUnit timeUnit) {
+        this.timeoutInMillis = timeUnit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Bind each CNAME to the public DNS name of its instance.
+     *
+     * @see #bindCnames(Map)
+     */
+    public int bindCnamesToInstances(@Nonnull Map<String, Instance> instancesByCname) {
+        Map<String, String> targetsByCname = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Instance> entry : instancesByCname.entrySet()) {
+            targetsByCname.put(entry.getKey(), entry.getValue().getPublicDnsName());
+        }
+        return bindCnames(targetsByCname);
+    }
+
+    /**
+     * Create or update the given CNAMEs and wait for the changes to be
+     * propagated to all the Route53 DNS servers.
+     *
+     * @param targetsByCname fully qualified CNAMEs (e.g.
+     *                       "www-nginx-1.aws.xebiatechevent.info.") and their
+     *                       targets
+     * @return the number of <code>ChangeResourceRecordSets</code> calls
+     * @throws IllegalStateException if the changes are not <code>INSYNC</code>
+     *                               within the timeout
+     */
+    public int bindCnames(@Nonnull Map<String, String> targetsByCname) throws IllegalStateException {
+        List<List<Change>> changesByCname = getChangesByCname(targetsByCname);
+        if (changesByCname.isEmpty()) {
+            logger.info("CNAMEs of {} are up to date, nothing to change", hostedZone.getName());
+            return 0;
+        }
+
+        // split in batches without splitting DELETE + CREATE pairs
+        List<List<Change>> batches = Lists.newArrayList();
+        List<Change> batch = Lists.newArrayList();
+        for (List<Change> changes : changesByCname) {
+            if (batch.size() + changes.size() > maxChangesPerBatch) {
+                batches.add(batch);
+                batch = Lists.newArrayList();
+            }
+            batch.addAll(changes);
+        }
+        batches.add(batch);
+
+        Set<String> pendingChangeIds = Sets.newLinkedHashSet();
+        for (List<Change> changes : batches) {
+            logger.debug("Change CNAMEs {}", changes);
+            ChangeInfo changeInfo = route53.changeResourceRecordSets(new ChangeResourceRecordSetsRequest() //
+                    .withHostedZoneId(hostedZone.getId()) //
+                    .withChangeBatch(new ChangeBatch().withChanges(changes))).getChangeInfo();
+            if (!ChangeStatus.INSYNC.toString().equals(changeInfo.getStatus())) {
+                pendingChangeIds.add(changeInfo.getId());
+            }
+        }
+        logger.info("Sent {} CNAME changes of {} in {} batches", new Object[]{changesByCname.size(), hostedZone.getName(),
+                batches.size()});
+
+        awaitForInSync(pendingChangeIds);
+        return batches.size();
+    }
+
+    /**
+     * @return the changes to apply, grouped by CNAME
+     */
+    @Nonnull
+    private List<List<Change>> getChangesByCname(@Nonnull Map<String, String> targetsByCname) {
+        Map<String, String> cnamesToCreate = Maps.newLinkedHashMap(targetsByCname);
+        List<List<Change>> changesByCname = Lists.newArrayList();
+
+        ResourceRecordSetIterator existingCnames = new ResourceRecordSetIterator(hostedZone.getId(), route53).withType(RRType.CNAME);
+        while (!cnamesToCreate.isEmpty() && existingCnames.hasNext()) {
+            ResourceRecordSet existingCname = existingCnames.next();
+            String target = cnamesToCreate.get(existingCname.getName());
+            if (target == null) {
+                continue;
+            }
+            ResourceRecord existingTarget = Iterables.getFirst(existingCname.getResourceRecords(), null);
+            if (existingTarget != null && target.equals(existingTarget.getValue())
+                    && Long.valueOf(ttlInSeconds).equals(existingCname.getTTL())) {
+                logger.debug("CNAME {} is up to date", existingCname.getName());
+            } else {
+                changesByCname.add(Lists.newArrayList(
+                        new Change(ChangeAction.DELETE, existingCname),
+                        new Change(ChangeAction.CREATE, buildCname(existingCname.getName(), target))));
+            }
+            cnamesToCreate.remove(existingCname.getName());
+        }
+
+        for (Map.Entry<String, String> entry : cnamesToCreate.entrySet()) {
+            changesByCname.add(Lists.newArrayList(new Change(ChangeAction.CREATE, buildCname(entry.getKey(), entry.getValue()))));
+        }
+        return changesByCname;
+    }
+
+    @Nonnull
+    private ResourceRecordSet buildCname(@Nonnull String cname, @Nonnull String target) {
+        return new ResourceRecordSet() //
+                .withType(RRType.CNAME) //
+                .withName(cname) //
+                .withTTL(ttlInSeconds) //
+                .withResourceRecords(new ResourceRecord(target));
+    }
+
+    /**
+     * Poll the given changes, in the order they were sent, until they are
+     * <code>INSYNC</code>. Each tick stops at the first change still pending,
+     * there is usually one single <code>GetChange</code> call per tick.
+     */
+    private void awaitForInSync(@Nonnull Set<String> pendingChangeIds) throws IllegalStateException {
+        long deadlineInMillis = System.currentTimeMillis() + timeoutInMillis;
+        while (!pendingChangeIds.isEmpty()) {
+            if (System.currentTimeMillis() > deadlineInMillis) {
+                throw new IllegalStateException("Changes " + pendingChangeIds + " of " + hostedZone.getName() + " not INSYNC after "
+                        + TimeUnit.MILLISECONDS.toSeconds(timeoutInMillis) + " seconds");
+            }
+            try {
+                Thread.sleep(pollingIntervalInMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+            for (String changeId : Lists.newArrayList(pendingChangeIds)) {
+                // change ids are returned as "/change/C2682N5HXP0BZ4"
+                String id = changeId.substring(changeId.lastIndexOf('/') + 1);
+                ChangeInfo changeInfo = route53.getChange(new GetChangeRequest(id)).getChangeInfo();
+                if (!ChangeStatus.INSYNC.toString().equals(changeInfo.getStatus())) {
+                    break;
+                }
+                pendingChangeIds.remove(changeId);
+            }
+            logger.debug("{} changes of {} still pending", pendingChangeIds.size(), hostedZone.getName());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{hostedZone=" + hostedZone.getName() + ", ttlInSeconds=" + ttlInSeconds
+                + ", maxChangesPerBatch=" + maxChangesPerBatch + ", timeoutInMillis=" + timeoutInMillis + "}";
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * <p>
+ * Test for SSH availability of EC2 instances.
+ * </p>
+ * <p>
+ * The private key "<code>&lt;keyName&gt;.pem</code>" of each key pair is
+ * loaded from the classpath and parsed once and then shared by all the
+ * probes. Before each SSH handshake, a cheap non blocking TCP connect to port
+ * 22 checks that the sshd is listening: no handshake is attempted while the
+ * instance is still booting.
+ * </p>
+ * <p>
+ * Only the connection failures, timeouts and refused authentications mean
+ * that an instance is not (yet) available. Local configuration errors (missing
+ * or unreadable private key, missing user name) are raised at once as
+ * {@link SshConfigurationException}: another instance would fail the same way.
+ * </p>
+ * <p>
+ * Thread safe, many instances can be probed concurrently with
+ * {@link #awaitForSshAvailability(Collection, long, TimeUnit)}.
+ * </p>
+ */
+public class SshAvailabilityProber {
+
+    /**
+     * The SSH availability can't be tested because of a local configuration
+     * error (private key, user name): retrying or replacing the instance
+     * would fail the same way.
+     */
+    public static class SshConfigurationException extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        public SshConfigurationException(String message) {
+            super(message);
+        }
+
+        public SshConfigurationException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(SshAvailabilityProber.class);
+
+    private static final int SSH_PORT = 22;
+
+    /**
+     * One {@link JSch} per key pair name, holding the parsed private key.
+     */
+    private final LoadingCache<String, JSch> jschByKeyName = CacheBuilder.newBuilder().build(new CacheLoader<String, JSch>() {
+        @Override
+        public JSch load(String keyName) {
+            String keyFilePath = keyName + ".pem";
+            InputStream keyFile = Thread.currentThread().getContextClassLoader().getResourceAsStream(keyFilePath);
+            if (keyFile == null) {
+                throw new SshConfigurationException("File '" + keyFilePath + "' NOT found in the classpath");
+            }
+            try {
+                byte[] keyAsBytes = ByteStreams.toByteArray(keyFile);
+                JSch jSch = new JSch();
+                jSch.addIdentity(keyName, keyAsBytes, null, new byte[0]);
+                logger.debug("Loaded private key {}", keyFilePath);
+                return jSch;
+            } catch (IOException e) {
+                throw new SshConfigurationException("Exception loading '" + keyFilePath + "'", e);
+            } catch (JSchException e) {
+                throw new SshConfigurationException("Exception parsing '" + keyFilePath + "'", e);
+            } finally {
+                Closeables.closeQuietly(keyFile);
+            }
+        }
+    });
+
+    private int maxThreads = AmazonAwsUtils.SSH_PROBE_MAX_THREADS;
+
+    private long probeIntervalInMillis = TimeUnit.SECONDS.toMillis(5);
+
+    private long timeoutInMillis = TimeUnit.MINUTES.toMillis(5);
+
+    private int tcpConnectTimeoutInMillis = 2000;
+
+    private int sshConnectTimeoutInMillis = 5000;
+
+    @Nonnull
+    public SshAvailabilityProber withMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+        return this;
+    }
+
+    @Nonnull
+    public SshAvailabilityProber withProbeInterval(long probeInterval, @Nonnull TimeUnit timeUnit) {
+        this.probeIntervalInMillis = timeUnit.toMillis(probeInterval);
+        return this;
+    }
+
+    /**
+     * Timeout of each instance.
+     */
+    @Nonnull
+    public SshAvailabilityProber withTimeout(long timeout, @Nonnull TimeUnit timeUnit) {
+        this.timeoutInMillis = timeUnit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * <p>
+     * Test for SSH availability on <i>instance</i>. If the instance is not
+     * available within the timeout, an {@link IllegalStateException} is
+     * thrown.
+     * </p>
+     *
+     * @param instance The ec2 instance to test
+     * @param username
+     * @throws SshConfigurationException if the private key of the instance or
+     *                                   the user name are not usable
+     * @throws IllegalStateException     if the instance is not available within
+     *                                   the timeout
+     */
+    public void awaitForSshAvailability(@Nonnull Instance instance, @Nonnull String username) throws IllegalStateException {
+        // Use ip instead of host to prevent dns replication latency
+        String ip = instance.getPublicIpAddress();
+        String host = instance.getPublicDnsName();
+        JSch jSch = checkConfiguration(instance, username);
+
+        long deadlineInMillis = System.currentTimeMillis() + timeoutInMillis;
+        while (System.currentTimeMillis() < deadlineInMillis) {
+            if (isPortOpen(ip, SSH_PORT)) {
+                try {
+                    Session session = jSch.getSession(username, ip);
+                    // Dont check host name
+                    session.setConfig("StrictHostKeyChecking", "no");
+                    session.connect(sshConnectTimeoutInMillis);
+                    session.disconnect();
+                    logger.info("Instance " + host + " is valid: 'ssh -i " + instance.getKeyName() + ".pem " + username + "@" + ip
+                            + "' SUCCESSFUL");
+                    return;
+                } catch (JSchException e) {
+                    logger.debug("SSH Test - Instance not (yet) ready (" + host + ") : " + e.getMessage());
+                }
+            } else {
+                logger.trace("SSH Test - Port {} not (yet) open on {}", SSH_PORT, host);
+            }
+            try {
+                Thread.sleep(probeIntervalInMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+        }
+        logger.error("Instance " + host + " is not valid !");
+        throw new IllegalStateException("Instance " + instance.getInstanceId() + " is not available through SSH after "
+                + TimeUnit.MILLISECONDS.toSeconds(timeoutInMillis) + " seconds");
+    }
+
+    /**
+     * Test concurrently for SSH availability of the given instances with one
+     * overall deadline.
+     *
+     * @param instances instances to test
+     * @param timeout   overall deadline
+     * @param timeUnit
+     * @return the instances available through SSH, in the order of the given
+     *         <code>instances</code>
+     * @throws SshConfigurationException if the private key or the user name of
+     *                                   an instance are not usable, before
+     *                                   any probe
+     */
+    @Nonnull
+    public List<Instance> awaitForSshAvailability(@Nonnull Collection<Instance> instances, long timeout, @Nonnull TimeUnit timeUnit)
+            throws SshConfigurationException {
+        List<Instance> availableInstances = Lists.newArrayList();
+        if (instances.isEmpty()) {
+            return availableInstances;
+        }
+        // fail fast rather than probing the other instances until the deadline
+        for (Instance instance : instances) {
+            checkConfiguration(instance, AmazonAwsUtils.getSshUserName(instance));
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(instances.size(), maxThreads));
+        try {
+            List<Callable<Instance>> probes = Lists.newArrayList();
+            for (final Instance instance : instances) {
+                probes.add(new Callable<Instance>() {
+                    @Override
+                    public Instance call() throws Exception {
+                        awaitForSshAvailability(instance, AmazonAwsUtils.getSshUserName(instance));
+                        return instance;
+                    }
+                });
+            }
+            List<Future<Instance>> futures = executorService.invokeAll(probes, timeout, timeUnit);
+
+            Iterator<Instance> itInstance = instances.iterator();
+            for (Future<Instance> future : futures) {
+                Instance instance = itInstance.next();
+                try {
+                    availableInstances.add(future.get());
+                } catch (CancellationException e) {
+                    logger.warn("Timeout waiting for SSH availability of {}", instance.getInstanceId());
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), SshConfigurationException.class);
+                    logger.warn("Instance {} is not available through SSH: {}", instance.getInstanceId(), e.getCause().toString());
+                }
+            }
+            return availableInstances;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the {@link JSch} holding the private key of the given instance
+     * @throws SshConfigurationException if the private key of the instance or
+     *                                   the user name are not usable
+     */
+    @Nonnull
+    public JSch checkConfiguration(@Nonnull Instance instance, @Nullable String username) throws SshConfigurationException {
+        if (Strings.isNullOrEmpty(username)) {
+            throw new SshConfigurationException("No SSH user name for instance " + instance.getInstanceId());
+        }
+        if (Strings.isNullOrEmpty(instance.getKeyName())) {
+            throw new SshConfigurationException("No key pair for instance " + instance.getInstanceId());
+        }
+        try {
+            return jschByKeyName.getUnchecked(instance.getKeyName());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Non blocking TCP connect to the given port.
+     *
+     * @return <code>true</code> if the connection succeeded within
+     *         {@link #tcpConnectTimeoutInMillis}
+     */
+    public boolean isPortOpen(@Nonnull String ip, int port) {
+        SocketChannel socketChannel = null;
+        Selector selector = null;
+        try {
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            if (socketChannel.connect(new InetSocketAddress(ip, port))) {
+                return true;
+            }
+            selector = Selector.open();
+            socketChannel.register(selector, SelectionKey.OP_CONNECT);
+            if (selector.select(tcpConnectTimeoutInMillis) == 0) {
+                return false;
+            }
+            return socketChannel.finishConnect();
+        } catch (IOException e) {
+            logger.trace("Port {} not open on {}: {}", new Object[]{port, ip, e.toString()});
+            return false;
+        } finally {
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.trace("Silently ignore exception closing selector", e);
+                }
+            }
+            Closeables.closeQuietly(socketChannel);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{keyNames=" + jschByKeyName.asMap().keySet() + ", maxThreads=" + maxThreads + ", probeIntervalInMillis="
+                + probeIntervalInMillis + ", timeoutInMillis=" + timeoutInMillis + "}";
+    }
+}
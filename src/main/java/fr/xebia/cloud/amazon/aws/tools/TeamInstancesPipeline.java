@@ -0,0 +1,278 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * <p>
+ * Launch the instances of all the teams of a workshop and run the given
+ * {@link Stage}s (tag, configure, health check, ...) on each team as soon as
+ * its instances are ready: the first teams are configured while the
+ * instances of the last teams are still booting.
+ * </p>
+ * <ul>
+ * <li>Instances are assigned to the teams in the order they become ready.</li>
+ * <li>The stages of a team run sequentially, teams run in parallel.</li>
+ * <li>A failing stage stops its team, the other teams keep going. Once all
+ * the teams are processed, a {@link TeamPipelineException} reports the teams
+ * that failed or did not complete before the timeout.</li>
+ * <li>If the launch of the instances fails, the teams whose instances are
+ * already ready complete their stages before the
+ * {@link TeamPipelineException} is thrown.</li>
+ * </ul>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * Map&lt;String, List&lt;Instance&gt;&gt; instancesByTeamId = new TeamInstancesPipeline(teamIdentifiers, 1)
+ *    .addStage(tagStage)
+ *    .addStage(createJobsStage)
+ *    .launch(runInstancesRequest, ec2);
+ * </pre></code>
+ */
+public class TeamInstancesPipeline {
+
+    /**
+     * A stage of the pipeline of a team.
+     */
+    public interface Stage {
+        /**
+         * @param teamIdentifier identifier of the team
+         * @param instances      the ready instances of the team
+         */
+        void execute(@Nonnull String teamIdentifier, @Nonnull List<Instance> instances) throws Exception;
+    }
+
+    /**
+     * Some teams failed or did not complete before the timeout.
+     */
+    public static class TeamPipelineException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, List<Instance>> instancesByTeamId;
+
+        private final List<String> failedTeamIdentifiers;
+
+        public TeamPipelineException(String message, Map<String, List<Instance>> instancesByTeamId, List<String> failedTeamIdentifiers) {
+            this(message, instancesByTeamId, failedTeamIdentifiers, null);
+        }
+
+        public TeamPipelineException(String message, Map<String, List<Instance>> instancesByTeamId, List<String> failedTeamIdentifiers,
+                                     Throwable cause) {
+            super(message, cause);
+            this.instancesByTeamId = instancesByTeamId;
+            this.failedTeamIdentifiers = failedTeamIdentifiers;
+        }
+
+        /**
+         * The instances of each team, including the failed teams.
+         */
+        @Nonnull
+        public Map<String, List<Instance>> getInstancesByTeamId() {
+            return instancesByTeamId;
+        }
+
+        @Nonnull
+        public List<String> getFailedTeamIdentifiers() {
+            return failedTeamIdentifiers;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(TeamInstancesPipeline.class);
+
+    private final List<String> teamIdentifiers;
+
+    private final int instancesPerTeam;
+
+    private final List<Stage> stages = Lists.newArrayList();
+
+    private int maxThreads = 10;
+
+    private long timeoutInMillis = TimeUnit.MINUTES.toMillis(20);
+
+    public TeamInstancesPipeline(@Nonnull List<String> teamIdentifiers, int instancesPerTeam) {
+        Preconditions.checkArgument(instancesPerTeam > 0, "instancesPerTeam must be positive");
+        this.teamIdentifiers = Lists.newArrayList(teamIdentifiers);
+        this.instancesPerTeam = instancesPerTeam;
+    }
+
+    @Nonnull
+    public TeamInstancesPipeline addStage(@Nonnull Stage stage) {
+        stages.add(Preconditions.checkNotNull(stage));
+        return this;
+    }
+
+    /**
+     * Max number of teams whose stages run concurrently.
+     */
+    @Nonnull
+    public TeamInstancesPipeline withMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+        return this;
+    }
+
+    /**
+     * Timeout of the stages once all the instances are launched.
+     */
+    @Nonnull
+    public TeamInstancesPipeline withTimeout(long timeout, @Nonnull TimeUnit timeUnit) {
+        this.timeoutInMillis = timeUnit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Launch <code>teamIdentifiers.size() * instancesPerTeam</code> instances
+     * with the given request and run the stages of each team as soon as its
+     * instances are ready.
+     *
+     * @param runInstancesRequest min and max counts are overwritten
+     * @return the instances of each team, in the order of the team
+     *         identifiers
+     * @throws TeamPipelineException if the launch of the instances failed or
+     *                               if the stages of some teams failed or did
+     *                               not complete before the timeout
+     */
+    @Nonnull
+    public Map<String, List<Instance>> launch(@Nonnull RunInstancesRequest runInstancesRequest, @Nonnull AmazonEC2 ec2) {
+        int instanceCount = teamIdentifiers.size() * instancesPerTeam;
+        runInstancesRequest.withMinCount(instanceCount).withMaxCount(instanceCount);
+
+        final Map<String, List<Instance>> instancesByTeamId = Maps.newLinkedHashMap();
+        final Set<String> succeededTeamIdentifiers = Collections.synchronizedSet(Sets.<String>newHashSet());
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, Math.min(teamIdentifiers.size(), maxThreads)));
+        long startTimeInMillis = System.currentTimeMillis();
+        RuntimeException launchFailure = null;
+        try {
+            try {
+                new PipelinedEc2InstancesLauncher(ec2).launch(runInstancesRequest, new PipelinedEc2InstancesLauncher.Listener() {
+                    private int readyInstanceCount = 0;
+
+                    @Override
+                    public void instanceReady(@Nonnull Instance instance) {
+                        int teamIndex = readyInstanceCount / instancesPerTeam;
+                        if (teamIndex >= teamIdentifiers.size()) {
+                            logger.warn("Ignore extra instance {}", instance.getInstanceId());
+                            return;
+                        }
+                        readyInstanceCount++;
+                        String teamIdentifier = teamIdentifiers.get(teamIndex);
+                        List<Instance> teamInstances = instancesByTeamId.get(teamIdentifier);
+                        if (teamInstances == null) {
+                            teamInstances = Lists.newArrayList();
+                            instancesByTeamId.put(teamIdentifier, teamInstances);
+                        }
+                        teamInstances.add(instance);
+                        if (teamInstances.size() == instancesPerTeam) {
+                            logger.info("Instances of team {} are ready, start its stages", teamIdentifier);
+                            executorService.submit(new TeamPipeline(teamIdentifier, Collections.unmodifiableList(teamInstances),
+                                    succeededTeamIdentifiers));
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                // let the teams already started complete their stages
+                logger.warn("Failure launching the instances, wait for the stages of the teams already started", e);
+                launchFailure = e;
+            }
+
+            executorService.shutdown();
+            if (!executorService.awaitTermination(timeoutInMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("Timeout running the stages of the teams, cancel the remaining stages");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            executorService.shutdownNow();
+        }
+        // failed, timed out and never launched teams
+        List<String> failedTeamIdentifiers = Lists.newArrayList();
+        for (String teamIdentifier : teamIdentifiers) {
+            if (!succeededTeamIdentifiers.contains(teamIdentifier)) {
+                failedTeamIdentifiers.add(teamIdentifier);
+            }
+        }
+        logger.info("Pipelines of {} teams executed in {}ms, failed teams: {}", new Object[]{instancesByTeamId.size(),
+                System.currentTimeMillis() - startTimeInMillis, failedTeamIdentifiers});
+        if (launchFailure != null) {
+            throw new TeamPipelineException("Failure launching the instances, pipelines of teams " + failedTeamIdentifiers
+                    + " failed or never started", instancesByTeamId, failedTeamIdentifiers, launchFailure);
+        }
+        if (!failedTeamIdentifiers.isEmpty()) {
+            throw new TeamPipelineException("Pipelines of teams " + failedTeamIdentifiers + " failed or timed out", instancesByTeamId,
+                    failedTeamIdentifiers);
+        }
+        return instancesByTeamId;
+    }
+
+    private class TeamPipeline implements Runnable {
+
+        private final String teamIdentifier;
+
+        private final List<Instance> instances;
+
+        private final Set<String> succeededTeamIdentifiers;
+
+        private TeamPipeline(String teamIdentifier, List<Instance> instances, Set<String> succeededTeamIdentifiers) {
+            this.teamIdentifier = teamIdentifier;
+            this.instances = instances;
+            this.succeededTeamIdentifiers = succeededTeamIdentifiers;
+        }
+
+        @Override
+        public void run() {
+            long startTimeInMillis = System.currentTimeMillis();
+            for (Stage stage : stages) {
+                try {
+                    stage.execute(teamIdentifier, instances);
+                } catch (Exception e) {
+                    logger.warn("Skip remaining stages of team " + teamIdentifier + " after failure of stage " + stage, e);
+                    return;
+                }
+            }
+            succeededTeamIdentifiers.add(teamIdentifier);
+            logger.info("Stages of team {} executed in {}ms", teamIdentifier, System.currentTimeMillis() - startTimeInMillis);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{teamIdentifiers=" + teamIdentifiers + ", instancesPerTeam=" + instancesPerTeam + ", stages="
+                + stages + ", maxThreads=" + maxThreads + ", timeoutInMillis=" + timeoutInMillis + "}";
+    }
+}
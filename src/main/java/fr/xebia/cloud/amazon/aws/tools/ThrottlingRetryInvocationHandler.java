@@ -0,0 +1,324 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * <p>
+ * Throttling aware decorator of the Amazon AWS clients ({@link com.amazonaws.services.ec2.AmazonEC2},
+ * {@link com.amazonaws.services.route53.AmazonRoute53},
+ * {@link com.amazonaws.services.identitymanagement.AmazonIdentityManagement},
+ * {@link com.amazonaws.services.simpleemail.AmazonSimpleEmailService}, etc).
+ * </p>
+ * <ul>
+ * <li>Each API family (the client interface and the verb of the method:
+ * "AmazonEC2:describe", "AmazonEC2:create", ...) is rate limited by a token
+ * bucket.</li>
+ * <li>"Throttling" and "RequestLimitExceeded" errors (and the other
+ * configured error codes) are retried with an exponential backoff and a
+ * random jitter. Eventual consistency errors (e.g.
+ * "InvalidInstanceID.NotFound") can be retried on given methods only, see
+ * {@link #withRetryableErrorCode(String, String...)}.</li>
+ * <li>The rate of a family is halved when AWS throttles it and then
+ * increased again after each successful call up to the configured max rate:
+ * bulk operations run at the fastest rate AWS allows.</li>
+ * <li>Retries and wait time are counted.</li>
+ * </ul>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * AmazonSimpleEmailService ses = ThrottlingRetryInvocationHandler.decorate(new AmazonSimpleEmailServiceClient(awsCredentials),
+ *         AmazonSimpleEmailService.class);
+ * </pre></code>
+ */
+public class ThrottlingRetryInvocationHandler implements InvocationHandler {
+
+    /**
+     * Adaptive token bucket.
+     */
+    private static class TokenBucket {
+
+        private final double maxRatePerSecond;
+
+        private final double minRatePerSecond;
+
+        private double ratePerSecond;
+
+        private double availableTokens;
+
+        private long lastRefillInNanos = System.nanoTime();
+
+        TokenBucket(double maxRatePerSecond) {
+            this.maxRatePerSecond = maxRatePerSecond;
+            this.minRatePerSecond = Math.min(maxRatePerSecond, 0.2);
+            this.ratePerSecond = maxRatePerSecond;
+            this.availableTokens = Math.max(1, maxRatePerSecond);
+        }
+
+        /**
+         * Take a token, sleeping if needed.
+         *
+         * @return time waited in millis
+         */
+        long acquire() throws InterruptedException {
+            long waitInMillis;
+            synchronized (this) {
+                refill();
+                availableTokens -= 1;
+                waitInMillis = availableTokens >= 0 ? 0 : (long) Math.ceil(-availableTokens * 1000 / ratePerSecond);
+            }
+            if (waitInMillis > 0) {
+                Thread.sleep(waitInMillis);
+            }
+            return waitInMillis;
+        }
+
+        synchronized void onThrottled() {
+            ratePerSecond = Math.max(minRatePerSecond, ratePerSecond / 2);
+        }
+
+        synchronized void onSuccess() {
+            ratePerSecond = Math.min(maxRatePerSecond, ratePerSecond + maxRatePerSecond / 20);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            double maxTokens = Math.max(1, ratePerSecond);
+            availableTokens = Math.min(maxTokens, availableTokens + (now - lastRefillInNanos) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+            lastRefillInNanos = now;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%.2f/s", ratePerSecond);
+        }
+    }
+
+    public static final Set<String> DEFAULT_RETRYABLE_ERROR_CODES = ImmutableSet.of("Throttling", "ThrottlingException",
+            "RequestLimitExceeded", "PriorRequestNotComplete");
+
+    private static final Logger logger = LoggerFactory.getLogger(ThrottlingRetryInvocationHandler.class);
+
+    /**
+     * Decorate the given client with the {@link #DEFAULT_RETRYABLE_ERROR_CODES}
+     * and a max rate of 10 calls per second per API family. If the given
+     * client is already decorated, it is returned as is.
+     */
+    @Nonnull
+    public static <T> T decorate(@Nonnull T client, @Nonnull Class<T> clientInterface) {
+        if (Proxy.isProxyClass(client.getClass()) && Proxy.getInvocationHandler(client) instanceof ThrottlingRetryInvocationHandler) {
+            return client;
+        }
+        return decorate(client, clientInterface, new ThrottlingRetryInvocationHandler(client, clientInterface.getSimpleName()));
+    }
+
+    /**
+     * Decorate the given client with the given handler.
+     */
+    @Nonnull
+    public static <T> T decorate(@Nonnull T client, @Nonnull Class<T> clientInterface, @Nonnull ThrottlingRetryInvocationHandler handler) {
+        return clientInterface.cast(Proxy.newProxyInstance(clientInterface.getClassLoader(), new Class<?>[]{clientInterface}, handler));
+    }
+
+    private final Object delegate;
+
+    private final String serviceName;
+
+    private final Random random = new Random();
+
+    private double maxRatePerSecond = 10;
+
+    private int maxRetries = 8;
+
+    private long baseDelayInMillis = 200;
+
+    private long maxDelayInMillis = TimeUnit.SECONDS.toMillis(20);
+
+    private Set<String> retryableErrorCodes = DEFAULT_RETRYABLE_ERROR_CODES;
+
+    private final SetMultimap<String, String> methodNamePrefixesByRetryableErrorCode = HashMultimap.create();
+
+    private final ConcurrentMap<String, TokenBucket> tokenBucketsByApiFamily = new MapMaker().makeComputingMap(new Function<String, TokenBucket>() {
+        @Override
+        public TokenBucket apply(String apiFamily) {
+            return new TokenBucket(maxRatePerSecond);
+        }
+    });
+
+    private final AtomicInteger callCount = new AtomicInteger();
+
+    private final AtomicInteger retryCount = new AtomicInteger();
+
+    private final AtomicLong waitTimeInMillis = new AtomicLong();
+
+    public ThrottlingRetryInvocationHandler(@Nonnull Object delegate, @Nonnull String serviceName) {
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.serviceName = Preconditions.checkNotNull(serviceName);
+    }
+
+    /**
+     * Max rate of each API family, the actual rate is lowered when AWS
+     * throttles the calls.
+     */
+    @Nonnull
+    public ThrottlingRetryInvocationHandler withMaxRatePerSecond(double maxRatePerSecond) {
+        this.maxRatePerSecond = maxRatePerSecond;
+        return this;
+    }
+
+    @Nonnull
+    public ThrottlingRetryInvocationHandler withMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * AWS error codes to retry (e.g. "InvalidInstanceID.NotFound" to handle
+     * EC2 eventual consistency), in addition to the
+     * {@link #DEFAULT_RETRYABLE_ERROR_CODES}.
+     */
+    @Nonnull
+    public ThrottlingRetryInvocationHandler withRetryableErrorCodes(@Nonnull String... retryableErrorCodes) {
+        this.retryableErrorCodes = ImmutableSet.<String>builder().addAll(DEFAULT_RETRYABLE_ERROR_CODES).add(retryableErrorCodes).build();
+        return this;
+    }
+
+    /**
+     * AWS error code to retry only on the methods whose name starts with one
+     * of the given prefixes (e.g. "InvalidInstanceID.NotFound" on "createTags"
+     * and "describe" to handle EC2 eventual consistency after a launch without
+     * retrying a "terminateInstances" of an unknown instance).
+     */
+    @Nonnull
+    public ThrottlingRetryInvocationHandler withRetryableErrorCode(@Nonnull String retryableErrorCode, @Nonnull String... methodNamePrefixes) {
+        methodNamePrefixesByRetryableErrorCode.putAll(retryableErrorCode, Arrays.asList(methodNamePrefixes));
+        return this;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass().equals(Object.class)) {
+            if ("toString".equals(method.getName())) {
+                return toString();
+            }
+            return invokeDelegate(method, args);
+        }
+
+        TokenBucket tokenBucket = tokenBucketsByApiFamily.get(getApiFamily(method));
+        for (int attempt = 0; ; attempt++) {
+            waitTimeInMillis.addAndGet(tokenBucket.acquire());
+            callCount.incrementAndGet();
+            try {
+                Object result = invokeDelegate(method, args);
+                tokenBucket.onSuccess();
+                return result;
+            } catch (AmazonServiceException e) {
+                if (!isRetryable(e.getErrorCode(), method) || attempt >= maxRetries) {
+                    throw e;
+                }
+                if (DEFAULT_RETRYABLE_ERROR_CODES.contains(e.getErrorCode())) {
+                    tokenBucket.onThrottled();
+                }
+                // exponential backoff with full jitter
+                long maxBackoffInMillis = Math.min(maxDelayInMillis, baseDelayInMillis << Math.min(attempt, 16));
+                long backoffInMillis = (long) (random.nextDouble() * maxBackoffInMillis);
+                logger.debug("Retry {}.{} in {}ms after {} (attempt {}/{}, rate {})", new Object[]{serviceName, method.getName(),
+                        backoffInMillis, e.getErrorCode(), attempt + 1, maxRetries, tokenBucket});
+                retryCount.incrementAndGet();
+                waitTimeInMillis.addAndGet(backoffInMillis);
+                Thread.sleep(backoffInMillis);
+            }
+        }
+    }
+
+    private boolean isRetryable(String errorCode, @Nonnull Method method) {
+        if (retryableErrorCodes.contains(errorCode)) {
+            return true;
+        }
+        for (String methodNamePrefix : methodNamePrefixesByRetryableErrorCode.get(errorCode)) {
+            if (method.getName().startsWith(methodNamePrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nonnull
+    private String getApiFamily(@Nonnull Method method) {
+        String methodName = method.getName();
+        int verbLength = 0;
+        while (verbLength < methodName.length() && Character.isLowerCase(methodName.charAt(verbLength))) {
+            verbLength++;
+        }
+        return serviceName + ":" + methodName.substring(0, verbLength);
+    }
+
+    private Object invokeDelegate(@Nonnull Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    public int getCallCount() {
+        return callCount.get();
+    }
+
+    public int getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Time spent waiting for the rate limiters and for the retries backoffs.
+     */
+    public long getWaitTimeInMillis() {
+        return waitTimeInMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{serviceName=" + serviceName + ", callCount=" + callCount + ", retryCount=" + retryCount
+                + ", waitTimeInMillis=" + waitTimeInMillis + ", rates=" + tokenBucketsByApiFamily + "}";
+    }
+}
@@ -16,29 +16,35 @@
 package fr.xebia.cloud.cloudinit;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.util.Properties;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Sets;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 
 /**
  * <p>
@@ -73,6 +79,12 @@ import com.google.common.io.CharStreams;
  * "http://bazaar.launchpad.net/~ubuntu-on-ec2/ubuntu-on-ec2/cloud-utils/view/head:/write-mime-multipart"
  * >write-mime-multipart</a> python script.
  * </p>
+ * <p>
+ * EC2 limits the user data to {@link #MAX_USER_DATA_SIZE_IN_BYTES} bytes
+ * before base64 encoding. Large cloud-configs can be gzipped with
+ * {@link #withGzipCompression(boolean)}, cloud-init detects and uncompresses
+ * them. The size limit is checked each time the user data is generated.
+ * </p>
  * 
  * @see com.amazonaws.services.ec2.model.RunInstancesRequest#withUserData(String)
  * @see com.amazonaws.services.ec2.AmazonEC2.runInstances(RunInstancesRequest)
@@ -81,6 +93,14 @@ import com.google.common.io.CharStreams;
  */
 public class CloudInitUserDataBuilder {
 
+	/**
+	 * Max size of the user data accepted by EC2 (before base64 encoding).
+	 */
+	public static final int MAX_USER_DATA_SIZE_IN_BYTES = 16 * 1024;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CloudInitUserDataBuilder.class);
+
 	/**
 	 * File types supported by CloudInit
 	 */
@@ -230,6 +250,27 @@ public class CloudInitUserDataBuilder {
 	 */
 	private final Set<FileType> alreadyAddedFileTypes = Sets.newHashSet();
 
+	/**
+	 * Gzip the mime message.
+	 */
+	private boolean gzipCompression = false;
+
+	/**
+	 * Max size of the generated user data, before base64 encoding.
+	 */
+	private int maxUserDataSizeInBytes = MAX_USER_DATA_SIZE_IN_BYTES;
+
+	/**
+	 * Size of the mime message last generated, -1 if not yet generated.
+	 */
+	private long rawSizeInBytes = -1;
+
+	/**
+	 * Size of the user data last generated (gzipped if compression is
+	 * enabled), -1 if not yet generated.
+	 */
+	private long userDataSizeInBytes = -1;
+
 	/**
 	 * Charset used to generate the mime message.
 	 */
@@ -259,6 +300,32 @@ public class CloudInitUserDataBuilder {
 				"'charset' can NOT be null");
 	}
 
+	/**
+	 * Gzip the generated mime message. Gzipped user data is binary, it must
+	 * be generated with {@link #writeTo(OutputStream)} or base64 encoded.
+	 * 
+	 * @return the builder
+	 */
+	@Nonnull
+	public CloudInitUserDataBuilder withGzipCompression(boolean gzipCompression) {
+		this.gzipCompression = gzipCompression;
+		return this;
+	}
+
+	/**
+	 * Max size of the generated user data before base64 encoding, defaults to
+	 * {@link #MAX_USER_DATA_SIZE_IN_BYTES}.
+	 * 
+	 * @return the builder
+	 */
+	@Nonnull
+	public CloudInitUserDataBuilder withMaxUserDataSize(int maxUserDataSizeInBytes) {
+		Preconditions.checkArgument(maxUserDataSizeInBytes > 0,
+				"'maxUserDataSizeInBytes' must be positive");
+		this.maxUserDataSizeInBytes = maxUserDataSizeInBytes;
+		return this;
+	}
+
 	/**
 	 * Add a boot-hook file.
 	 * 
@@ -345,23 +412,62 @@ public class CloudInitUserDataBuilder {
 		Preconditions.checkNotNull(in, "'in' can NOT be null");
 		Preconditions.checkArgument(!alreadyAddedFileTypes.contains(fileType),
 				"%s as already been added", fileType);
+
+		return addEncodedFile(fileType, encodeFile(fileType, in, charset));
+	}
+
+	/**
+	 * Add a file already encoded by
+	 * {@link #encodeFile(FileType, Readable, Charset)} with the charset of
+	 * this builder. The given bytes are not copied, they can be shared by
+	 * several builders.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             the given <code>fileType</code> was already added to this
+	 *             cloud-init mime message.
+	 */
+	@Nonnull
+	CloudInitUserDataBuilder addEncodedFile(@Nonnull FileType fileType,
+			@Nonnull byte[] encodedFile) throws IllegalArgumentException {
+		Preconditions.checkNotNull(fileType, "'fileType' can NOT be null");
+		Preconditions.checkNotNull(encodedFile,
+				"'encodedFile' can NOT be null");
+		Preconditions.checkArgument(!alreadyAddedFileTypes.contains(fileType),
+				"%s as already been added", fileType);
 		alreadyAddedFileTypes.add(fileType);
 
 		try {
-			StringWriter sw = new StringWriter();
-			CharStreams.copy(in, sw);
-			MimeBodyPart mimeBodyPart = new MimeBodyPart();
-			mimeBodyPart.setText(sw.toString(), charset.name(),
+			userDataMultipart.addBodyPart(new PreEncodedMimeBodyPart(
+					encodedFile));
+		} catch (MessagingException e) {
+			throw Throwables.propagate(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Encode the given file as a mime body part (headers and transfer encoded
+	 * content).
+	 */
+	@Nonnull
+	static byte[] encodeFile(@Nonnull FileType fileType, @Nonnull Readable in,
+			@Nonnull Charset charset) {
+		try {
+			PreEncodedMimeBodyPart mimeBodyPart = new PreEncodedMimeBodyPart(
+					null);
+			mimeBodyPart.setText(CharStreams.toString(in), charset.name(),
 					fileType.getMimeTextSubType());
 			mimeBodyPart.setFileName(fileType.getFileName());
-			userDataMultipart.addBodyPart(mimeBodyPart);
+			mimeBodyPart.updateHeaders();
 
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			mimeBodyPart.writeTo(baos);
+			return baos.toByteArray();
 		} catch (IOException e) {
 			throw Throwables.propagate(e);
 		} catch (MessagingException e) {
 			throw Throwables.propagate(e);
 		}
-		return this;
 	}
 
 	/**
@@ -484,20 +590,126 @@ public class CloudInitUserDataBuilder {
 		return addUpstartJob(new StringReader(upstartJob));
 	}
 
+	/**
+	 * Write the user-data mime message to the given stream, gzipped if
+	 * compression is enabled. The parts are encoded with the charset of this
+	 * builder, the given stream is not closed.
+	 * 
+	 * @param out
+	 *            destination of the mime message
+	 * @throws IllegalStateException
+	 *             the generated user data exceeds the max size
+	 */
+	public void writeTo(@Nonnull OutputStream out) throws IOException,
+			IllegalStateException {
+		Preconditions.checkNotNull(out, "'out' can NOT be null");
+		CountingOutputStream userDataOut = new CountingOutputStream(
+				uncloseable(out));
+		GZIPOutputStream gzipOut = null;
+		CountingOutputStream rawOut;
+		if (gzipCompression) {
+			gzipOut = new GZIPOutputStream(userDataOut);
+			rawOut = new CountingOutputStream(gzipOut);
+		} else {
+			rawOut = userDataOut;
+		}
+		try {
+			userDataMimeMessage.writeTo(rawOut);
+		} catch (MessagingException e) {
+			throw Throwables.propagate(e);
+		}
+		if (gzipOut != null) {
+			gzipOut.close();
+		}
+		rawSizeInBytes = rawOut.getCount();
+		userDataSizeInBytes = userDataOut.getCount();
+
+		logger.debug("Generated user data of {} bytes ({} bytes raw)",
+				userDataSizeInBytes, rawSizeInBytes);
+		if (userDataSizeInBytes > maxUserDataSizeInBytes) {
+			throw new IllegalStateException("User data of "
+					+ userDataSizeInBytes + " bytes (" + rawSizeInBytes
+					+ " bytes raw, gzipCompression=" + gzipCompression
+					+ ") exceeds the max size of " + maxUserDataSizeInBytes
+					+ " bytes");
+		}
+	}
+
+	/**
+	 * Write the base64 encoded user-data mime message to the given stream in
+	 * one pass, without line breaks. The given stream is not closed.
+	 * 
+	 * @param out
+	 *            destination of the base64 encoded mime message
+	 * @throws IllegalStateException
+	 *             the generated user data exceeds the max size
+	 */
+	public void writeBase64To(@Nonnull OutputStream out) throws IOException,
+			IllegalStateException {
+		Preconditions.checkNotNull(out, "'out' can NOT be null");
+		// closing the base64 stream writes the final padding
+		OutputStream base64Out = new Base64OutputStream(uncloseable(out),
+				true, 0, null);
+		writeTo(base64Out);
+		base64Out.close();
+	}
+
+	/**
+	 * Wrap the given stream to protect it from being closed.
+	 */
+	@Nonnull
+	private static OutputStream uncloseable(@Nonnull OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+	}
+
+	/**
+	 * Size of the mime message last generated, before compression.
+	 * 
+	 * @return the size in bytes or -1 if the user data has not yet been
+	 *         generated
+	 */
+	public long getRawSizeInBytes() {
+		return rawSizeInBytes;
+	}
+
+	/**
+	 * Size of the user data last generated, after compression and before
+	 * base64 encoding. This is the size checked against the EC2 limit.
+	 * 
+	 * @return the size in bytes or -1 if the user data has not yet been
+	 *         generated
+	 */
+	public long getUserDataSizeInBytes() {
+		return userDataSizeInBytes;
+	}
+
 	/**
 	 * Build the user-data mime message.
 	 * 
 	 * @return the generate mime message
+	 * @throws IllegalStateException
+	 *             gzip compression is enabled or the generated user data
+	 *             exceeds the max size
+	 * @see #writeTo(OutputStream)
 	 */
 	@Nonnull
-	public String buildUserData() {
+	public String buildUserData() throws IllegalStateException {
+		Preconditions.checkState(!gzipCompression,
+				"Gzipped user data is binary, use buildBase64UserData()");
 		try {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			userDataMimeMessage.writeTo(baos);
+			writeTo(baos);
 			return new String(baos.toByteArray(), this.charset);
-
-		} catch (MessagingException e) {
-			throw Throwables.propagate(e);
 		} catch (IOException e) {
 			throw Throwables.propagate(e);
 		}
@@ -507,9 +719,53 @@ public class CloudInitUserDataBuilder {
 	 * Build a base64 encoded user-data mime message.
 	 * 
 	 * @return the base64 encoded encoded mime message
+	 * @throws IllegalStateException
+	 *             the generated user data exceeds the max size
+	 * @see #writeBase64To(OutputStream)
 	 */
 	@Nonnull
-	public String buildBase64UserData() {
-		return Base64.encodeBase64String(buildUserData().getBytes());
+	public String buildBase64UserData() throws IllegalStateException {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			writeBase64To(baos);
+			return new String(baos.toByteArray(), Charsets.US_ASCII);
+		} catch (IOException e) {
+			throw Throwables.propagate(e);
+		}
+	}
+
+	/**
+	 * Mime body part whose headers and content are already encoded, written
+	 * as is in the multipart.
+	 */
+	private static class PreEncodedMimeBodyPart extends MimeBodyPart {
+
+		/**
+		 * <code>null</code> while the part is being encoded.
+		 */
+		@Nullable
+		private final byte[] encodedPart;
+
+		private PreEncodedMimeBodyPart(@Nullable byte[] encodedPart) {
+			super();
+			this.encodedPart = encodedPart;
+		}
+
+		@Override
+		protected void updateHeaders() throws MessagingException {
+			if (encodedPart == null) {
+				super.updateHeaders();
+			}
+		}
+
+		@Override
+		public void writeTo(OutputStream os) throws IOException,
+				MessagingException {
+			if (encodedPart == null) {
+				super.writeTo(os);
+			} else {
+				os.write(encodedPart);
+			}
+		}
 	}
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.cloudinit;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder.FileType;
+
+/**
+ * <p>
+ * Generate the user data of many instances that only differ by a few
+ * parameters (hostname, cname, jdbc settings, ...).
+ * </p>
+ * <ul>
+ * <li>Invariant files are encoded as mime body parts once, when they are added
+ * to the template, and then shared by all the generated user data.</li>
+ * <li>Variable files are Freemarker templates (see {@link FreemarkerUtils})
+ * rendered with the given parameters.</li>
+ * <li>The generated user data are cached by parameters, the
+ * {@value #MAX_CACHED_USER_DATA_COUNT} most recently used are kept. The user
+ * data of parameters holding <code>null</code> keys or values are built each
+ * time.</li>
+ * </ul>
+ * <p>
+ * Sample:
+ * </p>
+ *
+ * <pre>
+ * <code>
+ * CloudInitUserDataTemplate userDataTemplate = CloudInitUserDataTemplate.start() //
+ *                      .addCloudConfigFromFilePath("cloud-config-amzn-linux.txt") //
+ *                      .addShellScriptTemplate("/provision_tomcat.py.ftl");
+ *
+ * for (String teamIdentifier : teamIdentifiers) {
+ *     Map&lt;String, Object&gt; parameters = ImmutableMap.&lt;String, Object&gt; of("teamIdentifier", teamIdentifier);
+ *     String userData = userDataTemplate.buildBase64UserData(parameters);
+ *     ...
+ * }
+ * </code>
+ * </pre>
+ */
+public class CloudInitUserDataTemplate {
+
+    /**
+     * A file of the template: pre-encoded invariant file or Freemarker
+     * template.
+     */
+    private static class TemplateFile {
+        final FileType fileType;
+        final byte[] encodedFile;
+        final String templatePath;
+
+        TemplateFile(FileType fileType, byte[] encodedFile, String templatePath) {
+            this.fileType = fileType;
+            this.encodedFile = encodedFile;
+            this.templatePath = templatePath;
+        }
+    }
+
+    public static final int MAX_CACHED_USER_DATA_COUNT = 256;
+
+    /**
+     * Initiates a new template with the "UTF-8" charset.
+     */
+    @Nonnull
+    public static CloudInitUserDataTemplate start() {
+        return new CloudInitUserDataTemplate(Charsets.UTF_8);
+    }
+
+    /**
+     * Initiates a new template.
+     *
+     * @param charset
+     *            used to generate the mime message.
+     */
+    @Nonnull
+    public static CloudInitUserDataTemplate start(@Nonnull String charset) {
+        return new CloudInitUserDataTemplate(Charset.forName(charset));
+    }
+
+    private final Charset charset;
+
+    private final List<TemplateFile> templateFiles = Lists.newArrayList();
+
+    private final Set<FileType> alreadyAddedFileTypes = Sets.newHashSet();
+
+    private boolean gzipCompression = false;
+
+    private int maxUserDataSizeInBytes = CloudInitUserDataBuilder.MAX_USER_DATA_SIZE_IN_BYTES;
+
+    /**
+     * Base64 user data by parameters. Populated by
+     * {@link #buildBase64UserData(Map)} rather than computed by the cache so
+     * that the build errors are thrown as is and never cached.
+     */
+    private final Cache<Map<String, Object>, String> base64UserDataByParameters = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_USER_DATA_COUNT).build();
+
+    private CloudInitUserDataTemplate(@Nonnull Charset charset) {
+        this.charset = Preconditions.checkNotNull(charset, "'charset' can NOT be null");
+    }
+
+    /**
+     * Add an invariant file, encoded once.
+     *
+     * @return the template
+     * @throws IllegalArgumentException
+     *             the given <code>fileType</code> was already added to this
+     *             template.
+     */
+    @Nonnull
+    public CloudInitUserDataTemplate addFile(@Nonnull FileType fileType, @Nonnull Readable in) throws IllegalArgumentException {
+        Preconditions.checkNotNull(in, "'in' can NOT be null");
+        checkNotAlreadyAdded(fileType);
+        templateFiles.add(new TemplateFile(fileType, CloudInitUserDataBuilder.encodeFile(fileType, in, charset), null));
+        return this;
+    }
+
+    /**
+     * Add an invariant cloud-config file, encoded once.
+     *
+     * @param cloudConfigFilePath
+     *            classpath relative file path (e.g.
+     *            "com/my/company/cloud-config.txt")
+     * @return the template
+     */
+    @Nonnull
+    public CloudInitUserDataTemplate addCloudConfigFromFilePath(@Nonnull String cloudConfigFilePath) {
+        InputStream cloudConfigAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(cloudConfigFilePath);
+        Preconditions.checkNotNull(cloudConfigAsStream, "'" + cloudConfigFilePath + "' not found in path");
+        try {
+            return addFile(FileType.CLOUD_CONFIG, new InputStreamReader(cloudConfigAsStream, charset));
+        } finally {
+            Closeables.closeQuietly(cloudConfigAsStream);
+        }
+    }
+
+    /**
+     * Add a variable file rendered with the parameters of each generated user
+     * data.
+     *
+     * @param templatePath
+     *            classpath path of the Freemarker template (e.g.
+     *            "/provision_tomcat.py.ftl")
+     * @return the template
+     * @throws IllegalArgumentException
+     *             the given <code>fileType</code> was already added to this
+     *             template.
+     */
+    @Nonnull
+    public CloudInitUserDataTemplate addFileTemplate(@Nonnull FileType fileType, @Nonnull String templatePath)
+            throws IllegalArgumentException {
+        Preconditions.checkNotNull(templatePath, "'templatePath' can NOT be null");
+        checkNotAlreadyAdded(fileType);
+        FreemarkerUtils.preloadTemplates(templatePath);
+        templateFiles.add(new TemplateFile(fileType, null, templatePath));
+        return this;
+    }
+
+    /**
+     * @see #addFileTemplate(FileType, String)
+     */
+    @Nonnull
+    public CloudInitUserDataTemplate addCloudConfigTemplate(@Nonnull String templatePath) {
+        return addFileTemplate(FileType.CLOUD_CONFIG, templatePath);
+    }
+
+    /**
+     * @see #addFileTemplate(FileType, String)
+     */
+    @Nonnull
+    public CloudInitUserDataTemplate addShellScriptTemplate(@Nonnull String templatePath) {
+        return addFileTemplate(FileType.SHELL_SCRIPT, templatePath);
+    }
+
+    /**
+     * @see CloudInitUserDataBuilder#withGzipCompression(boolean)
+     */
+    @Nonnull
+    public CloudInitUserDataTemplate withGzipCompression(boolean gzipCompression) {
+        this.gzipCompression = gzipCompression;
+        return this;
+    }
+
+    /**
+     * @see CloudInitUserDataBuilder#withMaxUserDataSize(int)
+     */
+    @Nonnull
+    public CloudInitUserDataTemplate withMaxUserDataSize(int maxUserDataSizeInBytes) {
+        Preconditions.checkArgument(maxUserDataSizeInBytes > 0, "'maxUserDataSizeInBytes' must be positive");
+        this.maxUserDataSizeInBytes = maxUserDataSizeInBytes;
+        return this;
+    }
+
+    /**
+     * Build the base64 encoded user data for the given parameters or return
+     * the one already built for equal parameters. Parameters holding
+     * <code>null</code> keys or values can't be used as a cache key, their
+     * user data is built without being cached.
+     *
+     * @param parameters
+     *            root node of the Freemarker datamodel of the variable files,
+     *            must not be modified once given
+     * @return the base64 encoded mime message
+     * @throws IllegalStateException
+     *             the generated user data exceeds the max size
+     */
+    @Nonnull
+    public String buildBase64UserData(@Nonnull Map<String, ? extends Object> parameters) throws IllegalStateException {
+        Preconditions.checkNotNull(parameters, "'parameters' can NOT be null");
+        for (Map.Entry<String, ? extends Object> entry : parameters.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                return newBuilder(parameters).buildBase64UserData();
+            }
+        }
+        Map<String, Object> key = ImmutableMap.<String, Object> copyOf(parameters);
+        String base64UserData = base64UserDataByParameters.getIfPresent(key);
+        if (base64UserData == null) {
+            base64UserData = newBuilder(key).buildBase64UserData();
+            base64UserDataByParameters.put(key, base64UserData);
+        }
+        return base64UserData;
+    }
+
+    /**
+     * Builder of the user data for the given parameters, to generate the user
+     * data without caching it (e.g. with
+     * {@link CloudInitUserDataBuilder#writeTo(java.io.OutputStream)}).
+     */
+    @Nonnull
+    public CloudInitUserDataBuilder newBuilder(@Nonnull Map<String, ? extends Object> parameters) {
+        CloudInitUserDataBuilder builder = CloudInitUserDataBuilder.start(charset.name()) //
+                .withGzipCompression(gzipCompression) //
+                .withMaxUserDataSize(maxUserDataSizeInBytes);
+        for (TemplateFile templateFile : templateFiles) {
+            if (templateFile.encodedFile == null) {
+                builder.addFile(templateFile.fileType, new StringReader(FreemarkerUtils.generate(parameters, templateFile.templatePath)));
+            } else {
+                builder.addEncodedFile(templateFile.fileType, templateFile.encodedFile);
+            }
+        }
+        return builder;
+    }
+
+    private void checkNotAlreadyAdded(@Nonnull FileType fileType) throws IllegalArgumentException {
+        Preconditions.checkNotNull(fileType, "'fileType' can NOT be null");
+        Preconditions.checkArgument(!alreadyAddedFileTypes.contains(fileType), "%s as already been added", fileType);
+        alreadyAddedFileTypes.add(fileType);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{charset=" + charset + ", files=" + alreadyAddedFileTypes + ", gzipCompression="
+                + gzipCompression + ", cachedUserDataCount=" + base64UserDataByParameters.size() + "}";
+    }
+}
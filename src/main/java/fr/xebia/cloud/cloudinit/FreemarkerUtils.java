@@ -16,25 +16,65 @@ package fr.xebia.cloud.cloudinit;
  */
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Map;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
 
+import freemarker.cache.StrongCacheStorage;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 
+/**
+ * <p>
+ * Freemarker rendering helper.
+ * </p>
+ * <p>
+ * All the templates are loaded from the classpath by one shared
+ * {@link Configuration}: each template is parsed once and the compiled
+ * {@link Template} is then kept in memory and reused by all the threads.
+ * Templates are classpath resources, they are never checked for
+ * modifications.
+ * </p>
+ */
 public class FreemarkerUtils {
 
+    private static final Logger logger = LoggerFactory.getLogger(FreemarkerUtils.class);
+
+    /**
+     * Freemarker configurations are thread safe once configured.
+     */
+    private static final Configuration configuration = new Configuration();
+
+    static {
+        configuration.setClassForTemplateLoading(FreemarkerUtils.class, "/");
+        configuration.setCacheStorage(new StrongCacheStorage());
+        configuration.setTemplateUpdateDelay(Integer.MAX_VALUE);
+    }
+
+    /**
+     * private constructor for utils class.
+     */
+    private FreemarkerUtils() {
+
+    }
+
     /**
      * 
      * @param rootMap
@@ -43,20 +83,34 @@ public class FreemarkerUtils {
      *            classpath classpath path of the template (e.g. "/my-template.ftl")
      * @return generated file
      */
-    @SuppressWarnings("unchecked")
     @Nonnull
     public static String generate(@Nullable Map<String, ? extends Object> rootMap, @Nonnull String templatePath) {
+        Writer out = new StringWriter();
+        generate(rootMap, templatePath, out);
+        return out.toString();
+    }
+
+    /**
+     * Render the given template to the given writer without buffering the
+     * whole generated content. The writer is flushed but not closed.
+     * 
+     * @param rootMap
+     *            root node of the freemarker datamodel.
+     * @param templatePath
+     *            classpath classpath path of the template (e.g. "/my-template.ftl")
+     * @param out
+     *            destination of the generated content
+     */
+    @SuppressWarnings("unchecked")
+    public static void generate(@Nullable Map<String, ? extends Object> rootMap, @Nonnull String templatePath, @Nonnull Writer out) {
         Preconditions.checkNotNull(templatePath, "'templatePath' can NOT be null");
+        Preconditions.checkNotNull(out, "'out' can NOT be null");
         rootMap = (Map<String, Object>) Objects.firstNonNull(rootMap, Collections.emptyMap());
 
         try {
-            Configuration cfg = new Configuration();
-            cfg.setClassForTemplateLoading(FreemarkerUtils.class, "/");
-
-            Template template = cfg.getTemplate(templatePath);
-            Writer out = new StringWriter();
+            Template template = configuration.getTemplate(templatePath);
             template.process(rootMap, out);
-            return out.toString();
+            out.flush();
         } catch (IOException e) {
             throw Throwables.propagate(e);
         } catch (TemplateException e) {
@@ -64,4 +118,53 @@ public class FreemarkerUtils {
         }
     }
 
+    /**
+     * Render the given template to the given file, created or overwritten.
+     * The errors closing the file are propagated unless the rendering already
+     * failed.
+     * 
+     * @param rootMap
+     *            root node of the freemarker datamodel.
+     * @param templatePath
+     *            classpath classpath path of the template (e.g. "/my-template.ftl")
+     * @param file
+     *            destination of the generated content
+     * @param charset
+     *            charset of the generated file
+     */
+    public static void generate(@Nullable Map<String, ? extends Object> rootMap, @Nonnull String templatePath, @Nonnull File file,
+            @Nonnull Charset charset) {
+        Preconditions.checkNotNull(file, "'file' can NOT be null");
+        try {
+            Writer out = Files.newWriter(file, charset);
+            boolean threw = true;
+            try {
+                generate(rootMap, templatePath, out);
+                threw = false;
+            } finally {
+                Closeables.close(out, threw);
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Parse the given templates and put them in the cache, typically at
+     * startup, so that syntax errors are detected before rendering anything.
+     * 
+     * @param templatePaths
+     *            classpath paths of the templates (e.g. "/my-template.ftl")
+     */
+    public static void preloadTemplates(@Nonnull String... templatePaths) {
+        for (String templatePath : templatePaths) {
+            try {
+                configuration.getTemplate(templatePath);
+                logger.debug("Preloaded template {}", templatePath);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
 }
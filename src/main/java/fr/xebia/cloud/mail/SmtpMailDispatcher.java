@@ -0,0 +1,367 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Send emails through a pool of persistent SMTP connections.
+ * </p>
+ * <ul>
+ * <li>{@link #send(MimeMessage)} enqueues the message in a bounded queue
+ * drained by one worker thread per SMTP connection. Producers block when the
+ * queue is full.</li>
+ * <li>The sending rate is limited to {@link #withMaxMessagesPerSecond(double)}
+ * rather than sleeping after each message.</li>
+ * <li>Broken connections are reconnected and the message is retried
+ * once. Rejected messages and recipients are not retried.</li>
+ * <li>Sent, failed and retried messages as well as the sending time are
+ * counted (see {@link #toString()}).</li>
+ * </ul>
+ * <p>
+ * The SMTP server and the credentials are read from the standard JavaMail
+ * properties plus "mail.username", "mail.password" and "mail.from".
+ * </p>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * SmtpMailDispatcher mailDispatcher = SmtpMailDispatcher.fromClasspath("smtp.properties").withMaxMessagesPerSecond(5);
+ * MimeMessage msg = new MimeMessage(mailDispatcher.getSession());
+ * ...
+ * mailDispatcher.send(msg);
+ * ...
+ * mailDispatcher.close();
+ * </pre></code>
+ */
+public class SmtpMailDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmtpMailDispatcher.class);
+
+    /**
+     * Load the given SMTP properties file from the classpath.
+     */
+    @Nonnull
+    public static SmtpMailDispatcher fromClasspath(@Nonnull String smtpPropertiesPath) {
+        InputStream smtpPropertiesAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(smtpPropertiesPath);
+        Preconditions.checkNotNull(smtpPropertiesAsStream, "File '/" + smtpPropertiesPath + "' NOT found in the classpath");
+        try {
+            Properties smtpProperties = new Properties();
+            smtpProperties.load(smtpPropertiesAsStream);
+            return new SmtpMailDispatcher(smtpProperties);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            Closeables.closeQuietly(smtpPropertiesAsStream);
+        }
+    }
+
+    private final Session session;
+
+    private final Properties smtpProperties;
+
+    private final InternetAddress mailFrom;
+
+    private int poolSize = 4;
+
+    private int queueCapacity = 50;
+
+    private double maxMessagesPerSecond = 5;
+
+    private ExecutorService executorService;
+
+    private BlockingQueue<Transport> transports;
+
+    /**
+     * Permits of the bounded send queue (queued and in progress messages).
+     */
+    private Semaphore queuePermits;
+
+    private long nextSendTimeInNanos;
+
+    private final AtomicInteger sentCount = new AtomicInteger();
+
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    private final AtomicInteger reconnectCount = new AtomicInteger();
+
+    private final AtomicLong sendTimeInNanos = new AtomicLong();
+
+    public SmtpMailDispatcher(@Nonnull Properties smtpProperties) {
+        this.smtpProperties = Preconditions.checkNotNull(smtpProperties);
+        this.session = Session.getInstance(smtpProperties, null);
+        try {
+            this.mailFrom = new InternetAddress(smtpProperties.getProperty("mail.from"));
+        } catch (Exception e) {
+            throw Throwables.propagate(new MessagingException("Exception parsing 'mail.from' from smtp properties", e));
+        }
+    }
+
+    /**
+     * Number of SMTP connections and of worker threads, must be called
+     * before the first message is sent.
+     */
+    @Nonnull
+    public SmtpMailDispatcher withPoolSize(int poolSize) {
+        Preconditions.checkState(executorService == null, "Dispatcher already started");
+        Preconditions.checkArgument(poolSize > 0, "poolSize must be positive");
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * Max number of messages waiting to be sent, must be called before the
+     * first message is sent.
+     */
+    @Nonnull
+    public SmtpMailDispatcher withQueueCapacity(int queueCapacity) {
+        Preconditions.checkState(executorService == null, "Dispatcher already started");
+        Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Max sending rate of all the connections.
+     */
+    @Nonnull
+    public SmtpMailDispatcher withMaxMessagesPerSecond(double maxMessagesPerSecond) {
+        Preconditions.checkArgument(maxMessagesPerSecond > 0, "maxMessagesPerSecond must be positive");
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+        return this;
+    }
+
+    /**
+     * Session to use to create the messages.
+     */
+    @Nonnull
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * "mail.from" address.
+     */
+    @Nonnull
+    public InternetAddress getMailFrom() {
+        return mailFrom;
+    }
+
+    /**
+     * Enqueue the given message, blocking while the send queue is full.
+     *
+     * @return the future result of the sending, failed with a
+     *         {@link MessagingException} if the message could not be sent
+     */
+    @Nonnull
+    public Future<Void> send(@Nonnull final MimeMessage msg) {
+        Preconditions.checkNotNull(msg, "msg can NOT be null");
+        start();
+        try {
+            queuePermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        try {
+            return executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        doSend(msg);
+                        return null;
+                    } finally {
+                        queuePermits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            queuePermits.release();
+            throw e;
+        }
+    }
+
+    private synchronized void start() {
+        Preconditions.checkState(executorService == null || !executorService.isShutdown(), "Dispatcher is closed");
+        if (executorService != null) {
+            return;
+        }
+        transports = new ArrayBlockingQueue<Transport>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            try {
+                transports.add(session.getTransport());
+            } catch (MessagingException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        queuePermits = new Semaphore(queueCapacity + poolSize);
+        executorService = Executors.newFixedThreadPool(poolSize, new ThreadFactoryBuilder().setNameFormat("smtp-mail-dispatcher-%d")
+                .build());
+    }
+
+    private void doSend(@Nonnull MimeMessage msg) throws InterruptedException, MessagingException {
+        Transport transport = transports.take();
+        try {
+            awaitRateLimit();
+            long startTimeInNanos = System.nanoTime();
+            try {
+                connectIfNeeded(transport);
+                transport.sendMessage(msg, msg.getAllRecipients());
+            } catch (MessagingException e) {
+                if (!isConnectionFailure(e, transport)) {
+                    throw e;
+                }
+                logger.info("Failure sending message to {}, reconnect and retry: {}", Arrays.toString(msg.getAllRecipients()),
+                        e.toString());
+                reconnectCount.incrementAndGet();
+                try {
+                    transport.close();
+                } catch (MessagingException closeException) {
+                    logger.debug("Ignore exception closing transport", closeException);
+                }
+                connectIfNeeded(transport);
+                transport.sendMessage(msg, msg.getAllRecipients());
+            }
+            sendTimeInNanos.addAndGet(System.nanoTime() - startTimeInNanos);
+            sentCount.incrementAndGet();
+            logger.debug("Sent message to {}", Arrays.toString(msg.getAllRecipients()));
+        } catch (MessagingException e) {
+            failedCount.incrementAndGet();
+            logger.error("Failure sending message to " + Arrays.toString(msg.getAllRecipients()), e);
+            throw e;
+        } finally {
+            transports.add(transport);
+        }
+    }
+
+    /**
+     * <p>
+     * Only a broken connection is worth a retry.
+     * </p>
+     * <p>
+     * A {@link SendFailedException} can follow a partial delivery (retrying
+     * would send duplicates to the valid recipients) or an invalid address
+     * (retrying would fail again).
+     * </p>
+     */
+    private boolean isConnectionFailure(@Nonnull MessagingException e, @Nonnull Transport transport) {
+        if (e instanceof SendFailedException) {
+            return false;
+        }
+        for (Exception cause = e; cause != null; cause = cause instanceof MessagingException ? ((MessagingException) cause)
+                .getNextException() : null) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return !transport.isConnected();
+    }
+
+    private void connectIfNeeded(@Nonnull Transport transport) throws MessagingException {
+        if (transport.isConnected()) {
+            return;
+        }
+        if (smtpProperties.containsKey("mail.username")) {
+            transport.connect(smtpProperties.getProperty("mail.username"), smtpProperties.getProperty("mail.password"));
+        } else {
+            transport.connect();
+        }
+    }
+
+    /**
+     * Space the messages by <code>1 / maxMessagesPerSecond</code> seconds.
+     */
+    private void awaitRateLimit() throws InterruptedException {
+        long waitInNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextSendTimeInNanos = Math.max(nextSendTimeInNanos, now);
+            waitInNanos = nextSendTimeInNanos - now;
+            nextSendTimeInNanos += (long) (TimeUnit.SECONDS.toNanos(1) / maxMessagesPerSecond);
+        }
+        if (waitInNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitInNanos);
+        }
+    }
+
+    /**
+     * Wait for the queued messages to be sent and close the SMTP connections.
+     */
+    public void close() {
+        synchronized (this) {
+            if (executorService == null) {
+                return;
+            }
+            executorService.shutdown();
+        }
+        try {
+            if (!executorService.awaitTermination(30, TimeUnit.MINUTES)) {
+                logger.warn("Timeout waiting for the queued messages to be sent, {}", this);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            executorService.shutdownNow();
+            for (Transport transport : transports) {
+                try {
+                    transport.close();
+                } catch (MessagingException e) {
+                    logger.debug("Ignore exception closing transport", e);
+                }
+            }
+        }
+        logger.info("Mail dispatcher closed: {}", this);
+    }
+
+    @Override
+    public String toString() {
+        int sent = sentCount.get();
+        return getClass().getSimpleName() + "{poolSize=" + poolSize + ", maxMessagesPerSecond=" + maxMessagesPerSecond + ", sent=" + sent
+                + ", failed=" + failedCount + ", reconnects=" + reconnectCount + ", avgSendTimeInMillis="
+                + (sent == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(sendTimeInNanos.get()) / sent) + "}";
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.demo.amazon.aws;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeTagsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TagDescription;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Long running scheduler starting and stopping the EC2 instances according to
+ * their {@value #TAG_SCHEDULE} tag (e.g. "mon-fri 08:00-19:00" for office
+ * hours, "07:30-22:00" for every day).
+ * </p>
+ * <ul>
+ * <li>Instances are started when their time window opens and stopped when it
+ * closes: in between, an instance started or stopped by hand is left
+ * unchanged.</li>
+ * <li>Instances tagged {@value AmazonAwsShutdowner#TAG_DO_NOT_STOP} are never
+ * stopped.</li>
+ * <li>The scheduled instances are indexed from their tags only (server side
+ * filtered <code>DescribeTags</code>), the index is refreshed every
+ * {@link #withIndexRefreshPeriodInMillis(long)} instead of scanning the
+ * account at each reconciliation.</li>
+ * <li>Instances reaching a window edge at the same reconciliation are
+ * started or stopped with multi instances calls.</li>
+ * </ul>
+ * <p>
+ * Sample:
+ * </p>
+ * <code><pre>
+ * new AmazonAwsInstanceScheduler(ec2, TimeZone.getTimeZone("Europe/Paris")).start(1, TimeUnit.MINUTES);
+ * </pre></code>
+ */
+public class AmazonAwsInstanceScheduler {
+
+    /**
+     * Daily time window, optionally restricted to a range of days of the
+     * week: "[mon-fri ]HH:mm-HH:mm". Windows can not span midnight.
+     */
+    public static class TimeWindow {
+
+        private static final Pattern PATTERN = Pattern
+                .compile("(?:(mon|tue|wed|thu|fri|sat|sun)-(mon|tue|wed|thu|fri|sat|sun)\\s+)?(\\d{1,2}):(\\d{2})-(\\d{1,2}):(\\d{2})");
+
+        private static final List<String> DAYS = Lists.newArrayList("mon", "tue", "wed", "thu", "fri", "sat", "sun");
+
+        @Nonnull
+        public static TimeWindow parse(@Nonnull String value) {
+            Matcher matcher = PATTERN.matcher(value.trim().toLowerCase());
+            Preconditions.checkArgument(matcher.matches(), "Invalid time window '%s', expected '[mon-fri ]HH:mm-HH:mm'", value);
+            int firstDay = matcher.group(1) == null ? 0 : DAYS.indexOf(matcher.group(1));
+            int lastDay = matcher.group(2) == null ? 6 : DAYS.indexOf(matcher.group(2));
+            int startMinute = Integer.parseInt(matcher.group(3)) * 60 + Integer.parseInt(matcher.group(4));
+            int endMinute = Integer.parseInt(matcher.group(5)) * 60 + Integer.parseInt(matcher.group(6));
+            Preconditions.checkArgument(startMinute < endMinute && endMinute <= 24 * 60, "Invalid time window '%s'", value);
+            return new TimeWindow(firstDay, lastDay, startMinute, endMinute);
+        }
+
+        /**
+         * Days of the week, 0 for monday.
+         */
+        private final int firstDay;
+        private final int lastDay;
+
+        /**
+         * Minutes of the day.
+         */
+        private final int startMinute;
+        private final int endMinute;
+
+        private TimeWindow(int firstDay, int lastDay, int startMinute, int endMinute) {
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+        }
+
+        public boolean contains(@Nonnull Date date, @Nonnull TimeZone timeZone) {
+            Calendar calendar = Calendar.getInstance(timeZone);
+            calendar.setTime(date);
+            // Calendar.SUNDAY is 1, Calendar.MONDAY is 2
+            int day = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+            boolean dayInRange = firstDay <= lastDay ? firstDay <= day && day <= lastDay : day >= firstDay || day <= lastDay;
+            int minute = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+            return dayInRange && startMinute <= minute && minute < endMinute;
+        }
+
+        @Override
+        public String toString() {
+            return DAYS.get(firstDay) + "-" + DAYS.get(lastDay) + " " + String.format("%02d:%02d-%02d:%02d", startMinute / 60,
+                    startMinute % 60, endMinute / 60, endMinute % 60);
+        }
+    }
+
+    /**
+     * Indexed instance.
+     */
+    private static class ScheduledInstance {
+        private String scheduleTagValue;
+        private TimeWindow timeWindow;
+        private boolean doNotStop;
+        /**
+         * <code>null</code> until the first reconciliation.
+         */
+        private Boolean inTimeWindow;
+    }
+
+    public static final String TAG_SCHEDULE = "schedule";
+
+    private static final Logger logger = LoggerFactory.getLogger(AmazonAwsInstanceScheduler.class);
+
+    private final AmazonEC2 ec2;
+
+    private final TimeZone timeZone;
+
+    private long indexRefreshPeriodInMillis = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+
+    private long lastIndexRefreshTimeInMillis;
+
+    private final Map<String, ScheduledInstance> scheduledInstancesById = Maps.newHashMap();
+
+    private int startedCount;
+
+    private int stoppedCount;
+
+    private ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * @param ec2      should retry the throttling errors, see
+     *                 {@link fr.xebia.cloud.amazon.aws.tools.ThrottlingRetryInvocationHandler}
+     * @param timeZone time zone of the time windows
+     */
+    public AmazonAwsInstanceScheduler(@Nonnull AmazonEC2 ec2, @Nonnull TimeZone timeZone) {
+        this.ec2 = Preconditions.checkNotNull(ec2);
+        this.timeZone = Preconditions.checkNotNull(timeZone);
+    }
+
+    @Nonnull
+    public AmazonAwsInstanceScheduler withIndexRefreshPeriodInMillis(long indexRefreshPeriodInMillis) {
+        this.indexRefreshPeriodInMillis = indexRefreshPeriodInMillis;
+        return this;
+    }
+
+    /**
+     * Reconcile the instances with their schedule every given period.
+     */
+    public synchronized void start(long period, @Nonnull TimeUnit unit) {
+        Preconditions.checkState(scheduledExecutorService == null, "Scheduler already started");
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(
+                "amazon-aws-instance-scheduler-%d").build());
+        scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconcile(new Date());
+                } catch (RuntimeException e) {
+                    // don't kill the scheduler, retry at next period
+                    logger.warn("Failure reconciling the instances with their schedule", e);
+                }
+            }
+        }, 0, period, unit);
+        logger.info("Started {} with a period of {} {}", new Object[]{this, period, unit});
+    }
+
+    public synchronized void stop() {
+        if (scheduledExecutorService != null) {
+            scheduledExecutorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Start the instances whose time window opened and stop those whose
+     * window closed since the previous reconciliation. An instance whose
+     * start or stop fails keeps its previous state and is retried at the next
+     * reconciliation.
+     */
+    public synchronized void reconcile(@Nonnull Date now) {
+        if (System.currentTimeMillis() - lastIndexRefreshTimeInMillis >= indexRefreshPeriodInMillis) {
+            refreshIndex();
+        }
+
+        List<String> instanceIdsToStart = Lists.newArrayList();
+        List<String> instanceIdsToStop = Lists.newArrayList();
+        for (Map.Entry<String, ScheduledInstance> entry : scheduledInstancesById.entrySet()) {
+            ScheduledInstance scheduledInstance = entry.getValue();
+            if (scheduledInstance.timeWindow == null) {
+                continue;
+            }
+            boolean inTimeWindow = scheduledInstance.timeWindow.contains(now, timeZone);
+            Boolean previouslyInTimeWindow = scheduledInstance.inTimeWindow;
+            if (previouslyInTimeWindow == null || previouslyInTimeWindow == inTimeWindow) {
+                scheduledInstance.inTimeWindow = inTimeWindow;
+            } else if (inTimeWindow) {
+                instanceIdsToStart.add(entry.getKey());
+            } else if (!scheduledInstance.doNotStop) {
+                instanceIdsToStop.add(entry.getKey());
+            } else {
+                scheduledInstance.inTimeWindow = inTimeWindow;
+            }
+        }
+
+        // the window edge is committed only once the instance is started or stopped
+        for (String instanceId : startOrStopInstances(instanceIdsToStart, true)) {
+            scheduledInstancesById.get(instanceId).inTimeWindow = Boolean.TRUE;
+            startedCount++;
+        }
+        for (String instanceId : startOrStopInstances(instanceIdsToStop, false)) {
+            scheduledInstancesById.get(instanceId).inTimeWindow = Boolean.FALSE;
+            stoppedCount++;
+        }
+        logger.debug("Reconciled {}", this);
+    }
+
+    /**
+     * Start or stop the given instances with multi instances calls, falling
+     * back to one call per instance when a multi instances call fails.
+     *
+     * @return the identifiers of the instances successfully started or
+     *         stopped
+     */
+    @Nonnull
+    private List<String> startOrStopInstances(@Nonnull List<String> instanceIds, boolean start) {
+        String action = start ? "start" : "stop";
+        List<String> succeededInstanceIds = Lists.newArrayList();
+        for (List<String> batch : Lists.partition(instanceIds, AmazonAwsShutdownPlan.MAX_INSTANCES_PER_REQUEST)) {
+            logger.info("{} instances {}", start ? "Start" : "Stop", batch);
+            try {
+                startOrStop(batch, start);
+                succeededInstanceIds.addAll(batch);
+            } catch (AmazonClientException e) {
+                logger.warn("Failure to " + action + " instances " + batch + ", " + action + " them one by one", e);
+                for (String instanceId : batch) {
+                    try {
+                        startOrStop(Lists.newArrayList(instanceId), start);
+                        succeededInstanceIds.add(instanceId);
+                    } catch (AmazonClientException instanceException) {
+                        logger.warn("Failure to {} instance {}, retry at next reconciliation: {}", new Object[]{action, instanceId,
+                                instanceException.toString()});
+                    }
+                }
+            }
+        }
+        return succeededInstanceIds;
+    }
+
+    private void startOrStop(@Nonnull List<String> instanceIds, boolean start) {
+        if (start) {
+            ec2.startInstances(new StartInstancesRequest(instanceIds));
+        } else {
+            ec2.stopInstances(new StopInstancesRequest(instanceIds));
+        }
+    }
+
+    /**
+     * Update the index of the scheduled instances with their current tags,
+     * preserving the reconciliation state of the instances whose schedule is
+     * unchanged.
+     */
+    private void refreshIndex() {
+        long startTimeInMillis = System.currentTimeMillis();
+        DescribeTagsRequest describeTagsRequest = new DescribeTagsRequest().withFilters( //
+                new Filter("resource-type", Lists.newArrayList("instance")), //
+                new Filter("key", Lists.newArrayList(TAG_SCHEDULE, AmazonAwsShutdowner.TAG_DO_NOT_STOP)));
+        List<TagDescription> tagDescriptions = ec2.describeTags(describeTagsRequest).getTags();
+
+        Map<String, String> scheduleTagValueByInstanceId = Maps.newHashMap();
+        Map<String, Boolean> doNotStopByInstanceId = Maps.newHashMap();
+        for (TagDescription tagDescription : tagDescriptions) {
+            if (TAG_SCHEDULE.equals(tagDescription.getKey())) {
+                scheduleTagValueByInstanceId.put(tagDescription.getResourceId(), tagDescription.getValue());
+            } else {
+                doNotStopByInstanceId.put(tagDescription.getResourceId(), Boolean.TRUE);
+            }
+        }
+
+        scheduledInstancesById.keySet().retainAll(scheduleTagValueByInstanceId.keySet());
+        for (Map.Entry<String, String> entry : scheduleTagValueByInstanceId.entrySet()) {
+            String instanceId = entry.getKey();
+            ScheduledInstance scheduledInstance = scheduledInstancesById.get(instanceId);
+            if (scheduledInstance == null) {
+                scheduledInstance = new ScheduledInstance();
+                scheduledInstancesById.put(instanceId, scheduledInstance);
+            }
+            if (!Objects.equal(scheduledInstance.scheduleTagValue, entry.getValue())) {
+                scheduledInstance.scheduleTagValue = entry.getValue();
+                scheduledInstance.timeWindow = parseTimeWindow(instanceId, entry.getValue());
+                scheduledInstance.inTimeWindow = null;
+            }
+            scheduledInstance.doNotStop = doNotStopByInstanceId.containsKey(instanceId);
+        }
+        lastIndexRefreshTimeInMillis = System.currentTimeMillis();
+        logger.debug("Refreshed index of {} scheduled instances in {}ms", scheduledInstancesById.size(), lastIndexRefreshTimeInMillis
+                - startTimeInMillis);
+    }
+
+    @Nullable
+    private TimeWindow parseTimeWindow(@Nonnull String instanceId, @Nullable String scheduleTagValue) {
+        try {
+            return TimeWindow.parse(Strings.nullToEmpty(scheduleTagValue));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignore schedule of instance {}: {}", instanceId, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "{timeZone=" + timeZone.getID() + ", scheduledInstances=" + scheduledInstancesById.size()
+                + ", started=" + startedCount + ", stopped=" + stoppedCount + "}";
+    }
+}
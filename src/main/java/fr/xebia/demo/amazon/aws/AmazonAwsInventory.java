@@ -0,0 +1,308 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.demo.amazon.aws;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsRequest;
+import com.amazonaws.services.ec2.model.DescribeTagsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Snapshot;
+import com.amazonaws.services.ec2.model.TagDescription;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * <p>
+ * Compact inventory of the EC2 resources of an account used by
+ * {@link AmazonAwsShutdowner}: only the fields needed to decide what to
+ * stop, terminate, deregister or delete are kept.
+ * </p>
+ * <ul>
+ * <li>The tags, instances, images and snapshots are fetched in parallel.</li>
+ * <li>The filtering is done server side: only the given tag keys, the images
+ * and the snapshots of the given owner are returned by EC2.</li>
+ * <li>The collection time of each resource type is measured.</li>
+ * </ul>
+ */
+public class AmazonAwsInventory {
+
+    public static class InstanceRecord {
+        private final String instanceId;
+        private final String stateName;
+
+        public InstanceRecord(@Nonnull String instanceId, @Nonnull String stateName) {
+            this.instanceId = instanceId;
+            this.stateName = stateName;
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public String getStateName() {
+            return stateName;
+        }
+
+        @Override
+        public String toString() {
+            return instanceId + "[" + stateName + "]";
+        }
+    }
+
+    public static class ImageRecord {
+        private final String imageId;
+        private final List<String> snapshotIds;
+
+        public ImageRecord(@Nonnull String imageId, @Nonnull List<String> snapshotIds) {
+            this.imageId = imageId;
+            this.snapshotIds = ImmutableList.copyOf(snapshotIds);
+        }
+
+        public String getImageId() {
+            return imageId;
+        }
+
+        /**
+         * Snapshots of the EBS block devices of the image.
+         */
+        public List<String> getSnapshotIds() {
+            return snapshotIds;
+        }
+
+        @Override
+        public String toString() {
+            return imageId + snapshotIds;
+        }
+    }
+
+    public static class SnapshotRecord {
+        private final String snapshotId;
+        private final String description;
+
+        public SnapshotRecord(@Nonnull String snapshotId, @Nonnull String description) {
+            this.snapshotId = snapshotId;
+            this.description = description;
+        }
+
+        public String getSnapshotId() {
+            return snapshotId;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public String toString() {
+            return snapshotId + "[" + description + "]";
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(AmazonAwsInventory.class);
+
+    /**
+     * Collect the inventory of the account.
+     *
+     * @param ownerId owner of the images and snapshots (e.g. "self")
+     * @param tagKeys keys of the tags to retrieve
+     */
+    @Nonnull
+    public static AmazonAwsInventory collect(@Nonnull final AmazonEC2 ec2, @Nonnull final String ownerId,
+                                             @Nonnull final Collection<String> tagKeys) {
+        final AmazonAwsInventory inventory = new AmazonAwsInventory();
+        long startTimeInMillis = System.currentTimeMillis();
+
+        List<Callable<Void>> collectors = Lists.newArrayList();
+        collectors.add(new TimedCollector("tags", inventory) {
+            @Override
+            protected int doCollect() {
+                DescribeTagsRequest describeTagsRequest = new DescribeTagsRequest().withFilters( //
+                        new Filter("resource-type", Lists.newArrayList("instance", "image", "snapshot")), //
+                        new Filter("key", Lists.newArrayList(tagKeys)));
+                List<TagDescription> tagDescriptions = ec2.describeTags(describeTagsRequest).getTags();
+                for (TagDescription tagDescription : tagDescriptions) {
+                    inventory.tagKeysByResourceId.put(tagDescription.getResourceId(), tagDescription.getKey());
+                }
+                return tagDescriptions.size();
+            }
+        });
+        collectors.add(new TimedCollector("instances", inventory) {
+            @Override
+            protected int doCollect() {
+                for (Reservation reservation : ec2.describeInstances(new DescribeInstancesRequest()).getReservations()) {
+                    for (Instance instance : reservation.getInstances()) {
+                        inventory.instances.add(new InstanceRecord(instance.getInstanceId(), instance.getState().getName()));
+                    }
+                }
+                return inventory.instances.size();
+            }
+        });
+        collectors.add(new TimedCollector("images", inventory) {
+            @Override
+            protected int doCollect() {
+                for (Image image : ec2.describeImages(new DescribeImagesRequest().withOwners(ownerId)).getImages()) {
+                    List<String> snapshotIds = Lists.newArrayList();
+                    for (BlockDeviceMapping blockDeviceMapping : image.getBlockDeviceMappings()) {
+                        if (blockDeviceMapping.getEbs() != null && blockDeviceMapping.getEbs().getSnapshotId() != null) {
+                            snapshotIds.add(blockDeviceMapping.getEbs().getSnapshotId());
+                        }
+                    }
+                    inventory.images.add(new ImageRecord(image.getImageId(), snapshotIds));
+                }
+                return inventory.images.size();
+            }
+        });
+        collectors.add(new TimedCollector("snapshots", inventory) {
+            @Override
+            protected int doCollect() {
+                for (Snapshot snapshot : ec2.describeSnapshots(new DescribeSnapshotsRequest().withOwnerIds(ownerId)).getSnapshots()) {
+                    inventory.snapshots.add(new SnapshotRecord(snapshot.getSnapshotId(), snapshot.getDescription() == null ? ""
+                            : snapshot.getDescription()));
+                }
+                return inventory.snapshots.size();
+            }
+        });
+
+        ExecutorService executorService = Executors.newFixedThreadPool(collectors.size());
+        try {
+            for (Future<Void> future : executorService.invokeAll(collectors)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+        logger.info("Collected inventory in {}ms: {}", System.currentTimeMillis() - startTimeInMillis, inventory);
+        return inventory;
+    }
+
+    /**
+     * Collector of a resource type measuring its collection time.
+     */
+    private abstract static class TimedCollector implements Callable<Void> {
+        private final String resourceType;
+        private final AmazonAwsInventory inventory;
+
+        TimedCollector(String resourceType, AmazonAwsInventory inventory) {
+            this.resourceType = resourceType;
+            this.inventory = inventory;
+        }
+
+        /**
+         * @return the number of collected resources
+         */
+        protected abstract int doCollect();
+
+        @Override
+        public Void call() throws Exception {
+            long startTimeInMillis = System.currentTimeMillis();
+            int count = doCollect();
+            long durationInMillis = System.currentTimeMillis() - startTimeInMillis;
+            synchronized (inventory.collectionTimeInMillisByResourceType) {
+                inventory.collectionTimeInMillisByResourceType.put(resourceType, durationInMillis);
+            }
+            logger.debug("Collected {} {} in {}ms", new Object[]{count, resourceType, durationInMillis});
+            return null;
+        }
+    }
+
+    /**
+     * Each collection is filled by a single collector thread, then published
+     * by {@link ExecutorService#invokeAll(Collection)}.
+     */
+    private final SetMultimap<String, String> tagKeysByResourceId = HashMultimap.create();
+
+    private final List<InstanceRecord> instances = Lists.newArrayList();
+
+    private final List<ImageRecord> images = Lists.newArrayList();
+
+    private final List<SnapshotRecord> snapshots = Lists.newArrayList();
+
+    private final Map<String, Long> collectionTimeInMillisByResourceType = Maps.newTreeMap();
+
+    private AmazonAwsInventory() {
+    }
+
+    /**
+     * @return the keys of the collected tags of the given resource, empty if
+     *         the resource has none
+     */
+    @Nonnull
+    public Set<String> getTagKeys(@Nonnull String resourceId) {
+        return tagKeysByResourceId.get(Preconditions.checkNotNull(resourceId));
+    }
+
+    @Nonnull
+    public List<InstanceRecord> getInstances() {
+        return instances;
+    }
+
+    @Nonnull
+    public List<ImageRecord> getImages() {
+        return images;
+    }
+
+    @Nonnull
+    public List<SnapshotRecord> getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return the collection time of each resource type ("tags",
+     *         "instances", "images", "snapshots")
+     */
+    @Nonnull
+    public Map<String, Long> getCollectionTimeInMillisByResourceType() {
+        return collectionTimeInMillisByResourceType;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{taggedResources=" + tagKeysByResourceId.keySet().size() + ", instances=" + instances.size()
+                + ", images=" + images.size() + ", snapshots=" + snapshots.size() + ", collectionTimeInMillis="
+                + collectionTimeInMillisByResourceType + "}";
+    }
+}
@@ -28,6 +28,8 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.io.Resources;
 
+import fr.xebia.cloud.amazon.aws.tools.ThrottlingRetryInvocationHandler;
+
 public class AmazonAwsSesEmailVerifier {
 
     public static void main(String[] args) throws Exception {
@@ -35,14 +37,15 @@ public class AmazonAwsSesEmailVerifier {
         Preconditions.checkNotNull(credentialsAsStream, "File 'AwsCredentials.properties' NOT found in the classpath");
         AWSCredentials awsCredentials = new PropertiesCredentials(credentialsAsStream);
 
-        AmazonSimpleEmailService ses = new AmazonSimpleEmailServiceClient(awsCredentials);
+        // rate limited and retried rather than a fixed sleep to prevent "Throttling exception"
+        AmazonSimpleEmailService ses = ThrottlingRetryInvocationHandler.decorate(new AmazonSimpleEmailServiceClient(awsCredentials),
+                AmazonSimpleEmailService.class);
 
         URL emailsToVerifyURL = Thread.currentThread().getContextClassLoader().getResource("emails-to-verify.txt");
         List<String> emailsToVerify = Resources.readLines(emailsToVerifyURL, Charsets.ISO_8859_1);
 
         for (String emailToVerify : emailsToVerify) {
             System.out.println(emailToVerify);
-            Thread.sleep(10*1000);
             ses.verifyEmailAddress(new VerifyEmailAddressRequest().withEmailAddress(emailToVerify));
         }
     }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.demo.amazon.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DeregisterImageRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Actions decided by {@link AmazonAwsShutdowner}, that can be written to a
+ * text file to be reviewed ("{action}\t{resourceId}" lines, '#' comments) and
+ * applied later.
+ * </p>
+ * <p>
+ * {@link #apply(AmazonEC2, int)} runs the actions in the order of
+ * {@link ActionType}, each type of action being run concurrently:
+ * </p>
+ * <ul>
+ * <li>Instances are terminated and stopped with multi instances calls of
+ * {@value #MAX_INSTANCES_PER_REQUEST} instances, falling back to one call per
+ * instance when a multi instances call fails.</li>
+ * <li>Images are deregistered before their snapshots are deleted, one call
+ * per resource.</li>
+ * <li>Failures are logged, counted per resource and don't stop the other
+ * actions.</li>
+ * </ul>
+ * <p>
+ * The given {@link AmazonEC2} should retry the throttling errors, see
+ * {@link fr.xebia.cloud.amazon.aws.tools.ThrottlingRetryInvocationHandler}.
+ * </p>
+ */
+public class AmazonAwsShutdownPlan implements Serializable {
+
+    /**
+     * Types of actions, in execution order.
+     */
+    public enum ActionType {
+        TERMINATE_INSTANCE, STOP_INSTANCE, DEREGISTER_IMAGE, DELETE_SNAPSHOT
+    }
+
+    public static final int MAX_INSTANCES_PER_REQUEST = 100;
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = LoggerFactory.getLogger(AmazonAwsShutdownPlan.class);
+
+    /**
+     * Load a plan written by {@link #writeTo(File)}.
+     */
+    @Nonnull
+    public static AmazonAwsShutdownPlan readFrom(@Nonnull File file) {
+        AmazonAwsShutdownPlan plan = new AmazonAwsShutdownPlan();
+        try {
+            for (String line : Files.readLines(file, Charsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int separatorIdx = line.indexOf('\t');
+                Preconditions.checkArgument(separatorIdx != -1, "Invalid line '%s' of plan %s", line, file);
+                plan.add(ActionType.valueOf(line.substring(0, separatorIdx)), line.substring(separatorIdx + 1).trim());
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        return plan;
+    }
+
+    private final ListMultimap<ActionType, String> resourceIdsByActionType = ArrayListMultimap.create();
+
+    @Nonnull
+    public AmazonAwsShutdownPlan add(@Nonnull ActionType actionType, @Nonnull String resourceId) {
+        resourceIdsByActionType.put(Preconditions.checkNotNull(actionType), Preconditions.checkNotNull(resourceId));
+        return this;
+    }
+
+    @Nonnull
+    public List<String> getResourceIds(@Nonnull ActionType actionType) {
+        return Collections.unmodifiableList(resourceIdsByActionType.get(actionType));
+    }
+
+    public boolean isEmpty() {
+        return resourceIdsByActionType.isEmpty();
+    }
+
+    /**
+     * Write the plan to the given file for review.
+     */
+    public void writeTo(@Nonnull File file) {
+        StringBuilder sb = new StringBuilder("# " + getClass().getSimpleName() + " generated on " + new Date() + "\n");
+        for (ActionType actionType : ActionType.values()) {
+            List<String> resourceIds = resourceIdsByActionType.get(actionType);
+            sb.append("# ").append(actionType).append(": ").append(resourceIds.size()).append("\n");
+            for (String resourceId : resourceIds) {
+                sb.append(actionType).append('\t').append(resourceId).append('\n');
+            }
+        }
+        try {
+            Files.write(sb, file, Charsets.UTF_8);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        logger.info("Wrote plan {} to {}", this, file);
+    }
+
+    /**
+     * Apply the plan.
+     *
+     * @param maxThreads max number of concurrent calls
+     * @return the number of resources whose action failed
+     */
+    public int apply(@Nonnull final AmazonEC2 ec2, int maxThreads) {
+        Preconditions.checkArgument(maxThreads > 0, "maxThreads must be positive");
+        ExecutorService executorService = Executors.newFixedThreadPool(maxThreads, new ThreadFactoryBuilder().setNameFormat(
+                "amazon-aws-shutdown-%d").build());
+        int failures = 0;
+        try {
+            for (ActionType actionType : ActionType.values()) {
+                long startTimeInMillis = System.currentTimeMillis();
+                List<Callable<Integer>> calls = newCalls(actionType, resourceIdsByActionType.get(actionType), ec2);
+                int actionFailures = 0;
+                for (Future<Integer> future : executorService.invokeAll(calls)) {
+                    try {
+                        actionFailures += future.get();
+                    } catch (ExecutionException e) {
+                        actionFailures++;
+                        logger.warn("Failure to " + actionType, e.getCause());
+                    }
+                }
+                failures += actionFailures;
+                logger.info("{} of {} resources in {} calls and {}ms, {} failures", new Object[]{actionType,
+                        resourceIdsByActionType.get(actionType).size(), calls.size(), System.currentTimeMillis() - startTimeInMillis,
+                        actionFailures});
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            executorService.shutdownNow();
+        }
+        return failures;
+    }
+
+    @Nonnull
+    private List<Callable<Integer>> newCalls(@Nonnull final ActionType actionType, @Nonnull Collection<String> resourceIds,
+                                             @Nonnull final AmazonEC2 ec2) {
+        List<Callable<Integer>> calls = Lists.newArrayList();
+        switch (actionType) {
+            case TERMINATE_INSTANCE:
+            case STOP_INSTANCE:
+                for (final List<String> instanceIds : Lists.partition(Lists.newArrayList(resourceIds), MAX_INSTANCES_PER_REQUEST)) {
+                    calls.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return terminateOrStopInstances(actionType, instanceIds, ec2);
+                        }
+                    });
+                }
+                break;
+            case DEREGISTER_IMAGE:
+                for (final String imageId : resourceIds) {
+                    calls.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            try {
+                                ec2.deregisterImage(new DeregisterImageRequest(imageId));
+                                return 0;
+                            } catch (RuntimeException e) {
+                                logFailure(actionType, imageId, e);
+                                return 1;
+                            }
+                        }
+                    });
+                }
+                break;
+            case DELETE_SNAPSHOT:
+                for (final String snapshotId : resourceIds) {
+                    calls.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            try {
+                                ec2.deleteSnapshot(new DeleteSnapshotRequest(snapshotId));
+                                return 0;
+                            } catch (RuntimeException e) {
+                                logFailure(actionType, snapshotId, e);
+                                return 1;
+                            }
+                        }
+                    });
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unsupported action " + actionType);
+        }
+        return calls;
+    }
+
+    /**
+     * Terminate or stop the given instances with one multi instances call,
+     * falling back to one call per instance if it fails.
+     *
+     * @return the number of instances that could not be terminated or stopped
+     */
+    private int terminateOrStopInstances(@Nonnull ActionType actionType, @Nonnull List<String> instanceIds, @Nonnull AmazonEC2 ec2) {
+        try {
+            terminateOrStop(actionType, instanceIds, ec2);
+            return 0;
+        } catch (RuntimeException e) {
+            if (instanceIds.size() == 1) {
+                logFailure(actionType, instanceIds.get(0), e);
+                return 1;
+            }
+            logger.warn("Failure to " + actionType + " " + instanceIds + ", retry one by one", e);
+        }
+        int failures = 0;
+        for (String instanceId : instanceIds) {
+            try {
+                terminateOrStop(actionType, Lists.newArrayList(instanceId), ec2);
+            } catch (RuntimeException e) {
+                failures++;
+                logFailure(actionType, instanceId, e);
+            }
+        }
+        return failures;
+    }
+
+    private void terminateOrStop(@Nonnull ActionType actionType, @Nonnull List<String> instanceIds, @Nonnull AmazonEC2 ec2) {
+        if (ActionType.TERMINATE_INSTANCE.equals(actionType)) {
+            ec2.terminateInstances(new TerminateInstancesRequest(instanceIds));
+        } else {
+            ec2.stopInstances(new StopInstancesRequest(instanceIds));
+        }
+    }
+
+    private void logFailure(@Nonnull ActionType actionType, @Nonnull String resourceId, @Nonnull Throwable cause) {
+        if (cause instanceof AmazonServiceException) {
+            logger.warn("Failure to {} {}: {}", new Object[]{actionType, resourceId, cause.toString()});
+        } else {
+            logger.warn("Failure to " + actionType + " " + resourceId, cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append("{");
+        for (ActionType actionType : ActionType.values()) {
+            if (actionType.ordinal() > 0) {
+                sb.append(", ");
+            }
+            sb.append(actionType).append("=").append(resourceIdsByActionType.get(actionType).size());
+        }
+        return sb.append("}").toString();
+    }
+}
@@ -15,10 +15,19 @@
  */
 package fr.xebia.demo.amazon.aws;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,61 +36,87 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
-import com.amazonaws.services.ec2.model.DeregisterImageRequest;
-import com.amazonaws.services.ec2.model.DescribeImagesRequest;
-import com.amazonaws.services.ec2.model.DescribeSnapshotsRequest;
-import com.amazonaws.services.ec2.model.Image;
-import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.Reservation;
-import com.amazonaws.services.ec2.model.Snapshot;
-import com.amazonaws.services.ec2.model.StopInstancesRequest;
-import com.amazonaws.services.ec2.model.TagDescription;
-import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
 import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClient;
 import com.amazonaws.services.rds.AmazonRDS;
 import com.amazonaws.services.rds.AmazonRDSClient;
-import com.amazonaws.services.rds.model.DBInstance;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.MapMaker;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import fr.xebia.cloud.amazon.aws.tools.CachingAmazonEc2InvocationHandler;
+import fr.xebia.cloud.amazon.aws.tools.ThrottlingRetryInvocationHandler;
+import fr.xebia.demo.amazon.aws.AmazonAwsInventory.ImageRecord;
+import fr.xebia.demo.amazon.aws.AmazonAwsInventory.InstanceRecord;
+import fr.xebia.demo.amazon.aws.AmazonAwsInventory.SnapshotRecord;
+import fr.xebia.demo.amazon.aws.AmazonAwsShutdownPlan.ActionType;
 
 public class AmazonAwsShutdowner {
 
     private static final String TAG_DO_NOT_DEREGISTER = "do-not-deregister";
 
    
-    public static final Function<Instance, String> TO_INSTANCE_ID_FUNCTION = new Function<Instance, String>() {
+    public static final Function<InstanceRecord, String> TO_INSTANCE_ID_FUNCTION = new Function<InstanceRecord, String>() {
         @Override
-        public String apply(Instance instance) {
+        public String apply(InstanceRecord instance) {
             return instance.getInstanceId();
         }
     };
 
-    public static final Function<Image, String> TO_IMAGE_ID_FUNCTION = new Function<Image, String>() {
+    public static final Function<ImageRecord, String> TO_IMAGE_ID_FUNCTION = new Function<ImageRecord, String>() {
         @Override
-        public String apply(Image image) {
+        public String apply(ImageRecord image) {
             return image.getImageId();
         }
     };
 
+    /**
+     * Description of the snapshots created by <code>CreateImage</code>:
+     * "Created by CreateImage(i-8f1a2bc6) for ami-2d3a1e59 from vol-96d4c7fe"
+     */
+    private static final Pattern CREATE_IMAGE_SNAPSHOT_DESCRIPTION_PATTERN = Pattern.compile("Created by CreateImage\\(.*\\) for (ami-[0-9a-fA-F]+)");
+
     private static final String TAG_DO_NOT_TERMINATE = "do-not-terminate";
 
-    private static final String TAG_DO_NOT_STOP = "do-not-stop";
+    public static final String TAG_DO_NOT_STOP = "do-not-stop";
+
+    public static final String DEFAULT_PLAN_FILE_NAME = "amazon-aws-shutdown-plan.txt";
 
+    /**
+     * <p>
+     * Without argument, write the shutdown plan to
+     * {@value #DEFAULT_PLAN_FILE_NAME} for review (dry run).
+     * </p>
+     * <p>
+     * With the "apply [planFile]" arguments, apply the reviewed plan.
+     * </p>
+     * <p>
+     * With the "schedule [timeZone]" arguments, start and stop the instances
+     * every minute according to their schedule tags, see
+     * {@link AmazonAwsInstanceScheduler}.
+     * </p>
+     */
     public static void main(String[] args) throws Exception {
         AmazonAwsShutdowner amazonAwsShutdowner = new AmazonAwsShutdowner();
-        amazonAwsShutdowner.test();
-
+        if (args.length > 0 && "apply".equals(args[0])) {
+            File planFile = new File(args.length > 1 ? args[1] : DEFAULT_PLAN_FILE_NAME);
+            amazonAwsShutdowner.apply(AmazonAwsShutdownPlan.readFrom(planFile));
+        } else if (args.length > 0 && "schedule".equals(args[0])) {
+            TimeZone timeZone = TimeZone.getTimeZone(args.length > 1 ? args[1] : "Europe/Paris");
+            amazonAwsShutdowner.newInstanceScheduler(timeZone).start(1, TimeUnit.MINUTES);
+        } else {
+            amazonAwsShutdowner.plan().writeTo(new File(DEFAULT_PLAN_FILE_NAME));
+        }
     }
 
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
     private AmazonEC2 ec2;
 
+    private int maxThreads = 10;
+
     private AmazonRDS rds;
 
     private AmazonElasticLoadBalancing elb;
@@ -90,134 +125,138 @@ public class AmazonAwsShutdowner {
         InputStream credentialsAsStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("AwsCredentials.properties");
         Preconditions.checkNotNull(credentialsAsStream, "File 'AwsCredentials.properties' NOT found in the classpath");
         AWSCredentials credentials = new PropertiesCredentials(credentialsAsStream);
-        ec2 = new AmazonEC2Client(credentials);
-        ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
+        AmazonEC2Client ec2Client = new AmazonEC2Client(credentials);
+        ec2Client.setEndpoint("ec2.eu-west-1.amazonaws.com");
+        // the inventory, the plan and the scheduler share the instances state and tags cache
+        ec2 = CachingAmazonEc2InvocationHandler.decorate(ThrottlingRetryInvocationHandler.decorate(ec2Client, AmazonEC2.class));
         rds = new AmazonRDSClient(credentials);
         rds.setEndpoint("rds.eu-west-1.amazonaws.com");
         elb = new AmazonElasticLoadBalancingClient(credentials);
         elb.setEndpoint("elasticloadbalancing.eu-west-1.amazonaws.com");
     }
 
-    public void test() {
-        String ownerId = "self";
-        
-        boolean dryRun = true;
-
-        // RETRIEVE TAGS
-        Map<String, Map<String, String>> tagsByResourceId = new MapMaker().makeComputingMap(new Function<String, Map<String, String>>() {
-            @Override
-            public Map<String, String> apply(String input) {
-                return Maps.newHashMap();
-            }
-        });
-
-        for (TagDescription tagDescription : ec2.describeTags().getTags()) {
-            tagsByResourceId.get(tagDescription.getResourceId()).put(tagDescription.getKey(), tagDescription.getValue());
-        }
+    /**
+     * @return the id of the AMI whose creation created the snapshot with the
+     *         given description, <code>null</code> if not found
+     */
+    @Nullable
+    @VisibleForTesting
+    static String extractCreateImageImageId(@Nonnull String snapshotDescription) {
+        Matcher matcher = CREATE_IMAGE_SNAPSHOT_DESCRIPTION_PATTERN.matcher(snapshotDescription);
+        return matcher.find() ? matcher.group(1) : null;
+    }
 
-        // RDS INSTANCEs
-        for (DBInstance dbInstance : rds.describeDBInstances().getDBInstances()) {
-            Map<String, String> instanceTags = tagsByResourceId.get(dbInstance.getDBInstanceIdentifier());
-            logger.debug("Tags for " + dbInstance + ": " + instanceTags);
+    /**
+     * Build the plan of the actions to shutdown the account.
+     */
+    @Nonnull
+    public AmazonAwsShutdownPlan plan() {
+        String ownerId = "self";
+        long startTimeInMillis = System.currentTimeMillis();
 
-        }
+        AmazonAwsInventory inventory = AmazonAwsInventory.collect(ec2, ownerId,
+                Arrays.asList(TAG_DO_NOT_STOP, TAG_DO_NOT_TERMINATE, TAG_DO_NOT_DEREGISTER));
+        AmazonAwsShutdownPlan plan = new AmazonAwsShutdownPlan();
 
         // EC2 INSTANCES
-        List<Instance> instancesAlreadyNotStarted = Lists.newArrayList();
-        List<Instance> instancesToStop = Lists.newArrayList();
-        List<Instance> instancesToTerminate = Lists.newArrayList();
-        List<Instance> instancesToKeepUnchanged = Lists.newArrayList();
-        for (Reservation reservation : ec2.describeInstances().getReservations()) {
-            for (Instance instance : reservation.getInstances()) {
-                Map<String, String> instanceTags = tagsByResourceId.get(instance.getInstanceId());
-                logger.debug("Tags for {}: {}", instance, instanceTags);
-                if("terminated".equals(instance.getState().getName())) {
-                    instancesToKeepUnchanged.add(instance);                    
-                } else if (instanceTags.containsKey(TAG_DO_NOT_STOP)) {
-                    instancesToKeepUnchanged.add(instance);
-                } else if (instanceTags.containsKey(TAG_DO_NOT_TERMINATE)) {
-                    if ("started".equals(instance.getState().getName())) {
-                        instancesToStop.add(instance);
-                    } else {
-                        instancesAlreadyNotStarted.add(instance);
-                    }
+        List<InstanceRecord> instancesAlreadyNotStarted = Lists.newArrayList();
+        List<InstanceRecord> instancesToKeepUnchanged = Lists.newArrayList();
+        for (InstanceRecord instance : inventory.getInstances()) {
+            Set<String> instanceTagKeys = inventory.getTagKeys(instance.getInstanceId());
+            logger.debug("Tags for {}: {}", instance, instanceTagKeys);
+            if("terminated".equals(instance.getStateName())) {
+                instancesToKeepUnchanged.add(instance);                    
+            } else if (instanceTagKeys.contains(TAG_DO_NOT_STOP)) {
+                instancesToKeepUnchanged.add(instance);
+            } else if (instanceTagKeys.contains(TAG_DO_NOT_TERMINATE)) {
+                if ("running".equals(instance.getStateName())) {
+                    plan.add(ActionType.STOP_INSTANCE, instance.getInstanceId());
                 } else {
-                    instancesToTerminate.add(instance);
+                    instancesAlreadyNotStarted.add(instance);
                 }
+            } else {
+                plan.add(ActionType.TERMINATE_INSTANCE, instance.getInstanceId());
             }
         }
-        System.out.println("EC2 INSTANCES");
-        if (dryRun) {
-            System.out.println("DRY RUN Terminate:" + instancesToTerminate);
-            System.out.println("DRY RUN Stop:" + instancesToStop);
-            System.out.println("DRY RUN No need to stop:" + instancesAlreadyNotStarted);
-            System.out.println("DRY RUN Keep unchanged:" + instancesToKeepUnchanged);
-        } else {
-            System.out.println("Terminate:" + instancesToTerminate);
-            if (!instancesToTerminate.isEmpty()) {
-                ec2.terminateInstances(new TerminateInstancesRequest(Lists.transform(instancesToTerminate, TO_INSTANCE_ID_FUNCTION)));
-            }
-            System.out.println("Stop:" + instancesToStop);
-            if (!instancesToStop.isEmpty()) {
-                ec2.stopInstances(new StopInstancesRequest(Lists.transform(instancesToStop, TO_INSTANCE_ID_FUNCTION)));
-            }
-            System.out.println("No need to stop:" + instancesAlreadyNotStarted);
-            System.out.println("Keep unchanged:" + instancesToKeepUnchanged);
-        }
+        logger.info("EC2 INSTANCES no need to stop: {}", instancesAlreadyNotStarted);
+        logger.info("EC2 INSTANCES keep unchanged: {}", instancesToKeepUnchanged);
 
         // AMIs
-        System.out.println("AMIs");
-        List<Image> imagesToDeRegister = Lists.newArrayList();
-        List<Image> imagesToKeep = Lists.newArrayList();
-        for (Image image : ec2.describeImages(new DescribeImagesRequest().withOwners(ownerId)).getImages()) {
-            Map<String, String> imageTags = tagsByResourceId.get(image.getImageId());
-            logger.debug("Tags for {}: {}", image, imageTags);
-            if (imageTags.containsKey(TAG_DO_NOT_DEREGISTER)) {
+        List<ImageRecord> imagesToKeep = Lists.newArrayList();
+        for (ImageRecord image : inventory.getImages()) {
+            Set<String> imageTagKeys = inventory.getTagKeys(image.getImageId());
+            logger.debug("Tags for {}: {}", image, imageTagKeys);
+            if (imageTagKeys.contains(TAG_DO_NOT_DEREGISTER)) {
                 imagesToKeep.add(image);
             } else {
-                imagesToDeRegister.add(image);
+                plan.add(ActionType.DEREGISTER_IMAGE, image.getImageId());
             }
         }
-        if (dryRun) {
-            System.out.println("DRY RUN Deregister:" + imagesToDeRegister);
-            System.out.println("DRY RUN Keep:" + imagesToKeep);
+        logger.info("AMIs keep: {}", imagesToKeep);
 
-        } else {
-            System.out.println("Deregister:" + imagesToDeRegister);
-            for (Image image : imagesToDeRegister) {
-                ec2.deregisterImage(new DeregisterImageRequest(image.getImageId()));
-            }
-            System.out.println("Keep:" + imagesToKeep);
+        // index the images to keep by id and by the snapshots of their block devices
+        Set<String> imageIdsToKeep = Sets.newHashSet(Lists.transform(imagesToKeep, TO_IMAGE_ID_FUNCTION));
+        Set<String> snapshotIdsToKeep = Sets.newHashSet();
+        for (ImageRecord image : imagesToKeep) {
+            snapshotIdsToKeep.addAll(image.getSnapshotIds());
         }
 
-        List<String> imageIdsToKeep = Lists.transform(imagesToKeep, TO_IMAGE_ID_FUNCTION);
-
         // SNAPSHOTS
-        System.out.println("SNAPSHOTs");
-        for (Snapshot snapshot : ec2.describeSnapshots(new DescribeSnapshotsRequest().withOwnerIds(ownerId)).getSnapshots()) {
+        for (SnapshotRecord snapshot : inventory.getSnapshots()) {
 
             if (snapshot.getDescription().contains("Created by CreateImage")) {
-                boolean associatedWithAnImageToKeep = false;
-                for (String imageIdToKeep : imageIdsToKeep) {
-                    if (snapshot.getDescription().contains(imageIdToKeep)) {
-                        associatedWithAnImageToKeep = true;
-                        break;
-                    }
+                String imageId = extractCreateImageImageId(snapshot.getDescription());
+                boolean associatedWithAnImageToKeep;
+                if (snapshotIdsToKeep.contains(snapshot.getSnapshotId())) {
+                    associatedWithAnImageToKeep = true;
+                } else if (imageId == null) {
+                    logger.warn("Keep snapshot {}, no AMI id found in its description", snapshot);
+                    associatedWithAnImageToKeep = true;
+                } else {
+                    associatedWithAnImageToKeep = imageIdsToKeep.contains(imageId);
                 }
                 if (associatedWithAnImageToKeep) {
-                    System.out.println("Keep: " + snapshot);
+                    logger.info("SNAPSHOTs keep: {}", snapshot);
                 } else {
-                    if (dryRun) {
-                        System.out.println("DRY RUN delete: " + snapshot);
-                    } else {
-                        System.out.println("Delete: " + snapshot);
-                        ec2.deleteSnapshot(new DeleteSnapshotRequest(snapshot.getSnapshotId()));
-                    }
+                    plan.add(ActionType.DELETE_SNAPSHOT, snapshot.getSnapshotId());
                 }
             }
         }
         // ELASTIC LOAD BALANCERs
         // no tags on elb
+
+        logger.info("Planned {} in {}ms", plan, System.currentTimeMillis() - startTimeInMillis);
+        return plan;
+    }
+
+    /**
+     * Apply the given plan.
+     *
+     * @return the number of resources whose action failed
+     */
+    public int apply(@Nonnull AmazonAwsShutdownPlan plan) {
+        long startTimeInMillis = System.currentTimeMillis();
+        int failures = plan.apply(ec2, maxThreads);
+        logger.info("Applied {} in {}ms with {} failures", new Object[]{plan, System.currentTimeMillis() - startTimeInMillis, failures});
+        return failures;
+    }
+
+    /**
+     * Scheduler sharing the throttled EC2 client of this shutdowner.
+     */
+    @Nonnull
+    public AmazonAwsInstanceScheduler newInstanceScheduler(@Nonnull TimeZone timeZone) {
+        return new AmazonAwsInstanceScheduler(ec2, timeZone);
+    }
+
+    /**
+     * Max number of concurrent EC2 calls to apply the plans.
+     */
+    @Nonnull
+    public AmazonAwsShutdowner withMaxThreads(int maxThreads) {
+        Preconditions.checkArgument(maxThreads > 0, "maxThreads must be positive");
+        this.maxThreads = maxThreads;
+        return this;
     }
 
 }
@@ -17,7 +17,7 @@ package fr.xebia.training.troubleshooting;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -32,7 +32,6 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeTagsRequest;
 import com.amazonaws.services.ec2.model.Filter;
@@ -60,11 +59,16 @@ import com.google.common.collect.Maps;
 
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsFunctions;
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
-import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder;
+import fr.xebia.cloud.amazon.aws.tools.CachingAmazonEc2InvocationHandler;
+import fr.xebia.cloud.cloudinit.CloudInitUserDataTemplate;
 import fr.xebia.cloud.cloudinit.FreemarkerUtils;
 
 public class TroubleshootingTrainingInfrastructureCreator {
 
+    private static final CloudInitUserDataTemplate CLOUD_INIT_USER_DATA_TEMPLATE = CloudInitUserDataTemplate.start() //
+            .addCloudConfigFromFilePath("fr/xebia/training/troubleshooting/cloud-config-amzn-linux-tomcat.txt") //
+            .addShellScriptTemplate("/fr/xebia/training/troubleshooting/provision_tomcat.py.ftl");
+
     AmazonEC2 ec2;
     AmazonRDS rds;
 
@@ -79,8 +83,9 @@ public class TroubleshootingTrainingInfrastructureCreator {
                     .getResourceAsStream("AwsCredentials.properties");
             Preconditions.checkNotNull(credentialsAsStream, "File 'AwsCredentials.properties' NOT found in the classpath");
             AWSCredentials credentials = new PropertiesCredentials(credentialsAsStream);
-            ec2 = new AmazonEC2Client(credentials);
-            ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
+            AmazonEC2 ec2Client = new AmazonEC2Client(credentials);
+            ec2Client.setEndpoint("ec2.eu-west-1.amazonaws.com");
+            ec2 = CachingAmazonEc2InvocationHandler.decorate(AmazonAwsUtils.decorateWithThrottlingRetry(ec2Client));
             rds = new AmazonRDSClient(credentials);
             rds.setEndpoint("rds.eu-west-1.amazonaws.com");
         } catch (IOException e) {
@@ -200,19 +205,7 @@ public class TroubleshootingTrainingInfrastructureCreator {
         systemProperties.put("jdbc.username", jdbcUsername);
         systemProperties.put("jdbc.password", jdbcPassword);
 
-        String shellScript = FreemarkerUtils.generate(rootMap, "/fr/xebia/training/troubleshooting/provision_tomcat.py.ftl");
-
-        // CLOUD CONFIG
-        InputStream cloudConfigAsStream = Thread.currentThread().getContextClassLoader()
-                .getResourceAsStream("fr/xebia/training/troubleshooting/cloud-config-amzn-linux-tomcat.txt");
-        Preconditions.checkNotNull(cloudConfigAsStream,
-                "'fr/xebia/training/troubleshooting/cloud-config-amzn-linux-tomcat.txt' not found in path");
-        Readable cloudConfig = new InputStreamReader(cloudConfigAsStream);
-
-        return CloudInitUserDataBuilder.start() //
-                .addCloudConfig(cloudConfig) //
-                .addShellScript(shellScript) //
-                .buildBase64UserData();
+        return CLOUD_INIT_USER_DATA_TEMPLATE.buildBase64UserData(rootMap);
 
     }
 
@@ -243,19 +236,17 @@ public class TroubleshootingTrainingInfrastructureCreator {
         // TAG EC2 INSTANCES
         Iterator<String> teamIdentifierIterator = teamIdentifiers.iterator();
 
+        Map<Instance, List<Tag>> tagsByInstance = Maps.newLinkedHashMap();
         for (Instance instance : instances) {
             String teamIdentifier = teamIdentifierIterator.next();
 
-            CreateTagsRequest createTagsRequest = new CreateTagsRequest();
-            createTagsRequest.withResources(instance.getInstanceId()) //
-                    .withTags(//
-                            new Tag("Name", applicationId + "-" + teamIdentifier), //
-                            new Tag("Role", "training,troubleshooting,tomcat"), //
-                            new Tag("TeamIdentifier", teamIdentifier), //
-                            new Tag("TrainingSession", "Troubleshooting"));
-            ec2.createTags(createTagsRequest);
-
+            tagsByInstance.put(instance, Arrays.asList(//
+                    new Tag("Name", applicationId + "-" + teamIdentifier), //
+                    new Tag("Role", "training,troubleshooting,tomcat"), //
+                    new Tag("TeamIdentifier", teamIdentifier), //
+                    new Tag("TrainingSession", "Troubleshooting")));
         }
+        AmazonAwsUtils.createTags(tagsByInstance, ec2);
 
         logger.info("Created {}", instances);
 
@@ -17,7 +17,7 @@ package fr.xebia.workshop.bigdata;
 
 import static com.google.common.collect.Maps.newHashMap;
 
-import java.io.*;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -25,7 +25,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
@@ -33,14 +32,20 @@ import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.route53.AmazonRoute53;
 import com.amazonaws.services.route53.model.GetHostedZoneRequest;
 import com.amazonaws.services.route53.model.HostedZone;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
-import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder;
+import fr.xebia.cloud.amazon.aws.tools.Route53CnamesWriter;
+import fr.xebia.cloud.cloudinit.CloudInitUserDataTemplate;
 
 public abstract class CreateHadoopServers implements Runnable {
 
-    private static final String CLOUD_CONFIG_HADOOP_FLUME = "src/main/resources/fr/xebia/workshop/bigdata/cloud-config-hadoop-flume.txt";
+    /**
+     * The cloud-config only depends on the hostname and on the namenode.
+     */
+    private static final CloudInitUserDataTemplate CLOUD_INIT_USER_DATA_TEMPLATE = CloudInitUserDataTemplate.start()
+            .addCloudConfigTemplate("/fr/xebia/workshop/bigdata/cloud-config-hadoop-flume.txt");
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -71,23 +76,18 @@ public abstract class CreateHadoopServers implements Runnable {
     protected abstract String getCnamePrefix();
 
 
-    private void tagInstance(String teamId, Instance instance, String cname) {
+    private List<Tag> buildTags(String teamId, String cname) {
 
         String serverName = getCnamePrefix() + teamId;
-        logger.info("Tagging {} - {}", serverName, instance.getInstanceId());
 
-        CreateTagsRequest createTagsRequest = new CreateTagsRequest() //
-                .withResources(instance.getInstanceId()) //
-                .withTags(
-                        //
-                        new Tag("Name", serverName), //
-                        new Tag("TeamIdentifier", teamId), //
-                        new Tag("Workshop", "flume-hadoop"), //
-                        new Tag("Role", getTagRole()), //
-                        new Tag("CNAME", cname)//
-                );
-
-        AmazonAwsUtils.createTags(instance, createTagsRequest, ec2);
+        return Arrays.asList(
+                //
+                new Tag("Name", serverName), //
+                new Tag("TeamIdentifier", teamId), //
+                new Tag("Workshop", "flume-hadoop"), //
+                new Tag("Role", getTagRole()), //
+                new Tag("CNAME", cname)//
+        );
 
     }
 
@@ -97,10 +97,8 @@ public abstract class CreateHadoopServers implements Runnable {
 
         logger.info("Process {}", hostedZoneId);
 
-        AmazonAwsUtils.deleteCnameIfExist(instancesByCname.keySet(),
-                hostedZoneId, route53);
-        AmazonAwsUtils.createCnamesForInstances(instancesByCname, hostedZoneId,
-                route53);
+        new Route53CnamesWriter(hostedZoneId, route53)
+                .bindCnamesToInstances(instancesByCname);
 
         logger.info("Hadoop instances DNS binding SUCCESSFUL");
     }
@@ -153,6 +151,7 @@ public abstract class CreateHadoopServers implements Runnable {
 
         Map<String, RunInstancesRequest> runInstancesRequestByTeamId = createInstanceCreationRequests();
         Map<String, Instance> instancesByCname = Maps.newHashMap();
+        Map<Instance, List<Tag>> tagsByInstance = Maps.newLinkedHashMap();
 
         for (String teamId : workshopInfrastructure.getTeamIdentifiers()) {
 
@@ -161,7 +160,8 @@ public abstract class CreateHadoopServers implements Runnable {
 
             if (instances.size() == 1) {
                 String cname = getCnamesByTeamId().get(teamId);
-                tagInstance(teamId, instances.get(0), cname);
+                logger.info("Tagging {} - {}", getCnamePrefix() + teamId, instances.get(0).getInstanceId());
+                tagsByInstance.put(instances.get(0), buildTags(teamId, cname));
                 instancesByCname.put(cname, instances.get(0));
             } else {
                 logger.warn(
@@ -169,6 +169,8 @@ public abstract class CreateHadoopServers implements Runnable {
             }
         }
 
+        AmazonAwsUtils.createTags(tagsByInstance, ec2);
+
         bindInstancesToDnsCnames(instancesByCname);
 
     }
@@ -202,25 +204,7 @@ public abstract class CreateHadoopServers implements Runnable {
     }
 
     private String generateCloudInit(String cname, String masterNameNode) {
-        try {
-            BufferedReader fr = new BufferedReader(new FileReader(new File(CLOUD_CONFIG_HADOOP_FLUME)));
-            StringBuilder sb = new StringBuilder();
-            while (fr.ready()) {
-                sb.append(fr.readLine());
-                sb.append("\n");
-            }
-
-            String data = sb.toString();
-            data = data.replace("$hostname", cname);
-            data = data.replace("$namenode", masterNameNode);
-            String userDataTeamId = CloudInitUserDataBuilder.start().addCloudConfig(data).buildBase64UserData();
-            return userDataTeamId;
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
+        return CLOUD_INIT_USER_DATA_TEMPLATE.buildBase64UserData(ImmutableMap.of("hostname", cname, "namenode", masterNameNode));
     }
 
 
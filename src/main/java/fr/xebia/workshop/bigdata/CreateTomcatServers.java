@@ -15,6 +15,7 @@
  */
 package fr.xebia.workshop.bigdata;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -22,7 +23,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
@@ -33,6 +33,7 @@ import com.amazonaws.services.route53.model.HostedZone;
 import com.google.common.collect.Maps;
 
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
+import fr.xebia.cloud.amazon.aws.tools.Route53CnamesWriter;
 
 public class CreateTomcatServers implements Runnable {
 
@@ -72,6 +73,7 @@ public class CreateTomcatServers implements Runnable {
 
 	protected void tagInstances(Map<String, List<Instance>> instancesByTeamId) {
 
+		Map<Instance, List<Tag>> tagsByInstance = Maps.newLinkedHashMap();
 		for (Map.Entry<String, List<Instance>> entry : instancesByTeamId
 				.entrySet()) {
 
@@ -86,21 +88,19 @@ public class CreateTomcatServers implements Runnable {
 				logger.info("Tagging {} - {}", serverName,
 						instance.getInstanceId());
 
-				CreateTagsRequest createTagsRequest = new CreateTagsRequest() //
-						.withResources(instance.getInstanceId()) //
-						.withTags(
-								//
-								new Tag("Name", serverName), //
-								new Tag("TeamIdentifier", teamId), //
-								new Tag("Workshop", "flume-hadoop"), //
-								new Tag("Role", getTagRole()), //
-								new Tag("CNAME", buildCname(teamId,
-										instanceIndex))//
-						);
-
-				AmazonAwsUtils.createTags(instance, createTagsRequest, ec2);
+				tagsByInstance.put(instance, Arrays.asList(
+						//
+						new Tag("Name", serverName), //
+						new Tag("TeamIdentifier", teamId), //
+						new Tag("Workshop", "flume-hadoop"), //
+						new Tag("Role", getTagRole()), //
+						new Tag("CNAME", buildCname(teamId,
+								instanceIndex))//
+						));
 			}
 		}
+
+		AmazonAwsUtils.createTags(tagsByInstance, ec2);
 	}
 
 	protected String buildCname(String teamId, int instanceId) {
@@ -148,10 +148,8 @@ public class CreateTomcatServers implements Runnable {
 			}
 		}
 
-		AmazonAwsUtils.deleteCnameIfExist(cnamesToInstance.keySet(),
-				hostedZoneId, route53);
-		AmazonAwsUtils.createCnamesForInstances(cnamesToInstance, hostedZoneId,
-				route53);
+		new Route53CnamesWriter(hostedZoneId, route53)
+				.bindCnamesToInstances(cnamesToInstance);
 
 		logger.info("Syslog servers creation SUCCESSFUL");
 	}
@@ -43,6 +43,7 @@ public class WorkshopInfrastructureCreator {
         AWSCredentials awsCredentials = AmazonAwsUtils.loadAwsCredentials();
         AmazonEC2 ec2 = new AmazonEC2Client(awsCredentials);
         ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
+        ec2 = AmazonAwsUtils.decorateWithThrottlingRetry(ec2);
 
         AmazonRoute53 route53 = new AmazonRoute53Client(awsCredentials);
 
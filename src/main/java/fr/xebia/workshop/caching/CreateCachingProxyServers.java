@@ -26,12 +26,14 @@ import com.amazonaws.services.route53.model.HostedZone;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
+import fr.xebia.cloud.amazon.aws.tools.Route53CnamesWriter;
+import fr.xebia.cloud.amazon.aws.tools.TeamInstancesPipeline;
 import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -54,6 +56,7 @@ public class CreateCachingProxyServers implements Runnable {
         AWSCredentials awsCredentials = AmazonAwsUtils.loadAwsCredentials();
         AmazonEC2 ec2 = new AmazonEC2Client(awsCredentials);
         ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
+        ec2 = AmazonAwsUtils.decorateWithThrottlingRetry(ec2);
 
         AmazonRoute53 route53 = new AmazonRoute53Client(awsCredentials);
 
@@ -80,42 +83,21 @@ public class CreateCachingProxyServers implements Runnable {
 
     }
 
-    private List<Instance> createNewInstances(AmazonEC2 ec2, WorkshopInfrastructure infra) {
+    private RunInstancesRequest buildRunInstancesRequest(WorkshopInfrastructure infra) {
         String userData = CloudInitUserDataBuilder.start().addCloudConfigFromFilePath(CLOUD_CONFIG_FILE_PATH).buildBase64UserData();
 
-        int instanceCount = infra.getTeamCount();
-
         RunInstancesRequest runInstancesRequest = new RunInstancesRequest() //
                 .withInstanceType(InstanceType.T1Micro.toString()) //
                 .withImageId(AmazonAwsUtils.AMI_AMZN_LINUX_EU_WEST_2012_03) //
-                .withMinCount(instanceCount) //
-                .withMaxCount(instanceCount) //
                 .withSecurityGroupIds("accept-all") //
                 .withKeyName(infra.getKeyPairName()) //
                 .withUserData(userData);
 
-
-        List<Instance> instances = AmazonAwsUtils.reliableEc2RunInstances(runInstancesRequest, ec2);
-
-        if (instances.size() != instanceCount) {
-            logger.warn("Unexpected number of instances created: {} instead of {} expected", instances.size(), instanceCount);
-        }
-
-        return instances;
-    }
-
-    protected Map<String, Instance> associateInstancesToTeamIds(List<Instance> instances, List<String> teamIdentifiers) {
-        Map<String, Instance> instancesByTeamId = Maps.newHashMap();
-
-        Iterator<String> teamsIdIterator = teamIdentifiers.iterator();
-        for (Instance instance : instances) {
-            instancesByTeamId.put(teamsIdIterator.next(), instance);
-        }
-
-        return instancesByTeamId;
+        return runInstancesRequest;
     }
 
     protected void tagInstances(Map<String, Instance> instancesByTeamId, AmazonEC2 ec2) {
+        Map<Instance, List<Tag>> tagsByInstance = Maps.newLinkedHashMap();
         for (Map.Entry<String, Instance> entry : instancesByTeamId.entrySet()) {
             String identifier = entry.getKey();
             Instance instance = entry.getValue();
@@ -123,30 +105,36 @@ public class CreateCachingProxyServers implements Runnable {
             String serverName = "www-cocktail-" + identifier;
             logger.info("Tagging {} - {}", serverName, instance.getInstanceId());
 
-            CreateTagsRequest createTagsRequest = new CreateTagsRequest() //
-                    .withResources(instance.getInstanceId()) //
-                    .withTags( //
-                            new Tag("Name", serverName), //
-                            new Tag("TeamIdentifier", identifier), //
-                            new Tag("Workshop", "web-caching"), //
-                            new Tag("Role", "caching-proxy"), //
-                            new Tag("CNAME", buildCname(identifier))//
-                    );
-
-            AmazonAwsUtils.createTags(instance, createTagsRequest, ec2);
+            tagsByInstance.put(instance, Arrays.asList(//
+                    new Tag("Name", serverName), //
+                    new Tag("TeamIdentifier", identifier), //
+                    new Tag("Workshop", "web-caching"), //
+                    new Tag("Role", "caching-proxy"), //
+                    new Tag("CNAME", buildCname(identifier))//
+            ));
         }
+
+        AmazonAwsUtils.createTags(tagsByInstance, ec2);
     }
 
     public void run() {
         AmazonAwsUtils.terminateInstancesByWorkshop("web-caching", ec2);
 
-        List<Instance> instances = createNewInstances(ec2, workshopInfrastructure);
-        Map<String, Instance> instancesByTeamId = associateInstancesToTeamIds(instances, workshopInfrastructure.getTeamIdentifiers());
-
-        tagInstances(instancesByTeamId, ec2);
-
-        bindInstancesToDnsCnames(instancesByTeamId, route53);
-
+        // tag each team's instance as soon as it is ready, bind the DNS names in one batch
+        Map<String, List<Instance>> instancesByTeamId = new TeamInstancesPipeline(workshopInfrastructure.getTeamIdentifiers(), 1) //
+                .addStage(new TeamInstancesPipeline.Stage() {
+                    @Override
+                    public void execute(String teamIdentifier, List<Instance> instances) {
+                        tagInstances(Collections.singletonMap(teamIdentifier, instances.get(0)), ec2);
+                    }
+                }) //
+                .launch(buildRunInstancesRequest(workshopInfrastructure), ec2);
+
+        Map<String, Instance> instanceByTeamId = Maps.newLinkedHashMap();
+        for (Map.Entry<String, List<Instance>> entry : instancesByTeamId.entrySet()) {
+            instanceByTeamId.put(entry.getKey(), entry.getValue().get(0));
+        }
+        bindInstancesToDnsCnames(instanceByTeamId, route53);
     }
 
     protected void bindInstancesToDnsCnames(Map<String, Instance> instancesByTeamId, AmazonRoute53 route53) {
@@ -164,8 +152,7 @@ public class CreateCachingProxyServers implements Runnable {
             cnamesToInstance.put(cname, instance);
         }
 
-        AmazonAwsUtils.deleteCnameIfExist(cnamesToInstance.keySet(), hostedZone, route53);
-        AmazonAwsUtils.createCnamesForInstances(cnamesToInstance, hostedZone, route53);
+        new Route53CnamesWriter(hostedZone, route53).bindCnamesToInstances(cnamesToInstance);
 
         logger.info("Caching Proxy servers creation SUCCESSFUL");
     }
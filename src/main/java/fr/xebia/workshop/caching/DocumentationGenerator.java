@@ -79,11 +79,10 @@ public class DocumentationGenerator {
             String templatePath = "/fr/xebia/workshop/caching/lab.md.ftl";
             rootMap.put("generator", "This page has been generaterd by '{{{" + getClass() + "}}}' with template '{{{" + templatePath + "}}}' on the "
                     + new DateTime());
-            String page = FreemarkerUtils.generate(rootMap, templatePath);
             String wikiPageName = "Lab_team_" + teamIdentifier;
             wikiPageNamesByTeamIdentifier.put(teamIdentifier, wikiPageName);
             File wikiPageFile = new File(wikiBaseFolder, wikiPageName + ".md");
-            Files.write(page, wikiPageFile, Charsets.UTF_8);
+            FreemarkerUtils.generate(rootMap, templatePath, wikiPageFile, Charsets.UTF_8);
             logger.debug("Generated file {}", wikiPageFile.getAbsoluteFile());
         }
 
@@ -43,6 +43,7 @@ public class WorkshopInfrastructureCreator {
         AWSCredentials awsCredentials = AmazonAwsUtils.loadAwsCredentials();
         AmazonEC2 ec2 = new AmazonEC2Client(awsCredentials);
         ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
+        ec2 = AmazonAwsUtils.decorateWithThrottlingRetry(ec2);
 
         AWSElasticBeanstalk beanstalk = new AWSElasticBeanstalkClient(awsCredentials);
         beanstalk.setEndpoint("elasticbeanstalk.eu-west-1.amazonaws.com");
@@ -22,9 +22,6 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -95,27 +92,21 @@ public class ContinuousDeliveryInfrastructureCreator {
         steps.add(step);
     }
 
+    /**
+     * Execute the steps according to their dependencies, see
+     * {@link InfrastructureCreationStepScheduler}, and then notify the
+     * listener.
+     *
+     * @throws IllegalStateException if a step failed or was cancelled
+     */
     public void createInfrastructure(InfrastructureCreationListener listener) throws Exception {
-        ExecutorService executorService = Executors.newFixedThreadPool(steps.size());
-
-        for (final InfrastructureCreationStep step : steps) {
-            executorService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        step.execute(ec2, workshopInfrastructure);
-                    } catch (Exception e) {
-                        logger.error("Exception executing step: " + step, e);
-                        throw new RuntimeException(e);
-                    }
-                }
-            });
-        }
-
-        executorService.shutdown();
-        executorService.awaitTermination(10, TimeUnit.MINUTES);
+        InfrastructureCreationStepScheduler scheduler = new InfrastructureCreationStepScheduler(steps);
+        boolean success = scheduler.execute(ec2, workshopInfrastructure);
 
         listener.infrastructureCreated(ec2, workshopInfrastructure);
+
+        checkState(success, "Failure to create infrastructure, failed steps: %s, cancelled steps: %s", scheduler.getFailedSteps()
+                .keySet(), scheduler.getCancelledSteps());
     }
 
 }
@@ -15,6 +15,9 @@
  */
 package fr.xebia.workshop.continuousdelivery;
 
+import java.util.Collections;
+import java.util.Set;
+
 import com.amazonaws.services.ec2.AmazonEC2;
 
 import fr.xebia.workshop.git.GithubCreateRepositoryRequest;
@@ -58,4 +61,13 @@ public class CreateGithubRepositories extends InfrastructureCreationStep {
         creator.createRepositories();
     }
 
+    @Override
+    public Set<String> getProducedResources() {
+        return Collections.singleton(RESOURCE_GITHUB_REPOSITORIES);
+    }
+
+    @Override
+    public String toString() {
+        return "Github repositories creation";
+    }
 }
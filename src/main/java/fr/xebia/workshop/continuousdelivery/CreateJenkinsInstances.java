@@ -17,10 +17,10 @@ package fr.xebia.workshop.continuousdelivery;
 
 import static com.google.common.collect.Lists.transform;
 
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
@@ -28,10 +28,14 @@ import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsFunctions;
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
+import fr.xebia.cloud.amazon.aws.tools.HttpAvailabilityChecker;
+import fr.xebia.cloud.amazon.aws.tools.TeamInstancesPipeline;
 import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder;
 
 public class CreateJenkinsInstances extends InfrastructureCreationStep {
@@ -39,118 +43,125 @@ public class CreateJenkinsInstances extends InfrastructureCreationStep {
     private static final String CLOUD_CONFIG_FILE_PATH = "fr/xebia/workshop/continuousdelivery/cloud-config-amzn-linux-jenkins-rundeck.txt";
 
     @Override
-    public void execute(AmazonEC2 ec2, WorkshopInfrastructure infra) throws Exception {
+    public void execute(final AmazonEC2 ec2, final WorkshopInfrastructure infra) throws Exception {
         logger.info("CREATING JENKINS/RUNDECK SERVERS");
 
         AmazonAwsUtils.terminateInstancesByRoleAndTeam(TeamInfrastructure.ROLE_JENKINS_RUNDECK, infra.getTeamIdentifiers(), ec2);
 
-        List<Instance> jenkinsInstances = createNewInstances(ec2, infra);
-
-        Map<String, Instance> jenkinsInstancesByTeamId = associateInstancesToTeamIds(jenkinsInstances, infra.getTeamIdentifiers());
-
-        tagInstances(jenkinsInstancesByTeamId, ec2);
-
-        createJenkinsJobs(jenkinsInstancesByTeamId, infra);
-
-        awaitForDeployitAvailability(jenkinsInstancesByTeamId);
+        // each team goes through tag -> create jobs -> await Deployit as soon as its instance is ready,
+        // only the tagging is fatal, the jobs creation and the Deployit availability are best effort
+        final HttpAvailabilityChecker httpAvailabilityChecker = new HttpAvailabilityChecker();
+        Map<String, List<Instance>> jenkinsInstancesByTeamId;
+        try {
+            jenkinsInstancesByTeamId = new TeamInstancesPipeline(infra.getTeamIdentifiers(), 1) //
+                    .addStage(new TeamInstancesPipeline.Stage() {
+                        @Override
+                        public void execute(String teamIdentifier, List<Instance> instances) {
+                            tagInstance(teamIdentifier, instances.get(0), ec2);
+                        }
+                    }) //
+                    .addStage(new TeamInstancesPipeline.Stage() {
+                        @Override
+                        public void execute(String teamIdentifier, List<Instance> instances) {
+                            createJenkinsJobs(teamIdentifier, instances.get(0), infra, httpAvailabilityChecker);
+                        }
+                    }) //
+                    .addStage(new TeamInstancesPipeline.Stage() {
+                        @Override
+                        public void execute(String teamIdentifier, List<Instance> instances) {
+                            awaitForDeployitAvailability(teamIdentifier, instances.get(0), httpAvailabilityChecker);
+                        }
+                    }) //
+                    .launch(buildRunInstancesRequest(infra), ec2);
+        } finally {
+            httpAvailabilityChecker.close();
+        }
 
+        List<Instance> jenkinsInstances = Lists.newArrayList(Iterables.concat(jenkinsInstancesByTeamId.values()));
         logger.info("{} JENKINS SERVERS SUCCESSFULLY CREATED: {}", jenkinsInstances.size(),
                 transform(jenkinsInstances, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID));
     }
 
-    private List<Instance> createNewInstances(AmazonEC2 ec2, WorkshopInfrastructure infra) {
+    private RunInstancesRequest buildRunInstancesRequest(WorkshopInfrastructure infra) {
         String userData = CloudInitUserDataBuilder.start().addCloudConfigFromFilePath(CLOUD_CONFIG_FILE_PATH).buildBase64UserData();
 
-        int instanceCount = infra.getTeamCount();
-
-        RunInstancesRequest runInstancesRequest = new RunInstancesRequest() //
+        return new RunInstancesRequest() //
                 .withInstanceType(InstanceType.M1Small.toString()) //
                 .withImageId(WORKSHOP_IMAGE_ID) //
-                .withMinCount(instanceCount) //
-                .withMaxCount(instanceCount) //
                 .withSecurityGroupIds("accept-all") //
                 .withKeyName(infra.getKeyPairName()) //
                 .withUserData(userData);
+    }
 
-        List<Instance> instances = AmazonAwsUtils.reliableEc2RunInstances(runInstancesRequest, ec2);
+    protected void tagInstance(String identifier, Instance instance, AmazonEC2 ec2) {
+        String serverName = "jenkins-" + identifier;
+        logger.info("Tagging {} - {}", serverName, instance.getInstanceId());
 
-        if (instances.size() != instanceCount) {
-            logger.warn("Unexpected number of instances created: {} instead of {} expected", instances.size(), instanceCount);
-        }
+        CreateTagsRequest createTagsRequest = new CreateTagsRequest() //
+                .withResources(instance.getInstanceId()) //
+                .withTags(//
+                        new Tag("Name", serverName), //
+                        new Tag("TeamIdentifier", identifier), //
+                        new Tag("Workshop", "continuous-delivery-workshop"), //
+                        new Tag("Role", TeamInfrastructure.ROLE_JENKINS_RUNDECK));
 
-        return instances;
+        createTags(instance, createTagsRequest, ec2);
     }
 
-    protected Map<String, Instance> associateInstancesToTeamIds(List<Instance> instances, List<String> teamIdentifiers) {
-        Map<String, Instance> instancesByTeamId = Maps.newHashMap();
-
-        Iterator<String> teamsIdIterator = teamIdentifiers.iterator();
-        for (Instance instance : instances) {
-            instancesByTeamId.put(teamsIdIterator.next(), instance);
+    private void createJenkinsJobs(String teamIdentifier, Instance instance, WorkshopInfrastructure infra,
+                                   HttpAvailabilityChecker httpAvailabilityChecker) {
+        String jenkinsUrl = TeamInfrastructure.getJenkinsUrl(instance);
+        if (jenkinsUrl == null) {
+            return;
         }
 
-        return instancesByTeamId;
+        logger.info("Configuring Jenkins (creating jobs, etc) '{}' - {}", teamIdentifier, instance.getInstanceId());
+
+        try {
+            httpAvailabilityChecker.awaitForHttpAvailability(jenkinsUrl).get();
+            PetclinicJobInstance petclinicJobInstance = new PetclinicJobInstance(infra, teamIdentifier);
+            new PetclinicJenkinsJobCreator(jenkinsUrl).create(petclinicJobInstance).triggerBuild();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Silently skipped " + e, e);
+        } catch (Exception e) {
+            logger.warn("Silently skipped " + e, e);
+        }
     }
 
-    protected void tagInstances(Map<String, Instance> instancesByTeamId, AmazonEC2 ec2) {
-        for (Entry<String, Instance> idAndInstance : instancesByTeamId.entrySet()) {
-            String identifier = idAndInstance.getKey();
-            Instance instance = idAndInstance.getValue();
-
-            String serverName = "jenkins-" + identifier;
-            logger.info("Tagging {} - {}", serverName, instance.getInstanceId());
+    private void awaitForDeployitAvailability(String teamIdentifier, Instance instance, HttpAvailabilityChecker httpAvailabilityChecker) {
+        String deployitUrl = TeamInfrastructure.getDeployitUrl(instance);
+        if (deployitUrl == null) {
+            return;
+        }
 
-            CreateTagsRequest createTagsRequest = new CreateTagsRequest() //
-                    .withResources(instance.getInstanceId()) //
-                    .withTags(//
-                            new Tag("Name", serverName), //
-                            new Tag("TeamIdentifier", identifier), //
-                            new Tag("Workshop", "continuous-delivery-workshop"), //
-                            new Tag("Role", TeamInfrastructure.ROLE_JENKINS_RUNDECK));
+        logger.info("Waiting for DeployIt availability '{}' - {}", teamIdentifier, instance.getInstanceId());
 
-            createTags(instance, createTagsRequest, ec2);
+        try {
+            httpAvailabilityChecker.awaitForHttpAvailability(deployitUrl).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Silently skipped " + e, e);
+        } catch (Exception e) {
+            logger.warn("Silently skipped " + e, e);
         }
     }
 
-    private void createJenkinsJobs(Map<String, Instance> jenkinsInstancesByTeamId, WorkshopInfrastructure infra) {
-        for (Map.Entry<String, Instance> idAndInstance : jenkinsInstancesByTeamId.entrySet()) {
-            Instance instance = idAndInstance.getValue();
-            String teamIdentifier = idAndInstance.getKey();
-
-            String jenkinsUrl = TeamInfrastructure.getJenkinsUrl(instance);
-            if (jenkinsUrl == null) {
-                continue;
-            }
-
-            logger.info("Configuring Jenkins (creating jobs, etc) '{}' - {}", teamIdentifier, instance.getInstanceId());
-
-            try {
-                AmazonAwsUtils.awaitForHttpAvailability(jenkinsUrl);
-                PetclinicJobInstance petclinicJobInstance = new PetclinicJobInstance(infra, teamIdentifier);
-                new PetclinicJenkinsJobCreator(jenkinsUrl).create(petclinicJobInstance).triggerBuild();
-            } catch (Exception e) {
-                logger.warn("Silently skipped " + e, e);
-            }
-        }
+    /**
+     * Jenkins jobs use the Nexus server and the Github repositories.
+     */
+    @Override
+    public Set<String> getRequiredResources() {
+        return Sets.newHashSet(RESOURCE_NEXUS, RESOURCE_GITHUB_REPOSITORIES);
     }
 
-    private void awaitForDeployitAvailability(Map<String, Instance> jenkinsInstancesByTeamId) {
-        for (Map.Entry<String, Instance> idAndInstance : jenkinsInstancesByTeamId.entrySet()) {
-            Instance instance = idAndInstance.getValue();
-
-            String deployitUrl = TeamInfrastructure.getDeployitUrl(instance);
-            if (deployitUrl == null) {
-                continue;
-            }
-
-            logger.info("Waiting for DeployIt availability '{}' - {}", idAndInstance.getKey(), instance.getInstanceId());
-
-            try {
-                AmazonAwsUtils.awaitForHttpAvailability(deployitUrl);
-            } catch (Exception e) {
-                logger.warn("Silently skipped " + e, e);
-            }
-        }
+    @Override
+    public Set<String> getProducedResources() {
+        return Collections.singleton(RESOURCE_JENKINS);
     }
 
+    @Override
+    public String toString() {
+        return "Jenkins instances creation";
+    }
 }
@@ -15,7 +15,11 @@
  */
 package fr.xebia.workshop.continuousdelivery;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.Address;
@@ -28,8 +32,10 @@ import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
 
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
+import fr.xebia.cloud.amazon.aws.tools.HttpAvailabilityChecker;
 import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder;
 
 public class CreateNexusInstance extends InfrastructureCreationStep {
@@ -69,9 +75,26 @@ public class CreateNexusInstance extends InfrastructureCreationStep {
                         new Tag("Role", TeamInfrastructure.ROLE_NEXUS));
         ec2.createTags(createTagsRequest);
 
-        // first waits for Nexus availability, otherwise the following elastic IP assignment will break its installation
-        waitForNexusAvailability(nexusInstance);
+        HttpAvailabilityChecker httpAvailabilityChecker = new HttpAvailabilityChecker();
+        try {
+            // first waits for Nexus availability, otherwise the following elastic IP assignment will break its installation
+            waitForNexusAvailability(nexusInstance, httpAvailabilityChecker);
+
+            associateAddress(nexusInstance, ec2, workshopInfrastructure);
+
+            Futures.allAsList(httpAvailabilityChecker.awaitForHttpAvailability(Arrays.asList(workshopInfrastructure.getNexusUrlWithIp(),
+                    workshopInfrastructure.getNexusUrlWithDomainName())).values()).get();
+        } catch (ExecutionException e) {
+            logger.warn("Silently skipped " + e, e);
+        } finally {
+            httpAvailabilityChecker.close();
+        }
 
+        logger.info("1 NEXUS SERVER {} SUCCESSFULLY CREATED AND ASSOCIATED WITH {}: {}", new Object[] { nexusInstance.getInstanceId(),
+                workshopInfrastructure.getNexusPublicIp(), nexusInstance });
+    }
+
+    private void associateAddress(Instance nexusInstance, AmazonEC2 ec2, WorkshopInfrastructure workshopInfrastructure) {
         final String publicIp = workshopInfrastructure.getNexusPublicIp();
 
         // ASSOCIATE NEXUS INSTANCE WITH PUBLIC IP
@@ -86,27 +109,18 @@ public class CreateNexusInstance extends InfrastructureCreationStep {
         }
 
         ec2.associateAddress(new AssociateAddressRequest(nexusInstance.getInstanceId(), publicIp));
-
-        try {
-            AmazonAwsUtils.awaitForHttpAvailability(workshopInfrastructure.getNexusUrlWithIp());
-            AmazonAwsUtils.awaitForHttpAvailability(workshopInfrastructure.getNexusUrlWithDomainName());
-        } catch (Exception e) {
-            logger.warn("Silently skipped " + e, e);
-        }
-
-        logger.info("1 NEXUS SERVER {} SUCCESSFULLY CREATED AND ASSOCIATED WITH {}: {}", new Object[] { nexusInstance.getInstanceId(),
-                publicIp, nexusInstance });
     }
 
-    private void waitForNexusAvailability(Instance nexusInstance) throws InterruptedException {
+    private void waitForNexusAvailability(Instance nexusInstance, HttpAvailabilityChecker httpAvailabilityChecker)
+            throws InterruptedException {
         int maxTries = 3;
         int tries = 0;
         boolean success = false;
         while (!success && tries < maxTries) {
             try {
-                AmazonAwsUtils.awaitForHttpAvailability("http://" + nexusInstance.getPublicIpAddress() + ":8081/nexus/");
+                httpAvailabilityChecker.awaitForHttpAvailability("http://" + nexusInstance.getPublicIpAddress() + ":8081/nexus/").get();
                 success = true;
-            } catch (Exception e) {
+            } catch (ExecutionException e) {
                 logger.warn("Silently skipped " + e, e);
                 tries++;
                 Thread.sleep(3000);
@@ -118,4 +132,9 @@ public class CreateNexusInstance extends InfrastructureCreationStep {
     public String toString() {
         return "Nexus instance creation";
     }
+
+    @Override
+    public Set<String> getProducedResources() {
+        return Collections.singleton(RESOURCE_NEXUS);
+    }
 }
@@ -17,18 +17,26 @@ package fr.xebia.workshop.continuousdelivery;
 
 import static com.google.common.collect.Lists.transform;
 
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceType;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsFunctions;
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
+import fr.xebia.cloud.amazon.aws.tools.HttpAvailabilityChecker;
+import fr.xebia.cloud.amazon.aws.tools.TeamInstancesPipeline;
 import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder;
 
 public class CreateTomcatServers extends InfrastructureCreationStep {
@@ -44,67 +52,89 @@ public class CreateTomcatServers extends InfrastructureCreationStep {
     }
 
     @Override
-    public void execute(AmazonEC2 ec2, WorkshopInfrastructure infra) throws Exception {
+    public void execute(final AmazonEC2 ec2, WorkshopInfrastructure infra) throws Exception {
         logger.info("CREATING TOMCAT '{}' SERVERS", environment);
 
-        String role = TeamInfrastructure.ROLE_TOMCAT + "-" + environment;
+        final String role = TeamInfrastructure.ROLE_TOMCAT + "-" + environment;
         AmazonAwsUtils.terminateInstancesByRoleAndTeam(role, infra.getTeamIdentifiers(), ec2);
 
-        List<Instance> tomcatInstances = createNewInstances(ec2, infra);
-
-        tagInstances(tomcatInstances, role, ec2, infra);
+        // the Tomcat servers of all the teams are health checked in parallel, the health check is best effort
+        final HttpAvailabilityChecker httpAvailabilityChecker = new HttpAvailabilityChecker();
+        Map<String, List<Instance>> tomcatInstancesByTeamId;
+        try {
+            tomcatInstancesByTeamId = new TeamInstancesPipeline(infra.getTeamIdentifiers(), numberOfInstances) //
+                    .addStage(new TeamInstancesPipeline.Stage() {
+                        @Override
+                        public void execute(String teamIdentifier, List<Instance> tomcatInstances) {
+                            tagInstances(teamIdentifier, tomcatInstances, role, ec2);
+                        }
+                    }) //
+                    .addStage(new TeamInstancesPipeline.Stage() {
+                        @Override
+                        public void execute(String teamIdentifier, List<Instance> tomcatInstances) {
+                            awaitForTomcatAvailability(teamIdentifier, tomcatInstances, httpAvailabilityChecker);
+                        }
+                    }) //
+                    .launch(buildRunInstancesRequest(infra), ec2);
+        } finally {
+            httpAvailabilityChecker.close();
+        }
 
+        List<Instance> tomcatInstances = Lists.newArrayList(Iterables.concat(tomcatInstancesByTeamId.values()));
         logger.info(
                 "{} TOMCAT '{}' SERVERS SUCCESSFULLY CREATED: {}",
                 new Object[] { tomcatInstances.size(), environment,
                         transform(tomcatInstances, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID) });
     }
 
-    private void tagInstances(List<Instance> tomcatInstances, String role, AmazonEC2 ec2, WorkshopInfrastructure infra) {
-        Iterator<String> teamInfrastructureIterator = infra.getTeamIdentifiers().iterator();
-        Iterator<Instance> tomcatInstancesIterator = tomcatInstances.iterator();
+    private void tagInstances(String identifier, List<Instance> tomcatInstances, String role, AmazonEC2 ec2) {
+        Map<Instance, List<Tag>> tagsByInstance = Maps.newLinkedHashMap();
+        for (int i = 0; i < tomcatInstances.size(); i++) {
+            String serverName = "tomcat-" + identifier + "-" + environment + "-" + (i + 1);
 
-        while (tomcatInstancesIterator.hasNext()) {
-            String identifier = teamInfrastructureIterator.next();
-            for (int i = 0; i < numberOfInstances && tomcatInstancesIterator.hasNext(); i++) {
-                Instance tomcatInstance = tomcatInstancesIterator.next();
+            tagsByInstance.put(tomcatInstances.get(i), Arrays.asList(//
+                    new Tag("Name", serverName), //
+                    new Tag("Workshop", "continuous-delivery-workshop"), //
+                    new Tag("TeamIdentifier", identifier), //
+                    new Tag("Role", role)));
+        }
 
-                String serverName = "tomcat-" + identifier + "-" + environment + "-" + (i + 1);
+        AmazonAwsUtils.createTags(tagsByInstance, ec2);
+    }
 
-                CreateTagsRequest createTagsRequest = new CreateTagsRequest() //
-                        .withResources(tomcatInstance.getInstanceId()) //
-                        .withTags(//
-                                new Tag("Name", serverName), //
-                                new Tag("Workshop", "continuous-delivery-workshop"), //
-                                new Tag("TeamIdentifier", identifier), //
-                                new Tag("Role", role));
+    private void awaitForTomcatAvailability(String teamIdentifier, List<Instance> tomcatInstances,
+                                            HttpAvailabilityChecker httpAvailabilityChecker) {
+        logger.info("Waiting for Tomcat availability '{}' - {}", teamIdentifier,
+                transform(tomcatInstances, AmazonAwsFunctions.EC2_INSTANCE_TO_INSTANCE_ID));
 
-                createTags(tomcatInstance, createTagsRequest, ec2);
+        try {
+            List<String> tomcatUrls = Lists.newArrayList();
+            for (Instance tomcatInstance : tomcatInstances) {
+                tomcatUrls.add(TeamInfrastructure.getTomcatUrl(tomcatInstance));
             }
+            Futures.allAsList(httpAvailabilityChecker.awaitForHttpAvailability(tomcatUrls).values()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Silently skipped " + e, e);
+        } catch (Exception e) {
+            logger.warn("Silently skipped " + e, e);
         }
     }
 
-    private List<Instance> createNewInstances(AmazonEC2 ec2, WorkshopInfrastructure infra) {
+    private RunInstancesRequest buildRunInstancesRequest(WorkshopInfrastructure infra) {
         String userData = CloudInitUserDataBuilder.start().addCloudConfigFromFilePath(CLOUD_CONFIG_FILE_PATH).buildBase64UserData();
 
-        int instanceCount = infra.getTeamCount() * numberOfInstances;
-
-        RunInstancesRequest runInstancesRequest = new RunInstancesRequest() //
+        return new RunInstancesRequest() //
                 .withInstanceType(InstanceType.T1Micro.toString()) //
                 .withImageId(WORKSHOP_IMAGE_ID) //
-                .withMinCount(instanceCount) //
-                .withMaxCount(instanceCount) //
                 .withSecurityGroupIds("accept-all") //
                 .withKeyName(infra.getKeyPairName())
                 .withUserData(userData);
+    }
 
-        List<Instance> instances = AmazonAwsUtils.reliableEc2RunInstances(runInstancesRequest, ec2);
-
-        if (instances.size() != instanceCount) {
-            logger.warn("Unexpected number of instances created: {} instead of {} expected", instances.size(), instanceCount);
-        }
-
-        return instances;
+    @Override
+    public Set<String> getProducedResources() {
+        return Collections.singleton(TeamInfrastructure.ROLE_TOMCAT + "-" + environment);
     }
 
     @Override
@@ -61,6 +61,13 @@ public class DocumentationGenerator {
         }
         wikiBaseFolder.mkdirs();
 
+        // fail fast on template syntax errors before generating the pages of the teams
+        List<String> templatePaths = Lists.newArrayList(TEMPLATE_ROOT_PATH + SETUP_TEMPLATE_NAME + ".ftl");
+        for (String template : TEMPLATE_LAB_NAMES) {
+            templatePaths.add(TEMPLATE_ROOT_PATH + template + ".ftl");
+        }
+        FreemarkerUtils.preloadTemplates(templatePaths.toArray(new String[templatePaths.size()]));
+
         List<String> generatedWikiPageNames = Lists.newArrayList();
         List<String> setupGeneratedWikiPageNames = Lists.newArrayList();
         HashMap<TeamInfrastructure, List<String>> teamsPages = Maps.newHashMap();
@@ -74,13 +81,12 @@ public class DocumentationGenerator {
                     String templatePath = TEMPLATE_ROOT_PATH + template + ".ftl";
                     rootMap.put("generator", "This page has been generaterd by '{{{" + getClass() + "}}}' with template '{{{" + templatePath + "}}}' on the "
                             + new DateTime());
-                    String page = FreemarkerUtils.generate(rootMap, templatePath);
                     String wikiPageName = "ContinuousDeliveryWorkshopLab_" + infrastructure.getIdentifier() + "_" + template;
                     wikiPageName = wikiPageName.replace('-', '_');
                     generatedWikiPageNames.add(wikiPageName);
                     generatedForTeam.add(wikiPageName);
                     File wikiPageFile = new File(wikiBaseFolder, wikiPageName + ".wiki");
-                    Files.write(page, wikiPageFile, Charsets.UTF_8);
+                    FreemarkerUtils.generate(rootMap, templatePath, wikiPageFile, Charsets.UTF_8);
                     logger.debug("Generated file {}", wikiPageFile);
                 } catch (Exception e) {
                     logger.error("Exception generating doc for {}", infrastructure, e);
@@ -94,12 +100,11 @@ public class DocumentationGenerator {
                 rootMap.put("generator", "This page has been generaterd by '{{{" + getClass() + "}}}' with template '{{{" + templatePath + "}}}' on the "
                         + new DateTime());
                 rootMap.put("generatedWikiPageNames", generatedForTeam);
-                String page = FreemarkerUtils.generate(rootMap, templatePath);
                 String wikiPageName = "ContinuousDeliveryWorkshopLab_" + infrastructure.getIdentifier() + "_" + SETUP_TEMPLATE_NAME;
                 wikiPageName = wikiPageName.replace('-', '_');
 
                 File wikiPageFile = new File(wikiBaseFolder, wikiPageName + ".wiki");
-                Files.write(page, wikiPageFile, Charsets.UTF_8);
+                FreemarkerUtils.generate(rootMap, templatePath, wikiPageFile, Charsets.UTF_8);
 
                 generatedWikiPageNames.add(wikiPageName);
                 setupGeneratedWikiPageNames.add(wikiPageName);
@@ -15,10 +15,12 @@
  */
 package fr.xebia.workshop.continuousdelivery;
 
+import java.util.Collections;
+import java.util.Set;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.Instance;
@@ -31,23 +33,36 @@ public abstract class InfrastructureCreationStep {
 
     protected static final String WORKSHOP_IMAGE_ID = AmazonAwsUtils.AMI_AMZN_LINUX_EU_WEST;
 
+    public static final String RESOURCE_NEXUS = "nexus";
+
+    public static final String RESOURCE_GITHUB_REPOSITORIES = "github-repositories";
+
+    public static final String RESOURCE_JENKINS = "jenkins";
+
     public abstract void execute(AmazonEC2 ec2, WorkshopInfrastructure workshopInfrastructure) throws Exception;
 
+    /**
+     * Resources (e.g. {@link #RESOURCE_NEXUS}) that must be produced by other
+     * steps before this step can start.
+     *
+     * @see InfrastructureCreationStepScheduler
+     */
+    public Set<String> getRequiredResources() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Resources (e.g. {@link #RESOURCE_NEXUS}) available once this step is
+     * successfully executed.
+     *
+     * @see InfrastructureCreationStepScheduler
+     */
+    public Set<String> getProducedResources() {
+        return Collections.emptySet();
+    }
+
     protected void createTags(Instance instance, CreateTagsRequest createTagsRequest, AmazonEC2 ec2) {
-        // "AWS Error Code: InvalidInstanceID.NotFound, AWS Error Message: The instance ID 'i-d1638198' does not exist"
-        AmazonAwsUtils.awaitForEc2Instance(instance, ec2);
-
-        try {
-            ec2.createTags(createTagsRequest);
-        } catch (AmazonServiceException e) {
-            // retries 5s later
-            try {
-                Thread.sleep(5 * 1000);
-            } catch (InterruptedException e1) {
-                e1.printStackTrace();
-            }
-            ec2.createTags(createTagsRequest);
-        }
+        AmazonAwsUtils.createTags(instance, createTagsRequest, ec2);
     }
 
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.workshop.continuousdelivery;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.google.common.base.Joiner;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+/**
+ * <p>
+ * Run {@link InfrastructureCreationStep}s according to the resources they
+ * require and produce ({@link InfrastructureCreationStep#getRequiredResources()}
+ * and {@link InfrastructureCreationStep#getProducedResources()}).
+ * </p>
+ * <ul>
+ * <li>Independent steps run in parallel.</li>
+ * <li>A step starts as soon as all the steps producing its required resources
+ * are successfully executed.</li>
+ * <li>When a step fails, the steps that depend on it, directly or not, are
+ * cancelled.</li>
+ * <li>The critical path (the chain of dependent steps that bounds the
+ * duration of the whole creation) is reported.</li>
+ * </ul>
+ */
+public class InfrastructureCreationStepScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(InfrastructureCreationStepScheduler.class);
+
+    private final List<InfrastructureCreationStep> steps;
+
+    private long timeoutInMillis = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Written by the steps threads, read by the scheduling thread.
+     */
+    private final ConcurrentMap<InfrastructureCreationStep, Long> durationsInMillis = Maps.newConcurrentMap();
+
+    private final Map<InfrastructureCreationStep, Throwable> failedSteps = Maps.newLinkedHashMap();
+
+    private final Set<InfrastructureCreationStep> cancelledSteps = Sets.newLinkedHashSet();
+
+    public InfrastructureCreationStepScheduler(Collection<InfrastructureCreationStep> steps) {
+        this.steps = Lists.newArrayList(steps);
+    }
+
+    public InfrastructureCreationStepScheduler withTimeout(long timeout, TimeUnit timeUnit) {
+        this.timeoutInMillis = timeUnit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Execute the steps.
+     *
+     * @return <code>true</code> if all the steps were successfully executed
+     * @throws IllegalStateException if a required resource is not produced by
+     *                               any step or if the dependencies are cyclic
+     */
+    public boolean execute(final AmazonEC2 ec2, final WorkshopInfrastructure workshopInfrastructure) throws InterruptedException,
+            IllegalStateException {
+        Multimap<InfrastructureCreationStep, InfrastructureCreationStep> dependenciesByStep = getDependenciesByStep();
+        checkNoCycle(dependenciesByStep);
+
+        Set<InfrastructureCreationStep> pendingSteps = Sets.newLinkedHashSet(steps);
+        Set<InfrastructureCreationStep> succeededSteps = Sets.newHashSet();
+        Map<Future<InfrastructureCreationStep>, InfrastructureCreationStep> runningSteps = Maps.newHashMap();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, steps.size()));
+        CompletionService<InfrastructureCreationStep> completionService = new ExecutorCompletionService<InfrastructureCreationStep>(
+                executorService);
+        long deadlineInMillis = System.currentTimeMillis() + timeoutInMillis;
+        try {
+            while (true) {
+                // start the steps whose dependencies are all successfully executed
+                for (final InfrastructureCreationStep step : Lists.newArrayList(pendingSteps)) {
+                    if (succeededSteps.containsAll(dependenciesByStep.get(step))) {
+                        pendingSteps.remove(step);
+                        logger.info("Start step {}", step);
+                        runningSteps.put(completionService.submit(new TimedStep(step, ec2, workshopInfrastructure)), step);
+                    }
+                }
+                if (runningSteps.isEmpty()) {
+                    break;
+                }
+
+                Future<InfrastructureCreationStep> completedStep = completionService.poll(
+                        Math.max(0, deadlineInMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (completedStep == null) {
+                    logger.error("Timeout executing steps {}", runningSteps.values());
+                    for (Map.Entry<Future<InfrastructureCreationStep>, InfrastructureCreationStep> entry : runningSteps.entrySet()) {
+                        entry.getKey().cancel(true);
+                        cancelledSteps.add(entry.getValue());
+                    }
+                    cancelledSteps.addAll(pendingSteps);
+                    break;
+                }
+
+                InfrastructureCreationStep step = runningSteps.remove(completedStep);
+                try {
+                    completedStep.get();
+                    succeededSteps.add(step);
+                    logger.info("Step {} successfully executed in {}ms", step, durationsInMillis.get(step));
+                } catch (ExecutionException e) {
+                    logger.error("Exception executing step: " + step, e.getCause());
+                    failedSteps.put(step, e.getCause());
+                    Set<InfrastructureCreationStep> dependentSteps = getDependentSteps(step, dependenciesByStep);
+                    dependentSteps.retainAll(pendingSteps);
+                    if (!dependentSteps.isEmpty()) {
+                        logger.warn("Cancel steps {} depending on failed step {}", dependentSteps, step);
+                        pendingSteps.removeAll(dependentSteps);
+                        cancelledSteps.addAll(dependentSteps);
+                    }
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        logCriticalPath(dependenciesByStep, succeededSteps);
+        return failedSteps.isEmpty() && cancelledSteps.isEmpty();
+    }
+
+    public Map<InfrastructureCreationStep, Throwable> getFailedSteps() {
+        return Collections.unmodifiableMap(failedSteps);
+    }
+
+    public Set<InfrastructureCreationStep> getCancelledSteps() {
+        return Collections.unmodifiableSet(cancelledSteps);
+    }
+
+    /**
+     * @return the steps producing the resources required by each step.
+     */
+    private Multimap<InfrastructureCreationStep, InfrastructureCreationStep> getDependenciesByStep() {
+        Multimap<String, InfrastructureCreationStep> producersByResource = HashMultimap.create();
+        for (InfrastructureCreationStep step : steps) {
+            for (String resource : step.getProducedResources()) {
+                producersByResource.put(resource, step);
+            }
+        }
+
+        Multimap<InfrastructureCreationStep, InfrastructureCreationStep> dependenciesByStep = HashMultimap.create();
+        for (InfrastructureCreationStep step : steps) {
+            for (String requiredResource : step.getRequiredResources()) {
+                Collection<InfrastructureCreationStep> producers = producersByResource.get(requiredResource);
+                if (producers.isEmpty()) {
+                    throw new IllegalStateException("No step produces resource '" + requiredResource + "' required by step " + step);
+                }
+                dependenciesByStep.putAll(step, producers);
+            }
+        }
+        return dependenciesByStep;
+    }
+
+    private void checkNoCycle(Multimap<InfrastructureCreationStep, InfrastructureCreationStep> dependenciesByStep) {
+        Set<InfrastructureCreationStep> sortedSteps = Sets.newHashSet();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (InfrastructureCreationStep step : steps) {
+                if (!sortedSteps.contains(step) && sortedSteps.containsAll(dependenciesByStep.get(step))) {
+                    sortedSteps.add(step);
+                    progress = true;
+                }
+            }
+        }
+        if (sortedSteps.size() != steps.size()) {
+            Set<InfrastructureCreationStep> cyclicSteps = Sets.newLinkedHashSet(steps);
+            cyclicSteps.removeAll(sortedSteps);
+            throw new IllegalStateException("Cyclic dependencies between steps " + cyclicSteps);
+        }
+    }
+
+    /**
+     * @return the steps that depend, directly or not, on the given step.
+     */
+    private Set<InfrastructureCreationStep> getDependentSteps(InfrastructureCreationStep step,
+                                                              Multimap<InfrastructureCreationStep, InfrastructureCreationStep> dependenciesByStep) {
+        Set<InfrastructureCreationStep> dependentSteps = Sets.newLinkedHashSet();
+        List<InfrastructureCreationStep> stepsToVisit = Lists.newArrayList(step);
+        while (!stepsToVisit.isEmpty()) {
+            InfrastructureCreationStep visitedStep = stepsToVisit.remove(0);
+            for (Map.Entry<InfrastructureCreationStep, InfrastructureCreationStep> dependency : dependenciesByStep.entries()) {
+                if (dependency.getValue() == visitedStep && dependentSteps.add(dependency.getKey())) {
+                    stepsToVisit.add(dependency.getKey());
+                }
+            }
+        }
+        return dependentSteps;
+    }
+
+    /**
+     * Log the longest chain of dependent successful steps.
+     */
+    private void logCriticalPath(Multimap<InfrastructureCreationStep, InfrastructureCreationStep> dependenciesByStep,
+                                 Set<InfrastructureCreationStep> succeededSteps) {
+        Map<InfrastructureCreationStep, Long> pathDurationsInMillis = Maps.newHashMap();
+        Map<InfrastructureCreationStep, InfrastructureCreationStep> predecessors = Maps.newHashMap();
+        InfrastructureCreationStep lastStep = null;
+
+        // steps are already checked to be acyclic, iterate until all the durations are known
+        Set<InfrastructureCreationStep> remainingSteps = Sets.newLinkedHashSet(succeededSteps);
+        while (!remainingSteps.isEmpty()) {
+            for (InfrastructureCreationStep step : Lists.newArrayList(remainingSteps)) {
+                Collection<InfrastructureCreationStep> dependencies = dependenciesByStep.get(step);
+                if (!pathDurationsInMillis.keySet().containsAll(dependencies)) {
+                    continue;
+                }
+                long longestDependencyPathInMillis = 0;
+                for (InfrastructureCreationStep dependency : dependencies) {
+                    if (pathDurationsInMillis.get(dependency) > longestDependencyPathInMillis) {
+                        longestDependencyPathInMillis = pathDurationsInMillis.get(dependency);
+                        predecessors.put(step, dependency);
+                    }
+                }
+                long pathDurationInMillis = longestDependencyPathInMillis + durationsInMillis.get(step);
+                pathDurationsInMillis.put(step, pathDurationInMillis);
+                if (lastStep == null || pathDurationInMillis > pathDurationsInMillis.get(lastStep)) {
+                    lastStep = step;
+                }
+                remainingSteps.remove(step);
+            }
+        }
+        if (lastStep == null) {
+            return;
+        }
+
+        List<InfrastructureCreationStep> criticalPath = Lists.newArrayList();
+        for (InfrastructureCreationStep step = lastStep; step != null; step = predecessors.get(step)) {
+            criticalPath.add(0, step);
+        }
+        logger.info("Critical path {}ms: {}", pathDurationsInMillis.get(lastStep), Joiner.on(" -> ").join(criticalPath));
+    }
+
+    private class TimedStep implements Callable<InfrastructureCreationStep> {
+
+        private final InfrastructureCreationStep step;
+
+        private final AmazonEC2 ec2;
+
+        private final WorkshopInfrastructure workshopInfrastructure;
+
+        private TimedStep(InfrastructureCreationStep step, AmazonEC2 ec2, WorkshopInfrastructure workshopInfrastructure) {
+            this.step = step;
+            this.ec2 = ec2;
+            this.workshopInfrastructure = workshopInfrastructure;
+        }
+
+        @Override
+        public InfrastructureCreationStep call() throws Exception {
+            long startTimeInMillis = System.currentTimeMillis();
+            try {
+                step.execute(ec2, workshopInfrastructure);
+                return step;
+            } finally {
+                durationsInMillis.put(step, System.currentTimeMillis() - startTimeInMillis);
+            }
+        }
+    }
+}
@@ -17,13 +17,16 @@ package fr.xebia.workshop.infrastructureascode;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 
@@ -35,7 +38,8 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Filter;
@@ -83,14 +87,20 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
-import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder;
-import fr.xebia.cloud.cloudinit.FreemarkerUtils;
+import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
+import fr.xebia.cloud.cloudinit.CloudInitUserDataTemplate;
 
 /**
  * <p>
@@ -257,7 +267,11 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
 
     public static void main(String[] args) throws Exception {
         AmazonAwsPetclinicInfrastructureEnforcer infrastructureMaker = new AmazonAwsPetclinicInfrastructureEnforcer();
-        infrastructureMaker.createPetclinicInfrastructure(Distribution.AMZN_LINUX);
+        try {
+            infrastructureMaker.createPetclinicInfrastructure(Distribution.AMZN_LINUX);
+        } finally {
+            infrastructureMaker.close();
+        }
 
     }
 
@@ -288,6 +302,30 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
 
     protected final AmazonRDS rds;
 
+    /**
+     * Launches the resources of the infrastructure concurrently, shutdown by
+     * {@link #close()}.
+     */
+    private final ExecutorService executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder() //
+            .setNameFormat("petclinic-infrastructure-%d") //
+            .setDaemon(true) //
+            .build());
+
+    /**
+     * Cloud-init templates by distribution: the cloud-config of a
+     * distribution is encoded once, only the shell script is rendered for
+     * each call. Use {@link #getCloudInitUserDataTemplate(Distribution)}.
+     */
+    private final LoadingCache<Distribution, CloudInitUserDataTemplate> cloudInitUserDataTemplatesByDistribution = CacheBuilder
+            .newBuilder().build(new CacheLoader<Distribution, CloudInitUserDataTemplate>() {
+                @Override
+                public CloudInitUserDataTemplate load(Distribution distribution) {
+                    return CloudInitUserDataTemplate.start() //
+                            .addShellScriptTemplate("/provision_tomcat.py.ftl") //
+                            .addCloudConfigFromFilePath(distribution.getCloudConfigFilePath());
+                }
+            });
+
     @VisibleForTesting
     protected AmazonAwsPetclinicInfrastructureEnforcer(AmazonEC2 ec2, AmazonElasticLoadBalancing elb, AmazonRDS rds) {
         super();
@@ -302,8 +340,9 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
                     .getResourceAsStream("AwsCredentials.properties");
             Preconditions.checkNotNull(credentialsAsStream, "File 'AwsCredentials.properties' NOT found in the classpath");
             AWSCredentials credentials = new PropertiesCredentials(credentialsAsStream);
-            ec2 = new AmazonEC2Client(credentials);
-            ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
+            AmazonEC2 ec2Client = new AmazonEC2Client(credentials);
+            ec2Client.setEndpoint("ec2.eu-west-1.amazonaws.com");
+            ec2 = AmazonAwsUtils.decorateWithThrottlingRetry(ec2Client);
             rds = new AmazonRDSClient(credentials);
             rds.setEndpoint("rds.eu-west-1.amazonaws.com");
             elb = new AmazonElasticLoadBalancingClient(credentials);
@@ -420,19 +459,22 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         systemProperties.put("jdbc.username", jdbcUsername);
         systemProperties.put("jdbc.password", jdbcPassword);
 
-        String shellScript = FreemarkerUtils.generate(rootMap, "/provision_tomcat.py.ftl");
+        return getCloudInitUserDataTemplate(distribution).buildBase64UserData(rootMap);
 
-        // CLOUD CONFIG
-        InputStream cloudConfigAsStream = Thread.currentThread().getContextClassLoader()
-                .getResourceAsStream(distribution.getCloudConfigFilePath());
-        Preconditions.checkNotNull(cloudConfigAsStream, "'" + distribution.getCloudConfigFilePath() + "' not found in path");
-        Readable cloudConfig = new InputStreamReader(cloudConfigAsStream);
-
-        return CloudInitUserDataBuilder.start() //
-                .addShellScript(shellScript) //
-                .addCloudConfig(cloudConfig) //
-                .buildBase64UserData();
+    }
 
+    /**
+     * @return the cloud-init template of the given distribution, built on
+     *         first use. Loading errors (e.g. cloud-config file not found) are
+     *         thrown as is.
+     */
+    @Nonnull
+    private CloudInitUserDataTemplate getCloudInitUserDataTemplate(@Nonnull Distribution distribution) {
+        try {
+            return cloudInitUserDataTemplatesByDistribution.getUnchecked(distribution);
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
     }
 
     @Nonnull
@@ -475,6 +517,14 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         return dbInstance;
     }
 
+    /**
+     * Stop the threads launching the resources of the infrastructure, the
+     * resources can no longer be created once closed.
+     */
+    public void close() {
+        executorService.shutdownNow();
+    }
+
     public void createPetclinicInfrastructure(Distribution... distributions) {
 
         String applicationId = "petclinic";
@@ -486,22 +536,52 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
 
     }
 
-    void createTomcatMySqlInfrastructure(String applicationId, String rootContext, String warUrl, String healthCheckUri,
+    void createTomcatMySqlInfrastructure(final String applicationId, String rootContext, String warUrl, final String healthCheckUri,
             Distribution... distributions) {
         String dbInstanceIdentifier = applicationId;
         String dbName = applicationId;
         String jdbcUsername = applicationId;
         String jdbcPassword = applicationId;
 
-        DBInstance dbInstance = createMySqlDatabaseInstanceIfNotExists(dbInstanceIdentifier, dbName, jdbcUsername, jdbcPassword);
-        dbInstance = awaitForDbInstanceCreation(dbInstance);
-        logger.info("MySQL instance: " + dbInstance);
+        long startTimeInMillis = System.currentTimeMillis();
 
-        List<Instance> tomcatInstances = createTomcatServers(dbInstance, applicationId, jdbcUsername, jdbcPassword, warUrl, rootContext,
-                distributions);
-        logger.info("EC2 instances: " + tomcatInstances);
-        LoadBalancerDescription loadBalancerDescription = createOrUpdateElasticLoadBalancer(healthCheckUri, applicationId);
+        // configure the load balancer (listener, health check, stickiness) while the database is created
+        Future<LoadBalancerDescription> loadBalancerConfigurationFuture = executorService.submit(new Callable<LoadBalancerDescription>() {
+            @Override
+            public LoadBalancerDescription call() throws Exception {
+                return createOrUpdateElasticLoadBalancer(healthCheckUri, applicationId);
+            }
+        });
+
+        // the database creation is the slowest step, await for it in background
+        final DBInstance createdDbInstance = createMySqlDatabaseInstanceIfNotExists(dbInstanceIdentifier, dbName, jdbcUsername,
+                jdbcPassword);
+        Future<DBInstance> dbInstanceFuture = executorService.submit(new Callable<DBInstance>() {
+            @Override
+            public DBInstance call() throws Exception {
+                return awaitForDbInstanceCreation(createdDbInstance);
+            }
+        });
+
+        final List<Instance> launchedTomcatInstances = createTomcatServers(dbInstanceFuture, applicationId, jdbcUsername, jdbcPassword,
+                warUrl, rootContext, distributions);
+        logger.info("EC2 instances: " + launchedTomcatInstances);
+
+        // register the instances while they boot, once the load balancer is configured
+        Futures.getUnchecked(loadBalancerConfigurationFuture);
+        Future<LoadBalancerDescription> loadBalancerDescriptionFuture = executorService.submit(new Callable<LoadBalancerDescription>() {
+            @Override
+            public LoadBalancerDescription call() throws Exception {
+                return createOrUpdateElasticLoadBalancer(healthCheckUri, applicationId, launchedTomcatInstances);
+            }
+        });
+        List<Instance> tomcatInstances = awaitForEc2Instances(launchedTomcatInstances);
+
+        DBInstance dbInstance = Futures.getUnchecked(dbInstanceFuture);
+        logger.info("MySQL instance: " + dbInstance);
+        LoadBalancerDescription loadBalancerDescription = Futures.getUnchecked(loadBalancerDescriptionFuture);
         logger.info("Load Balancer DNS name: " + loadBalancerDescription.getDNSName());
+        logger.info("Infrastructure created in {}ms", System.currentTimeMillis() - startTimeInMillis);
 
         // PRINT INFRASTRUCTURE
         System.out.println("DATABASE");
@@ -515,7 +595,6 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
 
         System.out.println("TOMCAT SERVERS");
         System.out.println("==============");
-        tomcatInstances = awaitForEc2Instances(tomcatInstances);
         for (Instance instance : tomcatInstances) {
             System.out.println("http://" + instance.getPublicDnsName() + ":8080" + rootContext);
         }
@@ -536,16 +615,43 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
      */
     @Nonnull
     public LoadBalancerDescription createOrUpdateElasticLoadBalancer(@Nonnull String healthCheckUri, @Nonnull String applicationIdentifier) {
+        return createOrUpdateElasticLoadBalancer(healthCheckUri, applicationIdentifier, Collections.<Instance> emptyList());
+    }
+
+    /**
+     * 
+     * @param healthCheckUri
+     *            start with slash. E.g. "/myapp/healthcheck.jsp
+     * @param applicationIdentifier
+     *            used to name the load balancer and to filter the instances on
+     *            their "Role" tag.
+     * @param launchedInstances
+     *            instances to register in addition to the ones with the "Role"
+     *            tag, the tags of just launched instances may not yet be
+     *            visible to <code>DescribeInstances</code> filters.
+     * @return created load balancer description
+     */
+    @Nonnull
+    public LoadBalancerDescription createOrUpdateElasticLoadBalancer(@Nonnull String healthCheckUri, @Nonnull String applicationIdentifier,
+            @Nonnull Iterable<Instance> launchedInstances) {
         logger.info("ENFORCE LOAD BALANCER");
 
         DescribeInstancesRequest describeInstancesWithRoleRequest = new DescribeInstancesRequest(). //
-                withFilters(new Filter("tag:Role", Arrays.asList(applicationIdentifier)));
+                withFilters(new Filter("tag:Role", Arrays.asList(applicationIdentifier)), //
+                        new Filter("instance-state-name", Arrays.asList("pending", "running")));
         DescribeInstancesResult describeInstancesResult = ec2.describeInstances(describeInstancesWithRoleRequest);
 
-        Iterable<Instance> expectedEc2Instances = toEc2Instances(describeInstancesResult.getReservations());
+        Map<String, Instance> expectedEc2InstancesById = Maps.newLinkedHashMap();
+        for (Instance instance : Iterables.concat(toEc2Instances(describeInstancesResult.getReservations()), launchedInstances)) {
+            if (!expectedEc2InstancesById.containsKey(instance.getInstanceId())) {
+                expectedEc2InstancesById.put(instance.getInstanceId(), instance);
+            }
+        }
+        Iterable<Instance> expectedEc2Instances = expectedEc2InstancesById.values();
 
         Set<String> expectedAvailabilityZones = Sets.newHashSet(Iterables
                 .transform(expectedEc2Instances, EC2_INSTANCE_TO_AVAILABILITY_ZONE));
+        boolean availabilityZonesUnknown = expectedAvailabilityZones.isEmpty();
         Listener expectedListener = new Listener("HTTP", 80, 8080);
 
         String loadBalancerName = applicationIdentifier;
@@ -572,12 +678,19 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         Policies actualPolicies;
         HealthCheck actualHealthCheck;
         ListenerDescription actualListenerDescription = null;
+        // only re-query the load balancer description if something changed
+        boolean loadBalancerChanged = false;
         if (actualLoadBalancerDescription == null) {
+            if (availabilityZonesUnknown) {
+                // no instance yet, create the load balancer in all the zones of the region
+                expectedAvailabilityZones = getAvailableAvailabilityZones();
+            }
             CreateLoadBalancerRequest createLoadBalancerRequest = new CreateLoadBalancerRequest() //
                     .withLoadBalancerName(loadBalancerName) //
                     .withAvailabilityZones(expectedAvailabilityZones) //
                     .withListeners(expectedListener);
             elb.createLoadBalancer(createLoadBalancerRequest);
+            loadBalancerChanged = true;
 
             actualListenerDescription = new ListenerDescription().withListener(expectedListener);
             actualAvailabilityZones = expectedAvailabilityZones;
@@ -607,7 +720,7 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
                 logger.info("Recreate miss configured load balancer actualListeners:{}, expectedListener:{}", actualListenerDescriptions,
                         expectedListener);
                 elb.deleteLoadBalancer(new DeleteLoadBalancerRequest(loadBalancerName));
-                return createOrUpdateElasticLoadBalancer(healthCheckUri, applicationIdentifier);
+                return createOrUpdateElasticLoadBalancer(healthCheckUri, applicationIdentifier, launchedInstances);
             }
 
             //
@@ -616,6 +729,10 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
                     ELB_INSTANCE_TO_INSTANCE_ID));
 
             actualHealthCheck = actualLoadBalancerDescription.getHealthCheck();
+            if (availabilityZonesUnknown) {
+                // no instance yet, keep the actual zones
+                expectedAvailabilityZones = actualAvailabilityZones;
+            }
 
             actualPolicies = actualLoadBalancerDescription.getPolicies();
         }
@@ -635,11 +752,12 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
                 Objects.equal(expectedHealthCheck.getHealthyThreshold(), actualHealthCheck.getHealthyThreshold()) && //
                 Objects.equal(expectedHealthCheck.getInterval(), actualHealthCheck.getInterval()) && //
                 Objects.equal(expectedHealthCheck.getTimeout(), actualHealthCheck.getTimeout()) && //
-                Objects.equal(expectedHealthCheck.getUnhealthyThreshold(), actualHealthCheck.getHealthyThreshold())) {
+                Objects.equal(expectedHealthCheck.getUnhealthyThreshold(), actualHealthCheck.getUnhealthyThreshold())) {
             // health check is ok
         } else {
             logger.info("Set Healthcheck: " + expectedHealthCheck);
             elb.configureHealthCheck(new ConfigureHealthCheckRequest(loadBalancerName, expectedHealthCheck));
+            loadBalancerChanged = true;
         }
 
         // AVAILABILITY ZONES
@@ -649,6 +767,7 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         if (!Iterables.isEmpty(availabilityZonesToEnable)) {
             elb.enableAvailabilityZonesForLoadBalancer(new EnableAvailabilityZonesForLoadBalancerRequest(loadBalancerName, Lists
                     .newArrayList(availabilityZonesToEnable)));
+            loadBalancerChanged = true;
         }
 
         // disable
@@ -657,6 +776,7 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         if (!Iterables.isEmpty(availabilityZonesToDisable)) {
             elb.disableAvailabilityZonesForLoadBalancer(new DisableAvailabilityZonesForLoadBalancerRequest(loadBalancerName, Lists
                     .newArrayList(availabilityZonesToDisable)));
+            loadBalancerChanged = true;
         }
 
         // STICKINESS
@@ -665,6 +785,7 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         for (AppCookieStickinessPolicy appCookieStickinessPolicyToDelete : appCookieStickinessPoliciesToDelete) {
             elb.deleteLoadBalancerPolicy(new DeleteLoadBalancerPolicyRequest(loadBalancerName, appCookieStickinessPolicyToDelete
                     .getPolicyName()));
+            loadBalancerChanged = true;
         }
 
         final LBCookieStickinessPolicy expectedLbCookieStickinessPolicy = new LBCookieStickinessPolicy(applicationIdentifier
@@ -682,6 +803,7 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         logger.info("Delete lb cookie stickiness policies: " + lbCookieStickinessPoliciesToDelete);
         for (LBCookieStickinessPolicy lbCookieStickinessPolicy : lbCookieStickinessPoliciesToDelete) {
             elb.deleteLoadBalancerPolicy(new DeleteLoadBalancerPolicyRequest(loadBalancerName, lbCookieStickinessPolicy.getPolicyName()));
+            loadBalancerChanged = true;
         }
 
         Collection<LBCookieStickinessPolicy> matchingLbCookieStyckinessPolicy = Collections2.filter(
@@ -694,6 +816,7 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
                     .withCookieExpirationPeriod(expectedLbCookieStickinessPolicy.getCookieExpirationPeriod());
             logger.info("Create LBCookieStickinessPolicy: " + createLbCookieStickinessPolicy);
             elb.createLBCookieStickinessPolicy(createLbCookieStickinessPolicy);
+            loadBalancerChanged = true;
 
         } else {
             // what ?
@@ -713,6 +836,7 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
                     .withPolicyNames(expectedLbCookieStickinessPolicy.getPolicyName());
             logger.debug("setLoadBalancerPoliciesOfListener: {}", setLoadBalancerPoliciesOfListenerRequest);
             elb.setLoadBalancerPoliciesOfListener(setLoadBalancerPoliciesOfListenerRequest);
+            loadBalancerChanged = true;
         }
 
         // INSTANCES
@@ -723,6 +847,7 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         if (!Iterables.isEmpty(instanceIdsToRegister)) {
             elb.registerInstancesWithLoadBalancer(new RegisterInstancesWithLoadBalancerRequest(loadBalancerName, Lists
                     .newArrayList(Iterables.transform(instanceIdsToRegister, INSTANCE_ID_TO_ELB_INSTANCE))));
+            loadBalancerChanged = true;
         }
 
         // deregister
@@ -731,6 +856,12 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         if (!Iterables.isEmpty(instanceIdsToDeregister)) {
             elb.deregisterInstancesFromLoadBalancer(new DeregisterInstancesFromLoadBalancerRequest(loadBalancerName, Lists
                     .newArrayList(Iterables.transform(instanceIdsToDeregister, INSTANCE_ID_TO_ELB_INSTANCE))));
+            loadBalancerChanged = true;
+        }
+
+        if (!loadBalancerChanged) {
+            logger.info("Load balancer {} is up to date", loadBalancerName);
+            return actualLoadBalancerDescription;
         }
 
         // QUERY TO GET UP TO DATE LOAD BALANCER DESCRIPTION
@@ -740,42 +871,84 @@ public class AmazonAwsPetclinicInfrastructureEnforcer {
         return elasticLoadBalancerDescription;
     }
 
+    @Nonnull
+    private Set<String> getAvailableAvailabilityZones() {
+        DescribeAvailabilityZonesRequest describeAvailabilityZonesRequest = new DescribeAvailabilityZonesRequest() //
+                .withFilters(new Filter("state", Arrays.asList("available")));
+        Set<String> availabilityZones = Sets.newHashSet();
+        for (AvailabilityZone availabilityZone : ec2.describeAvailabilityZones(describeAvailabilityZonesRequest).getAvailabilityZones()) {
+            availabilityZones.add(availabilityZone.getZoneName());
+        }
+        return availabilityZones;
+    }
+
     public List<Instance> createTomcatServers(DBInstance dbInstance, String applicationIdentifier, String jdbcUsername,
             String jdbcPassword, String warUrl, String rootContext, Distribution... distributions) {
-        logger.info("ENFORCE TOMCAT SERVERS");
+        return createTomcatServers(Futures.immediateFuture(dbInstance), applicationIdentifier, jdbcUsername, jdbcPassword, warUrl,
+                rootContext, distributions);
+    }
 
-        List<Instance> instances = Lists.newArrayList();
-        for (Distribution distribution : distributions) {
-            String userData = buildCloudInitUserData(distribution, dbInstance, jdbcUsername, jdbcPassword, warUrl, rootContext);
+    /**
+     * Launch the servers of all the distributions concurrently. The
+     * cloud-config of each distribution is prepared without waiting for the
+     * database, only the rendering of the JDBC dependent user data awaits for
+     * <code>dbInstanceFuture</code>.
+     */
+    public List<Instance> createTomcatServers(final Future<DBInstance> dbInstanceFuture, String applicationIdentifier,
+            final String jdbcUsername, final String jdbcPassword, final String warUrl, final String rootContext,
+            Distribution... distributions) {
+        logger.info("ENFORCE TOMCAT SERVERS");
 
-            // CREATE EC2 INSTANCES
-            RunInstancesRequest runInstancesRequest = new RunInstancesRequest() //
-                    .withInstanceType(distribution.getInstanceType().toString()) //
-                    .withImageId(distribution.getAmiId()) //
-                    .withMinCount(1) //
-                    .withMaxCount(1) //
-                    .withSecurityGroupIds("tomcat") //
-                    .withKeyName("xebia-france") //
-                    .withUserData(userData) //
+        List<Callable<List<Instance>>> launchers = Lists.newArrayList();
+        for (final Distribution distribution : distributions) {
+            launchers.add(new Callable<List<Instance>>() {
+                @Override
+                public List<Instance> call() throws Exception {
+                    // encode the cloud-config while the database is created
+                    getCloudInitUserDataTemplate(distribution);
+
+                    String userData = buildCloudInitUserData(distribution, dbInstanceFuture.get(), jdbcUsername, jdbcPassword, warUrl,
+                            rootContext);
+
+                    // CREATE EC2 INSTANCES
+                    RunInstancesRequest runInstancesRequest = new RunInstancesRequest() //
+                            .withInstanceType(distribution.getInstanceType().toString()) //
+                            .withImageId(distribution.getAmiId()) //
+                            .withMinCount(1) //
+                            .withMaxCount(1) //
+                            .withSecurityGroupIds("tomcat") //
+                            .withKeyName("xebia-france") //
+                            .withUserData(userData) //
+
+                    ;
+                    RunInstancesResult runInstances = ec2.runInstances(runInstancesRequest);
+                    return runInstances.getReservation().getInstances();
+                }
+            });
+        }
 
-            ;
-            RunInstancesResult runInstances = ec2.runInstances(runInstancesRequest);
-            instances.addAll(runInstances.getReservation().getInstances());
+        List<Instance> instances = Lists.newArrayList();
+        try {
+            for (Future<List<Instance>> future : executorService.invokeAll(launchers)) {
+                instances.addAll(Futures.getUnchecked(future));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
         }
 
         // TAG EC2 INSTANCES
+        Map<Instance, List<Tag>> tagsByInstance = Maps.newLinkedHashMap();
         int idx = 1;
         for (Instance instance : instances) {
-            CreateTagsRequest createTagsRequest = new CreateTagsRequest();
-            createTagsRequest.withResources(instance.getInstanceId()) //
-                    .withTags(//
-                            new Tag("Name", applicationIdentifier + "-" + idx), //
-                            new Tag("Role", applicationIdentifier), //
-                            new Tag("Distribution", Distribution.fromAmiId(instance.getImageId()).name()));
-            ec2.createTags(createTagsRequest);
+            tagsByInstance.put(instance, Arrays.asList(//
+                    new Tag("Name", applicationIdentifier + "-" + idx), //
+                    new Tag("Role", applicationIdentifier), //
+                    new Tag("Distribution", Distribution.fromAmiId(instance.getImageId()).name())));
 
             idx++;
         }
+        AmazonAwsUtils.createTags(tagsByInstance, ec2);
 
         logger.info("Created {}", instances);
 
@@ -19,6 +19,7 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
+import fr.xebia.cloud.amazon.aws.tools.CachingAmazonEc2InvocationHandler;
 
 public class AmazonEC2Factory {
 
@@ -26,6 +27,8 @@ public class AmazonEC2Factory {
         AWSCredentials credentials = AmazonAwsUtils.loadAwsCredentials();
         AmazonEC2 ec2 = new AmazonEC2Client(credentials);
         ec2.setEndpoint("ec2.eu-west-1.amazonaws.com");
-        return ec2;
+        // share instances state and rate limiters between the steps, cache hits
+        // don't consume rate limiter permits
+        return CachingAmazonEc2InvocationHandler.decorate(AmazonAwsUtils.decorateWithThrottlingRetry(ec2));
     }
 }
@@ -21,6 +21,7 @@ import com.google.common.collect.Maps;
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsFunctions;
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -78,6 +79,7 @@ public class CreateNagiosInstances extends InfrastructureCreationStep {
     }
 
     protected void tagInstances(Map<String, Instance> instancesByTeamId, AmazonEC2 ec2) {
+        Map<Instance, List<Tag>> tagsByInstance = Maps.newLinkedHashMap();
         for (Entry<String, Instance> idAndInstance : instancesByTeamId.entrySet()) {
             String identifier = idAndInstance.getKey();
             Instance instance = idAndInstance.getValue();
@@ -85,15 +87,13 @@ public class CreateNagiosInstances extends InfrastructureCreationStep {
             String serverName = "nagios-" + identifier;
             logger.info("Tagging {} - {}", serverName, instance.getInstanceId());
 
-            CreateTagsRequest createTagsRequest = new CreateTagsRequest() //
-                    .withResources(instance.getInstanceId()) //
-                    .withTags(//
-                            new Tag("Name", serverName), //
-                            new Tag("TeamIdentifier", identifier), //
-                            new Tag("Workshop", "monitoring"), //
-                            new Tag("Role", TeamInfrastructure.ROLE_NAGIOS));
-
-            createTags(instance, createTagsRequest, ec2);
+            tagsByInstance.put(instance, Arrays.asList(//
+                    new Tag("Name", serverName), //
+                    new Tag("TeamIdentifier", identifier), //
+                    new Tag("Workshop", "monitoring"), //
+                    new Tag("Role", TeamInfrastructure.ROLE_NAGIOS)));
         }
+
+        AmazonAwsUtils.createTags(tagsByInstance, ec2);
     }
 }
@@ -61,13 +61,12 @@ public class DocumentationGenerator {
                     String templatePath = TEMPLATE_ROOT_PATH + template + ".ftl";
                     rootMap.put("generator", "This page has been generaterd by '{{{" + getClass() + "}}}' with template '{{{" + templatePath + "}}}' on the "
                             + new DateTime());
-                    String page = FreemarkerUtils.generate(rootMap, templatePath);
                     String wikiPageName = "OSMonitoringLabs_" + infrastructure.getIdentifier() + "_" + template;
                     wikiPageName = wikiPageName.replace('-', '_');
                     generatedWikiPageNames.add(wikiPageName);
                     generatedForTeam.add(wikiPageName);
                     File wikiPageFile = new File(wikiBaseFolder, wikiPageName + ".wiki");
-                    Files.write(page, wikiPageFile, Charsets.UTF_8);
+                    FreemarkerUtils.generate(rootMap, templatePath, wikiPageFile, Charsets.UTF_8);
                     logger.debug("Generated file {}", wikiPageFile);
                 } catch (Exception e) {
                     logger.error("Exception generating doc for {}", infrastructure, e);
@@ -22,10 +22,12 @@ import com.amazonaws.services.route53.model.GetHostedZoneRequest;
 import com.amazonaws.services.route53.model.HostedZone;
 import com.google.common.collect.Maps;
 import fr.xebia.cloud.amazon.aws.tools.AmazonAwsUtils;
+import fr.xebia.cloud.amazon.aws.tools.Route53CnamesWriter;
 import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -87,6 +89,7 @@ public class CreateTomcatServers implements Runnable {
     }
 
     private void tagInstances(Map<String, Instance> instancesByTeamId, AmazonEC2 ec2) {
+        Map<Instance, List<Tag>> tagsByInstance = Maps.newLinkedHashMap();
         for (Map.Entry<String, Instance> entry : instancesByTeamId.entrySet()) {
             String identifier = entry.getKey();
             Instance instance = entry.getValue();
@@ -94,18 +97,16 @@ public class CreateTomcatServers implements Runnable {
             String serverName = TOMCAT_NGINX + identifier;
             logger.info("Tagging {} - {}", serverName, instance.getInstanceId());
 
-            CreateTagsRequest createTagsRequest = new CreateTagsRequest() //
-                    .withResources(instance.getInstanceId()) //
-                    .withTags( //
-                            new Tag("Name", serverName), //
-                            new Tag("TeamIdentifier", identifier), //
-                            new Tag("Workshop", "nginx"), //
-                            new Tag("Role", "nginx-proxy"), //
-                            new Tag("CNAME", buildCname(identifier))//
-                    );
-
-            AmazonAwsUtils.createTags(instance, createTagsRequest, ec2);
+            tagsByInstance.put(instance, Arrays.asList( //
+                    new Tag("Name", serverName), //
+                    new Tag("TeamIdentifier", identifier), //
+                    new Tag("Workshop", "nginx"), //
+                    new Tag("Role", "nginx-proxy"), //
+                    new Tag("CNAME", buildCname(identifier))//
+            ));
         }
+
+        AmazonAwsUtils.createTags(tagsByInstance, ec2);
     }
 
     private void bindInstancesToDnsCnames(Map<String, Instance> instancesByTeamId, AmazonRoute53 route53) {
@@ -121,8 +122,7 @@ public class CreateTomcatServers implements Runnable {
             cnamesToInstance.put(cname, instance);
         }
 
-        AmazonAwsUtils.deleteCnameIfExist(cnamesToInstance.keySet(), hostedZone, route53);
-        AmazonAwsUtils.createCnamesForInstances(cnamesToInstance, hostedZone, route53);
+        new Route53CnamesWriter(hostedZone, route53).bindCnamesToInstances(cnamesToInstance);
     }
 
     public void run() {
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.iam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateKeyPairRequest;
+import com.amazonaws.services.ec2.model.CreateKeyPairResult;
+import com.amazonaws.services.ec2.model.DeleteKeyPairRequest;
+import com.amazonaws.services.ec2.model.DescribeKeyPairsRequest;
+import com.amazonaws.services.ec2.model.DescribeKeyPairsResult;
+import com.amazonaws.services.ec2.model.KeyPair;
+import com.amazonaws.services.ec2.model.KeyPairInfo;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.AccessKey;
+import com.amazonaws.services.identitymanagement.model.AccessKeyMetadata;
+import com.amazonaws.services.identitymanagement.model.CreateAccessKeyRequest;
+import com.amazonaws.services.identitymanagement.model.CreateAccessKeyResult;
+import com.amazonaws.services.identitymanagement.model.CreateLoginProfileRequest;
+import com.amazonaws.services.identitymanagement.model.DeleteAccessKeyRequest;
+import com.amazonaws.services.identitymanagement.model.DeleteSigningCertificateRequest;
+import com.amazonaws.services.identitymanagement.model.GetGroupResult;
+import com.amazonaws.services.identitymanagement.model.GetLoginProfileRequest;
+import com.amazonaws.services.identitymanagement.model.GetLoginProfileResult;
+import com.amazonaws.services.identitymanagement.model.GetUserRequest;
+import com.amazonaws.services.identitymanagement.model.GetUserResult;
+import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.ListAccessKeysRequest;
+import com.amazonaws.services.identitymanagement.model.ListAccessKeysResult;
+import com.amazonaws.services.identitymanagement.model.ListSigningCertificatesRequest;
+import com.amazonaws.services.identitymanagement.model.ListSigningCertificatesResult;
+import com.amazonaws.services.identitymanagement.model.LoginProfile;
+import com.amazonaws.services.identitymanagement.model.SigningCertificate;
+import com.amazonaws.services.identitymanagement.model.UpdateLoginProfileRequest;
+import com.amazonaws.services.identitymanagement.model.UploadSigningCertificateRequest;
+import com.amazonaws.services.identitymanagement.model.UploadSigningCertificateResult;
+import com.amazonaws.services.identitymanagement.model.User;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+
+import fr.xebia.cloud.amazon.aws.iam.IamAccountCreationJournal.Resource;
+import fr.xebia.cloud.amazon.aws.iam.IamAccountCreationJournal.Step;
+import fr.xebia.cloud.mail.SmtpMailDispatcher;
+
+public class AmazonAwsIamAccountCreatorResumeTest {
+
+    private static final String USER_NAME = "john@example.com";
+
+    private static final String KEY_PAIR_NAME = "john_at_example_dot_com";
+
+    private final AmazonIdentityManagement iam = mock(AmazonIdentityManagement.class);
+
+    private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+
+    private final SmtpMailDispatcher mailDispatcher = mock(SmtpMailDispatcher.class);
+
+    private final User user = new User().withUserName(USER_NAME);
+
+    /**
+     * The user has the login profile, the "AKIA1" access key, the ssh key pair
+     * and the "CERT1" certificate.
+     */
+    private void givenExistingCredentials() throws Exception {
+        when(iam.getUser(any(GetUserRequest.class))).thenReturn(new GetUserResult().withUser(user));
+        when(iam.getLoginProfile(any(GetLoginProfileRequest.class))).thenReturn(
+                new GetLoginProfileResult().withLoginProfile(new LoginProfile().withUserName(USER_NAME)));
+        when(iam.listAccessKeys(any(ListAccessKeysRequest.class))).thenReturn(new ListAccessKeysResult().withAccessKeyMetadata(
+                new AccessKeyMetadata().withUserName(USER_NAME).withAccessKeyId("AKIA1").withStatus("Active")));
+        when(iam.createAccessKey(any(CreateAccessKeyRequest.class))).thenReturn(new CreateAccessKeyResult().withAccessKey(
+                new AccessKey().withUserName(USER_NAME).withAccessKeyId("AKIA2").withSecretAccessKey("secret").withStatus("Active")));
+        when(iam.listSigningCertificates(any(ListSigningCertificatesRequest.class))).thenReturn(
+                new ListSigningCertificatesResult().withCertificates(new SigningCertificate().withUserName(USER_NAME)
+                        .withCertificateId("CERT1").withStatus("Active")));
+        when(iam.uploadSigningCertificate(any(UploadSigningCertificateRequest.class))).thenReturn(
+                new UploadSigningCertificateResult().withCertificate(new SigningCertificate().withUserName(USER_NAME)
+                        .withCertificateId("CERT2").withStatus("Active")));
+
+        when(ec2.describeKeyPairs(any(DescribeKeyPairsRequest.class))).thenReturn(
+                new DescribeKeyPairsResult().withKeyPairs(new KeyPairInfo().withKeyName(KEY_PAIR_NAME)));
+        when(ec2.createKeyPair(any(CreateKeyPairRequest.class))).thenReturn(new CreateKeyPairResult().withKeyPair(
+                new KeyPair().withKeyName(KEY_PAIR_NAME).withKeyFingerprint("00:11").withKeyMaterial("pem")));
+
+        when(mailDispatcher.getSession()).thenReturn(Session.getInstance(new Properties()));
+        when(mailDispatcher.getMailFrom()).thenReturn(new InternetAddress("admin@example.com"));
+        when(mailDispatcher.send(any(MimeMessage.class))).thenReturn(Futures.<Void>immediateFuture(null));
+    }
+
+    private void createUser(IamAccountCreationJournal journal) throws Exception {
+        GetGroupResult groupDescriptor = new GetGroupResult().withGroup(new Group().withGroupName("Admins")).withUsers(
+                Lists.newArrayList(user));
+
+        AmazonAwsIamAccountCreator creator = new AmazonAwsIamAccountCreator(AmazonAwsIamAccountCreator.Environment.TRAINING, iam,
+                ec2, mailDispatcher, journal);
+        try {
+            creator.createUser(USER_NAME, groupDescriptor, null);
+        } finally {
+            creator.shutdownKeyPairPool();
+        }
+    }
+
+    @Test
+    public void unsent_secrets_are_regenerated_when_resuming_before_the_email_was_sent() throws Exception {
+        File file = File.createTempFile("iam-accounts", ".journal");
+        try {
+            IamAccountCreationJournal journal = new IamAccountCreationJournal(file);
+            journal.markCreated(USER_NAME, Resource.LOGIN_PROFILE, USER_NAME);
+            journal.markCreated(USER_NAME, Resource.ACCESS_KEY, "AKIA1");
+            journal.markCreated(USER_NAME, Resource.KEY_PAIR, KEY_PAIR_NAME);
+            journal.markCreated(USER_NAME, Resource.SIGNING_CERTIFICATE, "CERT1");
+            journal.markDone(USER_NAME, Step.X509_CERTIFICATE);
+            givenExistingCredentials();
+
+            createUser(journal);
+
+            verify(iam).updateLoginProfile(any(UpdateLoginProfileRequest.class));
+            verify(iam, never()).createLoginProfile(any(CreateLoginProfileRequest.class));
+            verify(iam).deleteAccessKey(new DeleteAccessKeyRequest().withUserName(USER_NAME).withAccessKeyId("AKIA1"));
+            verify(iam).createAccessKey(any(CreateAccessKeyRequest.class));
+            verify(ec2).deleteKeyPair(new DeleteKeyPairRequest(KEY_PAIR_NAME));
+            verify(ec2).createKeyPair(any(CreateKeyPairRequest.class));
+            verify(iam).deleteSigningCertificate(new DeleteSigningCertificateRequest().withUserName(USER_NAME).withCertificateId(
+                    "CERT1"));
+            verify(iam).uploadSigningCertificate(any(UploadSigningCertificateRequest.class));
+            verify(mailDispatcher).send(any(MimeMessage.class));
+            assertTrue(journal.isCompleted(USER_NAME));
+            assertEquals("AKIA2", journal.getCreatedResourceId(USER_NAME, Resource.ACCESS_KEY));
+            assertEquals("CERT2", journal.getCreatedResourceId(USER_NAME, Resource.SIGNING_CERTIFICATE));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void credentials_created_before_the_interrupted_run_are_left_untouched() throws Exception {
+        File file = File.createTempFile("iam-accounts", ".journal");
+        try {
+            IamAccountCreationJournal journal = new IamAccountCreationJournal(file);
+            // the credentials already existed, the interrupted run didn't create any of them
+            journal.markDone(USER_NAME, Step.X509_CERTIFICATE);
+            givenExistingCredentials();
+
+            createUser(journal);
+
+            verify(iam, never()).updateLoginProfile(any(UpdateLoginProfileRequest.class));
+            verify(iam, never()).deleteAccessKey(any(DeleteAccessKeyRequest.class));
+            verify(iam, never()).createAccessKey(any(CreateAccessKeyRequest.class));
+            verify(ec2, never()).deleteKeyPair(any(DeleteKeyPairRequest.class));
+            verify(ec2, never()).createKeyPair(any(CreateKeyPairRequest.class));
+            verify(iam, never()).deleteSigningCertificate(any(DeleteSigningCertificateRequest.class));
+            verify(iam, never()).uploadSigningCertificate(any(UploadSigningCertificateRequest.class));
+            verify(mailDispatcher).send(any(MimeMessage.class));
+            assertTrue(journal.isCompleted(USER_NAME));
+        } finally {
+            file.delete();
+        }
+    }
+}
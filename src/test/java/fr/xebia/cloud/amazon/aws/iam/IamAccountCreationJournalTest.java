@@ -0,0 +1,59 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.iam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import fr.xebia.cloud.amazon.aws.iam.IamAccountCreationJournal.Resource;
+import fr.xebia.cloud.amazon.aws.iam.IamAccountCreationJournal.Step;
+
+public class IamAccountCreationJournalTest {
+
+    @Test
+    public void progress_is_reloaded_from_file() throws Exception {
+        File file = File.createTempFile("iam-accounts", ".journal");
+        try {
+            IamAccountCreationJournal journal = new IamAccountCreationJournal(file);
+            journal.markDone("john@example.com", Step.USER);
+            journal.markDone("john@example.com", Step.LOGIN_PROFILE);
+            journal.markCreated("john@example.com", Resource.LOGIN_PROFILE, "john@example.com");
+            journal.markDone("jane@example.com", Step.X509_CERTIFICATE);
+            journal.markDone("jane@example.com", Step.EMAIL_SENT);
+            // line truncated by a crash
+            Files.append("jack@example.com\tLOGIN_PRO", file, Charsets.UTF_8);
+
+            IamAccountCreationJournal reloadedJournal = new IamAccountCreationJournal(file);
+            assertEquals(Step.LOGIN_PROFILE, reloadedJournal.getLastStep("john@example.com"));
+            assertFalse(reloadedJournal.isCompleted("john@example.com"));
+            assertTrue(reloadedJournal.isCompleted("jane@example.com"));
+            assertNull(reloadedJournal.getLastStep("jack@example.com"));
+            assertEquals("john@example.com", reloadedJournal.getCreatedResourceId("john@example.com", Resource.LOGIN_PROFILE));
+            assertNull(reloadedJournal.getCreatedResourceId("john@example.com", Resource.ACCESS_KEY));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.iam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+
+import org.junit.Test;
+
+public class RsaKeyPairPoolTest {
+
+    @Test
+    public void take_more_key_pairs_than_pool_depth() {
+        RsaKeyPairPool keyPairPool = new RsaKeyPairPool(512, 2, 2);
+        try {
+            KeyPair keyPair1 = keyPairPool.take();
+            KeyPair keyPair2 = keyPairPool.take();
+            KeyPair keyPair3 = keyPairPool.take();
+
+            assertEquals(512, ((RSAPublicKey) keyPair1.getPublic()).getModulus().bitLength());
+            assertFalse(keyPair1.getPublic().equals(keyPair2.getPublic()));
+            assertFalse(keyPair2.getPublic().equals(keyPair3.getPublic()));
+        } finally {
+            keyPairPool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void take_after_shutdown_is_rejected() {
+        RsaKeyPairPool keyPairPool = new RsaKeyPairPool(512, 1, 1);
+        keyPairPool.shutdown();
+        keyPairPool.take();
+    }
+
+    @Test
+    public void take_fails_once_all_the_generators_died() {
+        final IllegalArgumentException failure = new IllegalArgumentException("generator failure");
+        RsaKeyPairPool keyPairPool = new RsaKeyPairPool(512, 1, 2) {
+            @Override
+            protected KeyPair generateKeyPair(KeyPairGenerator keyPairGenerator) {
+                throw failure;
+            }
+        };
+        try {
+            keyPairPool.take();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e.getCause());
+        } finally {
+            keyPairPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeTagsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.TagDescription;
+
+public class CachingAmazonEc2InvocationHandlerTest {
+
+    private final AmazonEC2 delegate = mock(AmazonEC2.class);
+
+    private final AmazonEC2 ec2 = CachingAmazonEc2InvocationHandler.decorate(delegate, 1, TimeUnit.MINUTES);
+
+    @Test
+    public void describe_all_tags_is_cached() {
+        when(delegate.describeTags()).thenReturn(new DescribeTagsResult().withTags(new TagDescription().withResourceId("i-1")));
+
+        ec2.describeTags();
+        ec2.describeTags();
+
+        verify(delegate, times(1)).describeTags();
+    }
+
+    @Test
+    public void request_modified_after_the_call_does_not_alter_the_cache() {
+        when(delegate.describeTags(any(DescribeTagsRequest.class))).thenReturn(
+                new DescribeTagsResult().withTags(new TagDescription().withResourceId("i-1")));
+
+        DescribeTagsRequest request = new DescribeTagsRequest().withFilters(new Filter("key", Arrays.asList("Role")));
+        ec2.describeTags(request);
+        // the caller reuses its request for another query
+        request.getFilters().get(0).setValues(Arrays.asList("TeamIdentifier"));
+
+        ec2.describeTags(new DescribeTagsRequest().withFilters(new Filter("key", Arrays.asList("Role"))));
+        verify(delegate, times(1)).describeTags(any(DescribeTagsRequest.class));
+
+        ec2.describeTags(request);
+        verify(delegate, times(2)).describeTags(any(DescribeTagsRequest.class));
+    }
+}
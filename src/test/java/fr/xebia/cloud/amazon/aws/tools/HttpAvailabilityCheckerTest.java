@@ -0,0 +1,38 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class HttpAvailabilityCheckerTest {
+
+    @Test
+    public void close_cancels_the_pending_futures() {
+        HttpAvailabilityChecker checker = new HttpAvailabilityChecker(1).withInitialDelay(1, TimeUnit.HOURS);
+        ListenableFuture<String> future = checker.awaitForHttpAvailability("http://localhost:1/");
+
+        checker.close();
+
+        // a caller blocked in get() is released
+        assertTrue(future.isCancelled());
+    }
+}
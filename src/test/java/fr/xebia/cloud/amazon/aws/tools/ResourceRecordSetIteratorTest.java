@@ -0,0 +1,105 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.RRType;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.google.common.collect.Lists;
+
+public class ResourceRecordSetIteratorTest {
+
+    @Test
+    public void follow_next_record_markers_and_filter_type() {
+        AmazonRoute53 route53 = mock(AmazonRoute53.class);
+        when(route53.listResourceRecordSets(any(ListResourceRecordSetsRequest.class))).thenReturn(
+                new ListResourceRecordSetsResult() //
+                        .withResourceRecordSets( //
+                                new ResourceRecordSet("example.com.", RRType.SOA), //
+                                new ResourceRecordSet("www-1.example.com.", RRType.CNAME)) //
+                        .withIsTruncated(true) //
+                        .withNextRecordName("www-2.example.com.") //
+                        .withNextRecordType(RRType.CNAME) //
+                        .withNextRecordIdentifier("www-2-eu"), //
+                new ListResourceRecordSetsResult() //
+                        .withResourceRecordSets( //
+                                new ResourceRecordSet("www-2.example.com.", RRType.CNAME), //
+                                new ResourceRecordSet("www-3.example.com.", RRType.A)) //
+                        .withIsTruncated(false));
+
+        ResourceRecordSetIterator cnames = new ResourceRecordSetIterator("Z123", route53).withType(RRType.CNAME);
+
+        List<String> cnameNames = Lists.newArrayList();
+        while (cnames.hasNext()) {
+            cnameNames.add(cnames.next().getName());
+        }
+        assertEquals(Lists.newArrayList("www-1.example.com.", "www-2.example.com."), cnameNames);
+        assertEquals(2, cnames.getPageCount());
+
+        ArgumentCaptor<ListResourceRecordSetsRequest> requests = ArgumentCaptor.forClass(ListResourceRecordSetsRequest.class);
+        verify(route53, times(2)).listResourceRecordSets(requests.capture());
+        ListResourceRecordSetsRequest firstRequest = requests.getAllValues().get(0);
+        assertEquals("Z123", firstRequest.getHostedZoneId());
+        assertNull(firstRequest.getStartRecordName());
+        ListResourceRecordSetsRequest followUpRequest = requests.getAllValues().get(1);
+        assertEquals("Z123", followUpRequest.getHostedZoneId());
+        assertEquals("www-2.example.com.", followUpRequest.getStartRecordName());
+        assertEquals(RRType.CNAME.toString(), followUpRequest.getStartRecordType());
+        assertEquals("www-2-eu", followUpRequest.getStartRecordIdentifier());
+    }
+
+    @Test
+    public void prefix_bounded_scan_stops_past_the_prefix() {
+        AmazonRoute53 route53 = mock(AmazonRoute53.class);
+        when(route53.listResourceRecordSets(any(ListResourceRecordSetsRequest.class))).thenReturn(
+                new ListResourceRecordSetsResult() //
+                        .withResourceRecordSets( //
+                                new ResourceRecordSet("www.example.com.", RRType.CNAME), //
+                                new ResourceRecordSet("www-1.example.com.", RRType.CNAME), //
+                                new ResourceRecordSet("WWW-2.example.com.", RRType.CNAME), //
+                                new ResourceRecordSet("xyz.example.com.", RRType.CNAME)) //
+                        .withIsTruncated(true) //
+                        .withNextRecordName("zzz.example.com.") //
+                        .withNextRecordType(RRType.CNAME));
+
+        ResourceRecordSetIterator cnames = new ResourceRecordSetIterator("Z123", route53).withRecordNamePrefix("www-", "example.com.");
+
+        List<String> cnameNames = Lists.newArrayList();
+        while (cnames.hasNext()) {
+            cnameNames.add(cnames.next().getName());
+        }
+        assertEquals(Lists.newArrayList("www-1.example.com.", "WWW-2.example.com."), cnameNames);
+        // "xyz" sorts past the prefix, the next page is not fetched
+        ArgumentCaptor<ListResourceRecordSetsRequest> requests = ArgumentCaptor.forClass(ListResourceRecordSetsRequest.class);
+        verify(route53, times(1)).listResourceRecordSets(requests.capture());
+        assertEquals("www-.example.com.", requests.getValue().getStartRecordName());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.services.route53.AmazonRoute53;
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeInfo;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.ChangeStatus;
+import com.amazonaws.services.route53.model.GetChangeRequest;
+import com.amazonaws.services.route53.model.GetChangeResult;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ListResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.RRType;
+import com.amazonaws.services.route53.model.ResourceRecord;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class Route53CnamesWriterTest {
+
+    private final HostedZone hostedZone = new HostedZone().withId("Z123").withName("example.com.");
+
+    private final AmazonRoute53 route53 = mock(AmazonRoute53.class);
+
+    /**
+     * "www-1" is up to date, "www-2" targets another host, "www-3" is missing.
+     */
+    private final Map<String, String> targetsByCname = ImmutableMap.of( //
+            "www-1.example.com.", "ec2-1.amazonaws.com", //
+            "www-2.example.com.", "ec2-2.amazonaws.com", //
+            "www-3.example.com.", "ec2-3.amazonaws.com");
+
+    private void givenExistingCnames() {
+        when(route53.listResourceRecordSets(any(ListResourceRecordSetsRequest.class))).thenReturn(
+                new ListResourceRecordSetsResult() //
+                        .withResourceRecordSets( //
+                                new ResourceRecordSet("example.com.", RRType.SOA), //
+                                new ResourceRecordSet("www-1.example.com.", RRType.CNAME) //
+                                        .withTTL(300L) //
+                                        .withResourceRecords(new ResourceRecord("ec2-1.amazonaws.com")), //
+                                new ResourceRecordSet("www-2.example.com.", RRType.CNAME) //
+                                        .withTTL(300L) //
+                                        .withResourceRecords(new ResourceRecord("ec2-old.amazonaws.com"))) //
+                        .withIsTruncated(false));
+    }
+
+    private static ChangeInfo changeInfo(String id, ChangeStatus status) {
+        return new ChangeInfo().withId("/change/" + id).withStatus(status.toString());
+    }
+
+    private static List<String> toActionsAndNames(List<Change> changes) {
+        List<String> actionsAndNames = Lists.newArrayList();
+        for (Change change : changes) {
+            actionsAndNames.add(change.getAction() + " " + change.getResourceRecordSet().getName());
+        }
+        return actionsAndNames;
+    }
+
+    @Test
+    public void only_modified_and_missing_cnames_are_changed() {
+        givenExistingCnames();
+        when(route53.changeResourceRecordSets(any(ChangeResourceRecordSetsRequest.class))).thenReturn(
+                new ChangeResourceRecordSetsResult().withChangeInfo(changeInfo("C1", ChangeStatus.INSYNC)));
+
+        int batches = new Route53CnamesWriter(hostedZone, route53).bindCnames(targetsByCname);
+
+        assertEquals(1, batches);
+        ArgumentCaptor<ChangeResourceRecordSetsRequest> request = ArgumentCaptor.forClass(ChangeResourceRecordSetsRequest.class);
+        verify(route53).changeResourceRecordSets(request.capture());
+        List<Change> changes = request.getValue().getChangeBatch().getChanges();
+        assertEquals(Lists.newArrayList("DELETE www-2.example.com.", "CREATE www-2.example.com.", "CREATE www-3.example.com."),
+                toActionsAndNames(changes));
+        assertEquals("ec2-old.amazonaws.com", changes.get(0).getResourceRecordSet().getResourceRecords().get(0).getValue());
+        assertEquals("ec2-2.amazonaws.com", changes.get(1).getResourceRecordSet().getResourceRecords().get(0).getValue());
+        verify(route53, never()).getChange(any(GetChangeRequest.class));
+    }
+
+    @Test
+    public void delete_create_pair_is_never_split() {
+        givenExistingCnames();
+        when(route53.changeResourceRecordSets(any(ChangeResourceRecordSetsRequest.class))).thenReturn(
+                new ChangeResourceRecordSetsResult().withChangeInfo(changeInfo("C1", ChangeStatus.INSYNC)));
+
+        Map<String, String> targetsByCname = ImmutableMap.of( //
+                "www-1.example.com.", "ec2-new-1.amazonaws.com", //
+                "www-2.example.com.", "ec2-2.amazonaws.com");
+        int batches = new Route53CnamesWriter(hostedZone, route53).withMaxChangesPerBatch(3).bindCnames(targetsByCname);
+
+        // the second DELETE + CREATE pair doesn't fit in the first batch
+        assertEquals(2, batches);
+        ArgumentCaptor<ChangeResourceRecordSetsRequest> request = ArgumentCaptor.forClass(ChangeResourceRecordSetsRequest.class);
+        verify(route53, times(2)).changeResourceRecordSets(request.capture());
+        assertEquals(Lists.newArrayList("DELETE www-1.example.com.", "CREATE www-1.example.com."), toActionsAndNames(request
+                .getAllValues().get(0).getChangeBatch().getChanges()));
+        assertEquals(Lists.newArrayList("DELETE www-2.example.com.", "CREATE www-2.example.com."), toActionsAndNames(request
+                .getAllValues().get(1).getChangeBatch().getChanges()));
+    }
+
+    @Test
+    public void pending_changes_are_polled_in_order_until_insync() {
+        givenExistingCnames();
+        when(route53.changeResourceRecordSets(any(ChangeResourceRecordSetsRequest.class))).thenReturn(
+                new ChangeResourceRecordSetsResult().withChangeInfo(changeInfo("C1", ChangeStatus.PENDING)),
+                new ChangeResourceRecordSetsResult().withChangeInfo(changeInfo("C2", ChangeStatus.PENDING)));
+        when(route53.getChange(new GetChangeRequest("C1"))).thenReturn( //
+                new GetChangeResult().withChangeInfo(changeInfo("C1", ChangeStatus.PENDING)), //
+                new GetChangeResult().withChangeInfo(changeInfo("C1", ChangeStatus.INSYNC)));
+        when(route53.getChange(new GetChangeRequest("C2"))).thenReturn( //
+                new GetChangeResult().withChangeInfo(changeInfo("C2", ChangeStatus.INSYNC)));
+
+        int batches = new Route53CnamesWriter(hostedZone, route53) //
+                .withMaxChangesPerBatch(2) //
+                .withPollingInterval(1, TimeUnit.MILLISECONDS) //
+                .bindCnames(targetsByCname);
+
+        assertEquals(2, batches);
+        // the first tick stops at the pending "C1"
+        verify(route53, times(2)).getChange(new GetChangeRequest("C1"));
+        verify(route53, times(1)).getChange(new GetChangeRequest("C2"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void changes_not_insync_within_timeout_are_rejected() {
+        givenExistingCnames();
+        when(route53.changeResourceRecordSets(any(ChangeResourceRecordSetsRequest.class))).thenReturn(
+                new ChangeResourceRecordSetsResult().withChangeInfo(changeInfo("C1", ChangeStatus.PENDING)));
+        when(route53.getChange(any(GetChangeRequest.class))).thenReturn(
+                new GetChangeResult().withChangeInfo(changeInfo("C1", ChangeStatus.PENDING)));
+
+        new Route53CnamesWriter(hostedZone, route53) //
+                .withPollingInterval(1, TimeUnit.MILLISECONDS) //
+                .withTimeout(20, TimeUnit.MILLISECONDS) //
+                .bindCnames(targetsByCname);
+    }
+}
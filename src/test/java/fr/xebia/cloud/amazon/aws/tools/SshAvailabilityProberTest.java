@@ -0,0 +1,56 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+import fr.xebia.cloud.amazon.aws.tools.SshAvailabilityProber.SshConfigurationException;
+
+public class SshAvailabilityProberTest {
+
+    private final Instance instance = new Instance().withInstanceId("i-1").withImageId("ami-1").withKeyName("no-such-key")
+            .withPublicIpAddress("127.0.0.1");
+
+    @Test(expected = SshConfigurationException.class)
+    public void missing_private_key_fails_before_probing() {
+        new SshAvailabilityProber().awaitForSshAvailability(Arrays.asList(instance), 1, TimeUnit.HOURS);
+    }
+
+    @Test
+    public void missing_private_key_does_not_terminate_the_instances() {
+        AmazonEC2 ec2 = mock(AmazonEC2.class);
+        try {
+            AmazonAwsUtils.awaitForSshAvailability(Arrays.asList(instance), ec2);
+            fail();
+        } catch (SshConfigurationException e) {
+            // expected
+        }
+        verify(ec2, never()).terminateInstances(any(TerminateInstancesRequest.class));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.amazon.aws.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+public class ThrottlingRetryInvocationHandlerTest {
+
+    private final AmazonEC2 ec2Client = mock(AmazonEC2.class);
+
+    private final AmazonEC2 ec2 = AmazonAwsUtils.decorateWithThrottlingRetry(ec2Client);
+
+    private static AmazonServiceException instanceNotFound() {
+        AmazonServiceException e = new AmazonServiceException("The instance ID 'i-123' does not exist");
+        e.setErrorCode("InvalidInstanceID.NotFound");
+        return e;
+    }
+
+    @Test
+    public void instance_not_found_is_retried_on_create_tags() {
+        doThrow(instanceNotFound()).doNothing().when(ec2Client).createTags(any(CreateTagsRequest.class));
+
+        ec2.createTags(new CreateTagsRequest());
+
+        verify(ec2Client, times(2)).createTags(any(CreateTagsRequest.class));
+    }
+
+    @Test
+    public void instance_not_found_is_not_retried_on_terminate_instances() {
+        when(ec2Client.terminateInstances(any(TerminateInstancesRequest.class))).thenThrow(instanceNotFound());
+
+        try {
+            ec2.terminateInstances(new TerminateInstancesRequest());
+            fail();
+        } catch (AmazonServiceException e) {
+            assertEquals("InvalidInstanceID.NotFound", e.getErrorCode());
+        }
+        verify(ec2Client, times(1)).terminateInstances(any(TerminateInstancesRequest.class));
+    }
+}
@@ -15,10 +15,21 @@
  */
 package fr.xebia.cloud.cloudinit;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
 public class CloudInitUserDataBuilderTest {
 
     @Test
@@ -54,4 +65,38 @@ public class CloudInitUserDataBuilderTest {
         System.out.println(userData);
     }
 
+    @Test
+    public void base64_user_data_is_the_encoding_of_the_user_data_bytes() {
+        CloudInitUserDataBuilder builder = CloudInitUserDataBuilder.start() //
+                .addCloudConfig("#cloud-config\ntimezone: Europe/Paris\n") //
+                .addShellScript("#!/bin/sh\necho \"d\u00e9marrage\"\n");
+
+        String base64UserData = builder.buildBase64UserData();
+
+        assertEquals(builder.buildUserData(), new String(Base64.decodeBase64(base64UserData), Charsets.UTF_8));
+        assertEquals(-1, base64UserData.indexOf('\n'));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void user_data_exceeding_max_size_is_rejected() {
+        CloudInitUserDataBuilder.start() //
+                .addShellScript("#!/bin/sh\n" + Strings.repeat("echo \"hello world\"\n", 1000)) //
+                .buildBase64UserData();
+    }
+
+    @Test
+    public void gzipped_user_data_fits_in_max_size() throws IOException {
+        CloudInitUserDataBuilder builder = CloudInitUserDataBuilder.start() //
+                .addShellScript("#!/bin/sh\n" + Strings.repeat("echo \"hello world\"\n", 1000)) //
+                .withGzipCompression(true);
+
+        String base64UserData = builder.buildBase64UserData();
+
+        assertTrue(builder.getRawSizeInBytes() > CloudInitUserDataBuilder.MAX_USER_DATA_SIZE_IN_BYTES);
+        assertTrue(builder.getUserDataSizeInBytes() < builder.getRawSizeInBytes());
+        byte[] rawUserData = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(Base64
+                .decodeBase64(base64UserData))));
+        assertEquals(builder.getRawSizeInBytes(), rawUserData.length);
+        assertTrue(new String(rawUserData, Charsets.UTF_8).contains("Content-Type: text/x-shellscript"));
+    }
 }
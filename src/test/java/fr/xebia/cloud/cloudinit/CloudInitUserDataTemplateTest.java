@@ -0,0 +1,114 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.cloud.cloudinit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import fr.xebia.cloud.cloudinit.CloudInitUserDataBuilder.FileType;
+
+public class CloudInitUserDataTemplateTest {
+
+    private static final String SHELL_SCRIPT = "#!/bin/sh\necho \"hello world\"\n";
+
+    @Test
+    public void invariant_and_variable_files_are_spliced() {
+        CloudInitUserDataTemplate template = CloudInitUserDataTemplate.start() //
+                .addFile(FileType.SHELL_SCRIPT, new StringReader(SHELL_SCRIPT)) //
+                .addCloudConfigTemplate("/fr/xebia/workshop/bigdata/cloud-config-hadoop-flume.txt");
+
+        Map<String, String> parameters = ImmutableMap.of("hostname", "www-1.example.com", "namenode", "master-1.example.com");
+        String userData = new String(Base64.decodeBase64(template.buildBase64UserData(parameters)), Charsets.UTF_8);
+
+        assertTrue(userData.contains("Content-Type: text/x-shellscript"));
+        assertTrue(userData.contains("echo \"hello world\""));
+        assertTrue(userData.contains("hostname www-1.example.com"));
+        assertTrue(userData.contains("s/%%NAMENODE_HOST%%/master-1.example.com/g"));
+
+        // same as a user data built from scratch
+        String expectedUserData = CloudInitUserDataBuilder.start() //
+                .addShellScript(SHELL_SCRIPT) //
+                .addCloudConfig(FreemarkerUtils.generate(parameters, "/fr/xebia/workshop/bigdata/cloud-config-hadoop-flume.txt")) //
+                .buildUserData();
+        assertEquals(removeBoundaries(expectedUserData), removeBoundaries(userData));
+    }
+
+    @Test
+    public void user_data_are_cached_by_parameters() {
+        CloudInitUserDataTemplate template = CloudInitUserDataTemplate.start() //
+                .addCloudConfigTemplate("/fr/xebia/workshop/bigdata/cloud-config-hadoop-flume.txt");
+
+        String userData1 = template.buildBase64UserData(ImmutableMap.of("hostname", "www-1.example.com", "namenode", "master"));
+        String userData2 = template.buildBase64UserData(ImmutableMap.of("hostname", "www-2.example.com", "namenode", "master"));
+
+        assertSame(userData1, template.buildBase64UserData(ImmutableMap.of("hostname", "www-1.example.com", "namenode", "master")));
+        assertTrue(!userData1.equals(userData2));
+    }
+
+    @Test
+    public void oversized_user_data_is_rejected_and_not_cached() {
+        CloudInitUserDataTemplate template = CloudInitUserDataTemplate.start() //
+                .addCloudConfigTemplate("/fr/xebia/workshop/bigdata/cloud-config-hadoop-flume.txt") //
+                .withMaxUserDataSize(64);
+
+        Map<String, String> parameters = ImmutableMap.of("hostname", "www-1.example.com", "namenode", "master");
+        for (int i = 0; i < 2; i++) {
+            try {
+                template.buildBase64UserData(parameters);
+                fail("IllegalStateException expected");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("User data of "));
+            }
+        }
+    }
+
+    @Test
+    public void user_data_of_parameters_with_null_values_are_not_cached() {
+        CloudInitUserDataTemplate template = CloudInitUserDataTemplate.start() //
+                .addCloudConfigTemplate("/fr/xebia/workshop/bigdata/cloud-config-hadoop-flume.txt");
+
+        Map<String, String> parameters = Maps.newHashMap();
+        parameters.put("hostname", "www-1.example.com");
+        parameters.put("namenode", "master");
+        parameters.put("unused", null);
+        String userData1 = template.buildBase64UserData(parameters);
+        String userData2 = template.buildBase64UserData(parameters);
+
+        assertNotSame(userData1, userData2);
+        assertEquals(removeBoundaries(new String(Base64.decodeBase64(userData1), Charsets.UTF_8)),
+                removeBoundaries(new String(Base64.decodeBase64(userData2), Charsets.UTF_8)));
+    }
+
+    /**
+     * Mime boundaries and message ids are unique.
+     */
+    private String removeBoundaries(String userData) {
+        return userData.replaceAll("----=_Part_[0-9_.]+", "BOUNDARY").replaceAll("Message-ID: .*", "");
+    }
+}
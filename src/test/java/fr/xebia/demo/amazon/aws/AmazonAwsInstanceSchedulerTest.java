@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.demo.amazon.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeTagsResult;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StartInstancesResult;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TagDescription;
+import com.google.common.collect.Ordering;
+
+import fr.xebia.demo.amazon.aws.AmazonAwsInstanceScheduler.TimeWindow;
+
+public class AmazonAwsInstanceSchedulerTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /**
+     * 2012-06-04 was a monday.
+     */
+    private static Date date(int dayOfMonth, int hourOfDay, int minute) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(2012, Calendar.JUNE, dayOfMonth, hourOfDay, minute);
+        return calendar.getTime();
+    }
+
+    @Test
+    public void office_hours_time_window() {
+        TimeWindow timeWindow = TimeWindow.parse("mon-fri 08:00-19:00");
+        assertTrue(timeWindow.contains(date(4, 8, 0), UTC));
+        assertTrue(timeWindow.contains(date(8, 18, 59), UTC));
+        assertFalse(timeWindow.contains(date(4, 19, 0), UTC));
+        assertFalse(timeWindow.contains(date(9, 10, 0), UTC));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void time_window_spanning_midnight_is_rejected() {
+        TimeWindow.parse("22:00-06:00");
+    }
+
+    @Test
+    public void instances_are_stopped_and_started_at_time_window_edges() {
+        AmazonEC2 ec2 = mock(AmazonEC2.class);
+        when(ec2.describeTags(any(DescribeTagsRequest.class))).thenReturn(new DescribeTagsResult().withTags( //
+                new TagDescription().withResourceId("i-1").withKey("schedule").withValue("08:00-19:00"), //
+                new TagDescription().withResourceId("i-2").withKey("schedule").withValue("08:00-19:00"), //
+                new TagDescription().withResourceId("i-2").withKey("do-not-stop").withValue("")));
+
+        AmazonAwsInstanceScheduler scheduler = new AmazonAwsInstanceScheduler(ec2, UTC);
+        scheduler.reconcile(date(4, 18, 0));
+        verify(ec2, never()).stopInstances(any(StopInstancesRequest.class));
+
+        scheduler.reconcile(date(4, 19, 0));
+        ArgumentCaptor<StopInstancesRequest> stopInstancesRequest = ArgumentCaptor.forClass(StopInstancesRequest.class);
+        verify(ec2).stopInstances(stopInstancesRequest.capture());
+        assertEquals(Arrays.asList("i-1"), stopInstancesRequest.getValue().getInstanceIds());
+
+        scheduler.reconcile(date(5, 8, 0));
+        ArgumentCaptor<StartInstancesRequest> startInstancesRequest = ArgumentCaptor.forClass(StartInstancesRequest.class);
+        verify(ec2).startInstances(startInstancesRequest.capture());
+        assertEquals(Arrays.asList("i-1", "i-2"), Ordering.natural().sortedCopy(startInstancesRequest.getValue().getInstanceIds()));
+    }
+
+    @Test
+    public void failed_start_is_retried_at_next_reconciliation() {
+        AmazonEC2 ec2 = mock(AmazonEC2.class);
+        when(ec2.describeTags(any(DescribeTagsRequest.class))).thenReturn(new DescribeTagsResult().withTags( //
+                new TagDescription().withResourceId("i-1").withKey("schedule").withValue("08:00-19:00")));
+        when(ec2.startInstances(any(StartInstancesRequest.class))) //
+                .thenThrow(new AmazonClientException("Unable to execute HTTP request")) //
+                .thenThrow(new AmazonClientException("Unable to execute HTTP request")) //
+                .thenReturn(new StartInstancesResult());
+
+        AmazonAwsInstanceScheduler scheduler = new AmazonAwsInstanceScheduler(ec2, UTC);
+        scheduler.reconcile(date(5, 7, 0));
+        // batch and one by one calls fail
+        scheduler.reconcile(date(5, 8, 0));
+        verify(ec2, times(2)).startInstances(any(StartInstancesRequest.class));
+
+        scheduler.reconcile(date(5, 8, 1));
+        verify(ec2, times(3)).startInstances(any(StartInstancesRequest.class));
+
+        scheduler.reconcile(date(5, 8, 2));
+        verify(ec2, times(3)).startInstances(any(StartInstancesRequest.class));
+    }
+}
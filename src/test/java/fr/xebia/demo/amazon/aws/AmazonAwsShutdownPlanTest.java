@@ -0,0 +1,101 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.demo.amazon.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DeregisterImageRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+import fr.xebia.demo.amazon.aws.AmazonAwsShutdownPlan.ActionType;
+
+public class AmazonAwsShutdownPlanTest {
+
+    @Test
+    public void plan_is_reloaded_from_file() throws Exception {
+        File file = File.createTempFile("amazon-aws-shutdown-plan", ".txt");
+        try {
+            new AmazonAwsShutdownPlan() //
+                    .add(ActionType.TERMINATE_INSTANCE, "i-1") //
+                    .add(ActionType.STOP_INSTANCE, "i-2") //
+                    .add(ActionType.DELETE_SNAPSHOT, "snap-1") //
+                    .add(ActionType.DELETE_SNAPSHOT, "snap-2") //
+                    .writeTo(file);
+
+            AmazonAwsShutdownPlan plan = AmazonAwsShutdownPlan.readFrom(file);
+            assertEquals(Arrays.asList("i-1"), plan.getResourceIds(ActionType.TERMINATE_INSTANCE));
+            assertEquals(Arrays.asList("i-2"), plan.getResourceIds(ActionType.STOP_INSTANCE));
+            assertEquals(0, plan.getResourceIds(ActionType.DEREGISTER_IMAGE).size());
+            assertEquals(Arrays.asList("snap-1", "snap-2"), plan.getResourceIds(ActionType.DELETE_SNAPSHOT));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void instances_are_terminated_in_batches_and_failures_are_counted() {
+        AmazonAwsShutdownPlan plan = new AmazonAwsShutdownPlan();
+        for (int i = 0; i < AmazonAwsShutdownPlan.MAX_INSTANCES_PER_REQUEST + 1; i++) {
+            plan.add(ActionType.TERMINATE_INSTANCE, "i-" + i);
+        }
+        plan.add(ActionType.DEREGISTER_IMAGE, "ami-1");
+        plan.add(ActionType.DELETE_SNAPSHOT, "snap-1");
+
+        AmazonEC2 ec2 = mock(AmazonEC2.class);
+        doThrow(new AmazonServiceException("InvalidSnapshot.InUse")).when(ec2).deleteSnapshot(any(DeleteSnapshotRequest.class));
+
+        int failures = plan.apply(ec2, 4);
+
+        assertEquals(1, failures);
+        verify(ec2, times(2)).terminateInstances(any(TerminateInstancesRequest.class));
+        verify(ec2).deregisterImage(any(DeregisterImageRequest.class));
+    }
+
+    @Test
+    public void failed_batch_is_retried_one_instance_at_a_time() {
+        AmazonAwsShutdownPlan plan = new AmazonAwsShutdownPlan() //
+                .add(ActionType.STOP_INSTANCE, "i-1") //
+                .add(ActionType.STOP_INSTANCE, "i-2") //
+                .add(ActionType.STOP_INSTANCE, "i-3");
+
+        AmazonEC2 ec2 = mock(AmazonEC2.class);
+        doThrow(new AmazonServiceException("IncorrectInstanceState")).when(ec2).stopInstances(
+                new StopInstancesRequest(Arrays.asList("i-1", "i-2", "i-3")));
+        doThrow(new AmazonServiceException("IncorrectInstanceState")).when(ec2).stopInstances(
+                new StopInstancesRequest(Arrays.asList("i-2")));
+
+        int failures = plan.apply(ec2, 4);
+
+        assertEquals(1, failures);
+        verify(ec2, times(4)).stopInstances(any(StopInstancesRequest.class));
+        verify(ec2).stopInstances(new StopInstancesRequest(Arrays.asList("i-1")));
+        verify(ec2).stopInstances(new StopInstancesRequest(Arrays.asList("i-3")));
+    }
+}
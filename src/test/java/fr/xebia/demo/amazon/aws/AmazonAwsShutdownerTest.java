@@ -0,0 +1,36 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.demo.amazon.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class AmazonAwsShutdownerTest {
+
+    @Test
+    public void image_id_is_extracted_from_create_image_snapshot_description() {
+        assertEquals("ami-2d3a1e59",
+                AmazonAwsShutdowner.extractCreateImageImageId("Created by CreateImage(i-8f1a2bc6) for ami-2d3a1e59 from vol-96d4c7fe"));
+    }
+
+    @Test
+    public void no_image_id_in_other_snapshot_descriptions() {
+        assertNull(AmazonAwsShutdowner.extractCreateImageImageId("Created by CreateImage(i-8f1a2bc6) for ami-"));
+        assertNull(AmazonAwsShutdowner.extractCreateImageImageId("backup of ami-2d3a1e59"));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2008-2010 Xebia and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.workshop.continuousdelivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class InfrastructureCreationStepSchedulerTest {
+
+    private static class FakeStep extends InfrastructureCreationStep {
+        private final String name;
+        private final Set<String> requiredResources;
+        private final boolean failing;
+        private final List<String> executedSteps;
+
+        FakeStep(String name, List<String> executedSteps, boolean failing, String... requiredResources) {
+            this.name = name;
+            this.executedSteps = executedSteps;
+            this.failing = failing;
+            this.requiredResources = Sets.newHashSet(requiredResources);
+        }
+
+        @Override
+        public void execute(AmazonEC2 ec2, WorkshopInfrastructure workshopInfrastructure) throws Exception {
+            Thread.sleep(50);
+            if (failing) {
+                throw new IllegalStateException("failure of " + name);
+            }
+            executedSteps.add(name);
+        }
+
+        @Override
+        public Set<String> getRequiredResources() {
+            return requiredResources;
+        }
+
+        @Override
+        public Set<String> getProducedResources() {
+            return Collections.singleton(name);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    @Test
+    public void dependent_steps_run_after_their_dependencies() throws Exception {
+        List<String> executedSteps = Collections.synchronizedList(Lists.<String>newArrayList());
+        FakeStep nexus = new FakeStep("nexus", executedSteps, false);
+        FakeStep github = new FakeStep("github", executedSteps, false);
+        FakeStep jenkins = new FakeStep("jenkins", executedSteps, false, "nexus", "github");
+
+        InfrastructureCreationStepScheduler scheduler = new InfrastructureCreationStepScheduler(
+                Arrays.<InfrastructureCreationStep>asList(jenkins, nexus, github));
+
+        assertTrue(scheduler.execute(null, null));
+        assertEquals(3, executedSteps.size());
+        assertEquals("jenkins", executedSteps.get(2));
+    }
+
+    @Test
+    public void failed_step_cancels_its_dependent_steps() throws Exception {
+        List<String> executedSteps = Collections.synchronizedList(Lists.<String>newArrayList());
+        FakeStep nexus = new FakeStep("nexus", executedSteps, true);
+        FakeStep tomcat = new FakeStep("tomcat", executedSteps, false);
+        FakeStep jenkins = new FakeStep("jenkins", executedSteps, false, "nexus");
+        FakeStep documentation = new FakeStep("documentation", executedSteps, false, "jenkins");
+
+        InfrastructureCreationStepScheduler scheduler = new InfrastructureCreationStepScheduler(
+                Arrays.<InfrastructureCreationStep>asList(nexus, tomcat, jenkins, documentation));
+
+        assertFalse(scheduler.execute(null, null));
+        assertEquals(Arrays.asList("tomcat"), executedSteps);
+        assertEquals(Collections.singleton(nexus), scheduler.getFailedSteps().keySet());
+        assertEquals(Sets.newHashSet(jenkins, documentation), scheduler.getCancelledSteps());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cyclic_dependencies_are_rejected() throws Exception {
+        List<String> executedSteps = Lists.newArrayList();
+        FakeStep a = new FakeStep("a", executedSteps, false, "b");
+        FakeStep b = new FakeStep("b", executedSteps, false, "a");
+
+        new InfrastructureCreationStepScheduler(Arrays.<InfrastructureCreationStep>asList(a, b)).execute(null, null);
+    }
+}
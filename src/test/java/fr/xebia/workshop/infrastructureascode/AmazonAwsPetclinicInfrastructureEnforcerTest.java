@@ -15,6 +15,7 @@
  */
 package fr.xebia.workshop.infrastructureascode;
 
+import static org.junit.Assert.assertSame;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
@@ -27,6 +28,9 @@ import org.junit.Test;
 import org.mockito.ArgumentMatcher;
 
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesRequest;
+import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Instance;
@@ -328,6 +332,36 @@ public class AmazonAwsPetclinicInfrastructureEnforcerTest {
 
     }
 
+    @Test
+    public void register_launched_instances_whose_tags_are_not_yet_visible() {
+        DescribeInstancesResult describeInstanceResult = buildDescribeInstancesResult();
+
+        when(ec2.describeInstances((DescribeInstancesRequest) any())).thenReturn(describeInstanceResult);
+
+        LoadBalancerDescription lbDescription = buildExpectedLoadBalancerDescription();
+
+        when(elb.describeLoadBalancers((DescribeLoadBalancersRequest) any())) //
+                .thenReturn(new DescribeLoadBalancersResult().withLoadBalancerDescriptions(lbDescription));
+
+        AmazonAwsPetclinicInfrastructureEnforcer infraEnforcer = new AmazonAwsPetclinicInfrastructureEnforcer(ec2, elb, rds);
+
+        infraEnforcer.createOrUpdateElasticLoadBalancer("/myapp/healsthcheck.jsp", "myapp",
+                Arrays.asList(new Instance().withInstanceId("i-3").withPlacement(new Placement("eu-west-1c"))));
+
+        verify(elb, atLeastOnce()).describeLoadBalancers((DescribeLoadBalancersRequest) any());
+        verify(elb, times(1)).registerInstancesWithLoadBalancer(argThat(new ArgumentMatcher<RegisterInstancesWithLoadBalancerRequest>() {
+            @Override
+            public boolean matches(Object argument) {
+                RegisterInstancesWithLoadBalancerRequest req = (RegisterInstancesWithLoadBalancerRequest) argument;
+                if (!ObjectUtils.equals("i-3", Iterables.getOnlyElement(req.getInstances()).getInstanceId())) {
+                    return false;
+                }
+                return true;
+            }
+        }));
+        verifyNoMoreInteractions(elb);
+    }
+
     @Test
     public void dont_update_anything_to_up_to_date_load_balancer() {
 
@@ -349,6 +383,76 @@ public class AmazonAwsPetclinicInfrastructureEnforcerTest {
 
     }
 
+    @Test
+    public void up_to_date_load_balancer_is_described_only_once() {
+
+        DescribeInstancesResult describeInstanceResult = buildDescribeInstancesResult();
+
+        when(ec2.describeInstances((DescribeInstancesRequest) any())).thenReturn(describeInstanceResult);
+
+        LoadBalancerDescription lbDescription = buildExpectedLoadBalancerDescription();
+
+        when(elb.describeLoadBalancers((DescribeLoadBalancersRequest) any())) //
+                .thenReturn(new DescribeLoadBalancersResult().withLoadBalancerDescriptions(lbDescription));
+
+        AmazonAwsPetclinicInfrastructureEnforcer infraEnforcer = new AmazonAwsPetclinicInfrastructureEnforcer(ec2, elb, rds);
+
+        LoadBalancerDescription actualLbDescription = infraEnforcer.createOrUpdateElasticLoadBalancer("/myapp/healsthcheck.jsp", "myapp");
+
+        assertSame(lbDescription, actualLbDescription);
+        verify(ec2, times(1)).describeInstances((DescribeInstancesRequest) any());
+        verify(elb, times(1)).describeLoadBalancers((DescribeLoadBalancersRequest) any());
+        verifyNoMoreInteractions(elb);
+    }
+
+    @Test
+    public void update_health_check_with_different_unhealthy_threshold() {
+
+        DescribeInstancesResult describeInstanceResult = buildDescribeInstancesResult();
+
+        when(ec2.describeInstances((DescribeInstancesRequest) any())).thenReturn(describeInstanceResult);
+
+        LoadBalancerDescription lbDescription = buildExpectedLoadBalancerDescription();
+        lbDescription.getHealthCheck().setUnhealthyThreshold(5);
+
+        when(elb.describeLoadBalancers((DescribeLoadBalancersRequest) any())) //
+                .thenReturn(new DescribeLoadBalancersResult().withLoadBalancerDescriptions(lbDescription));
+
+        AmazonAwsPetclinicInfrastructureEnforcer infraEnforcer = new AmazonAwsPetclinicInfrastructureEnforcer(ec2, elb, rds);
+
+        infraEnforcer.createOrUpdateElasticLoadBalancer("/myapp/healsthcheck.jsp", "myapp");
+
+        verify(elb, times(2)).describeLoadBalancers((DescribeLoadBalancersRequest) any());
+        verify(elb, times(1)).configureHealthCheck(argThat(buildConfigureHealthCheckRequestMatcher()));
+        verifyNoMoreInteractions(elb);
+    }
+
+    @Test
+    public void elb_create_before_instances_are_launched() {
+
+        when(ec2.describeInstances((DescribeInstancesRequest) any())).thenReturn(new DescribeInstancesResult());
+        when(ec2.describeAvailabilityZones((DescribeAvailabilityZonesRequest) any())).thenReturn(
+                new DescribeAvailabilityZonesResult().withAvailabilityZones( //
+                        new AvailabilityZone().withZoneName("eu-west-1b"), //
+                        new AvailabilityZone().withZoneName("eu-west-1c")));
+
+        LoadBalancerDescription lbDescription = buildExpectedLoadBalancerDescription();
+        lbDescription.setInstances(new ArrayList<com.amazonaws.services.elasticloadbalancing.model.Instance>());
+
+        when(elb.describeLoadBalancers((DescribeLoadBalancersRequest) any())) //
+                .thenThrow(new LoadBalancerNotFoundException("elb '" + "myapp" + "' not found")) //
+                .thenReturn(new DescribeLoadBalancersResult().withLoadBalancerDescriptions(lbDescription));
+
+        AmazonAwsPetclinicInfrastructureEnforcer infraEnforcer = new AmazonAwsPetclinicInfrastructureEnforcer(ec2, elb, rds);
+
+        infraEnforcer.createOrUpdateElasticLoadBalancer("/myapp/healsthcheck.jsp", "myapp");
+
+        verify(elb, times(1)).createLoadBalancer(argThat(buildCreateLoadBalancerRequestMatcher()));
+        verify(elb, never()).registerInstancesWithLoadBalancer((RegisterInstancesWithLoadBalancerRequest) any());
+        verify(elb, never()).disableAvailabilityZonesForLoadBalancer((DisableAvailabilityZonesForLoadBalancerRequest) any());
+        verify(elb, never()).enableAvailabilityZonesForLoadBalancer((EnableAvailabilityZonesForLoadBalancerRequest) any());
+    }
+
     @Test
     public void elb_create_from_scratch() {
 